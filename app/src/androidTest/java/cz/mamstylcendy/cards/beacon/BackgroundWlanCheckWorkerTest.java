@@ -0,0 +1,122 @@
+package cz.mamstylcendy.cards.beacon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.Manifest;
+import android.content.Context;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.work.Configuration;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.testing.SynchronousExecutor;
+import androidx.work.testing.TestDriver;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import cz.mamstylcendy.cards.data.CardsPreferences;
+
+/**
+ * Runs {@link BackgroundWlanCheckWorker} through the WorkManager test driver, with the scans the device actually sees.
+ * The outcome of a check depends on the APs around, so that is covered by {@code BackgroundCheckSchedulerTest}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BackgroundWlanCheckWorkerTest {
+
+    private Context context;
+    private CardsPreferences prefs;
+    private WorkManager workManager;
+    private TestDriver testDriver;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        WorkManagerTestInitHelper.initializeTestWorkManager(context, new Configuration.Builder()
+                .setExecutor(new SynchronousExecutor())
+                .setMinimumLoggingLevel(Log.DEBUG)
+                .build());
+        workManager = WorkManager.getInstance(context);
+        testDriver = WorkManagerTestInitHelper.getTestDriver(context);
+        prefs = new CardsPreferences(context);
+        prefs.putBackgroundQuietChecks(0);
+    }
+
+    private static void grantPermission(Context context, String permission) throws IOException {
+        ParcelFileDescriptor output = InstrumentationRegistry.getInstrumentation().getUiAutomation()
+                .executeShellCommand("pm grant " + context.getPackageName() + " " + permission);
+        //the command has finished once its output is closed
+        try (ParcelFileDescriptor.AutoCloseInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(output)) {
+            while (in.read() != -1) {
+            }
+        }
+    }
+
+    private List<WorkInfo> getWorkInfos() throws ExecutionException, InterruptedException {
+        return workManager.getWorkInfosForUniqueWork(BackgroundWlanCheckWorker.WORK_NAME).get();
+    }
+
+    private WorkInfo runScheduledCheck() throws ExecutionException, InterruptedException {
+        BackgroundWlanCheckWorker.scheduleWork(context, prefs, ExistingWorkPolicy.REPLACE);
+        WorkInfo scheduled = getWorkInfos().get(0);
+        testDriver.setInitialDelayMet(scheduled.getId());
+        return workManager.getWorkInfoById(scheduled.getId()).get();
+    }
+
+    @Test
+    public void disabledCheckIsNotRescheduled() throws ExecutionException, InterruptedException {
+        prefs.putBGNotificationEnabled(false);
+        int wakeups = prefs.getBackgroundWakeupCount();
+
+        assertEquals(WorkInfo.State.FAILED, runScheduledCheck().getState());
+        assertEquals(wakeups, prefs.getBackgroundWakeupCount());
+        for (WorkInfo info : getWorkInfos()) {
+            assertTrue(info.getState().isFinished());
+        }
+    }
+
+    @Test
+    public void checkIsCountedAndRescheduled() throws IOException, ExecutionException, InterruptedException {
+        grantPermission(context, Manifest.permission.ACCESS_FINE_LOCATION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            grantPermission(context, Manifest.permission.ACCESS_BACKGROUND_LOCATION);
+        }
+        assumeTrue(BackgroundWlanCheckWorker.isUseable(context));
+        prefs.putBGNotificationEnabled(true);
+        prefs.putBackgroundCheckInterval(30);
+        //a fresh day, so that the daily budget does not postpone the next check
+        prefs.putBackgroundWakeups(0, 0);
+
+        assertEquals(WorkInfo.State.SUCCEEDED, runScheduledCheck().getState());
+        assertEquals(1, prefs.getBackgroundWakeupCount());
+
+        WorkInfo next = null;
+        for (WorkInfo info : getWorkInfos()) {
+            if (!info.getState().isFinished()) {
+                next = info;
+            }
+        }
+        assertEquals(WorkInfo.State.ENQUEUED, next.getState());
+        //the delay is the base interval, half of it after a near miss, or twice it after a quiet check
+        long delayMinutes = next.getInitialDelayMillis() / 60_000;
+        if (prefs.getBackgroundQuietChecks() == 0) {
+            assertTrue(String.valueOf(delayMinutes), delayMinutes == 30 || delayMinutes == 15);
+        } else {
+            assertEquals(60, delayMinutes);
+        }
+    }
+}
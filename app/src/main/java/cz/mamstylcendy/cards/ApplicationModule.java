@@ -2,6 +2,8 @@ package cz.mamstylcendy.cards;
 
 import javax.inject.Singleton;
 
+import cz.mamstylcendy.cards.beacon.ApClusterStore;
+import cz.mamstylcendy.cards.beacon.BeaconStats;
 import cz.mamstylcendy.cards.beacon.CardNotificationManager;
 import cz.mamstylcendy.cards.beacon.WlanFencingManager;
 import cz.mamstylcendy.cards.data.CardsPreferences;
@@ -34,20 +36,32 @@ public class ApplicationModule {
 
     @Provides
     @Singleton
-    public WlanFencingManager wlanFencingManager(ConfigManager config) {
-        return new WlanFencingManager(application, config);
+    public WlanFencingManager wlanFencingManager(ConfigManager config, CardsPreferences prefs, PersonalCardStore personalCards, BeaconStats stats) {
+        return new WlanFencingManager(application, config, prefs, personalCards, stats);
     }
 
     @Provides
     @Singleton
-    public CardNotificationManager cardNotificationManager(CardsPreferences prefs, ConfigManager configManager) {
-        return new CardNotificationManager(application, prefs, configManager);
+    public CardNotificationManager cardNotificationManager(CardsPreferences prefs, ConfigManager configManager, BeaconStats stats, ApClusterStore apClusters) {
+        return new CardNotificationManager(application, prefs, configManager, stats, apClusters);
+    }
+
+    @Provides
+    @Singleton
+    public ApClusterStore apClusterStore() {
+        return new ApClusterStore(application);
+    }
+
+    @Provides
+    @Singleton
+    public BeaconStats beaconStats() {
+        return new BeaconStats(application);
     }
 
     @Provides
     @Singleton
     public PersonalCardStore personalCardStore(CardsPreferences preferences) {
-        return new PersonalCardStore(preferences);
+        return new PersonalCardStore(application, preferences);
     }
 
     @Provides
@@ -0,0 +1,383 @@
+package cz.mamstylcendy.cards.beacon;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import cz.spojenka.android.util.FileUtils;
+
+/**
+ * Clusters of access points observed together, and the state of the last provider notification.
+ * <p>
+ * Used to tell whether a detected provider is still the same physical place as the one last notified about,
+ * even if the nearest AP has changed in the meantime. APs reported as one provider are merged into one cluster
+ * with a union-find structure, and so are clusters bridged by a detection overlapping the last notified one.
+ * APs are identified by their {@link ScanBuffer#physicalApKey(long) physical AP key}.
+ * <p>
+ * The number of APs is bounded. When the store is full, or an AP has not been seen for {@link #MAX_AGE_MILLIS},
+ * the least recently seen APs are evicted. The rest of their cluster stays connected.
+ */
+public class ApClusterStore {
+
+    private static final String LOG_TAG = ApClusterStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "ap_clusters.bin";
+    private static final int MAGIC = 0x4B415043; // "KAPC"
+    private static final int VERSION = 2;
+
+    private static final int MAX_ENTRIES = 1024;
+    private static final int COMPACTED_ENTRIES = MAX_ENTRIES * 3 / 4;
+    private static final long MAX_AGE_MILLIS = 60L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Time after which a notification is no longer considered to be continued by another detection of the same provider.
+     */
+    private static final long CONTINUITY_DROPOUT_MAX_MILLIS = 90 * 1000;
+    /**
+     * Minimum time between saves that only refresh timestamps. Structural changes are saved right away.
+     */
+    private static final long TIMESTAMP_SAVE_INTERVAL_MILLIS = 30 * 1000;
+
+    private static final int NO_ENTRY = -1;
+    private static final long NO_TIME = 0;
+
+    private final File file;
+    private boolean loaded = false;
+
+    private int size = 0;
+    private final long[] apKeys = new long[MAX_ENTRIES];
+    private final int[] parents = new int[MAX_ENTRIES];
+    private final long[] lastSeen = new long[MAX_ENTRIES];
+    private final int[] slots = new int[MAX_ENTRIES * 2];
+
+    private String lastProvider;
+    private long lastApKey = ScanBuffer.NO_BSSID;
+    private long connectedAt = NO_TIME;
+    private long connectionLostAt = NO_TIME;
+
+    private long lastSaved = NO_TIME;
+
+    public ApClusterStore(Context context) {
+        this.file = context.getDatabasePath(FILE_NAME);
+        Arrays.fill(slots, NO_ENTRY);
+    }
+
+    /**
+     * Check whether a detection continues the last notification, either because it shares a cluster with the last
+     * notified APs, or because it is the same provider detected again shortly after.
+     *
+     * @param apInfo The detected provider
+     * @param now    The current time in milliseconds since the epoch
+     * @return True if no new notification should be shown for the detection
+     */
+    public synchronized boolean isContinuationOfLastNotification(WlanFencingManager.ProviderAPInfo apInfo, long now) {
+        ensureLoaded();
+        if (connectedAt == NO_TIME) {
+            return false;
+        }
+        if (connectionLostAt == NO_TIME || connectionLostAt < connectedAt) {
+            if (sharesClusterWithLast(apInfo)) {
+                return true;
+            }
+        }
+        if (Objects.equals(lastProvider, apInfo.provider())) {
+            return now - connectedAt < CONTINUITY_DROPOUT_MAX_MILLIS;
+        }
+        return false;
+    }
+
+    /**
+     * Record a notification shown or acknowledged for a provider, or the loss of it.
+     *
+     * @param apInfo The provider, or null if the provider has been lost
+     * @param now    The current time in milliseconds since the epoch
+     * @return True if the store was written to disk
+     */
+    public synchronized boolean recordNotification(WlanFencingManager.ProviderAPInfo apInfo, long now) {
+        ensureLoaded();
+        boolean structureChanged;
+        if (apInfo != null) {
+            boolean continuation = isContinuationOfLastNotification(apInfo, now);
+            int needed = apInfo.transitiveClosureAPs().size();
+            if (size + needed > MAX_ENTRIES) {
+                //make room up front, compaction renumbers the entries
+                compact(now, Math.max(0, Math.min(COMPACTED_ENTRIES, MAX_ENTRIES - needed)));
+            }
+            int first = NO_ENTRY;
+            structureChanged = !Objects.equals(lastProvider, apInfo.provider());
+            for (WlanFencingManager.WlanAPInfo ap : apInfo.transitiveClosureAPs()) {
+                long apKey = ScanBuffer.physicalApKey(ScanBuffer.packBssid(ap.bssid()));
+                if (apKey == ScanBuffer.NO_BSSID) {
+                    continue;
+                }
+                int entry = indexOf(apKey);
+                if (entry == NO_ENTRY) {
+                    if (size == MAX_ENTRIES) {
+                        break;
+                    }
+                    entry = add(apKey, now);
+                    structureChanged = true;
+                }
+                lastSeen[entry] = now;
+                if (first == NO_ENTRY) {
+                    first = entry;
+                } else {
+                    structureChanged |= union(first, entry);
+                }
+            }
+            if (continuation && first != NO_ENTRY) {
+                int last = indexOf(lastApKey);
+                if (last != NO_ENTRY) {
+                    structureChanged |= union(first, last);
+                }
+            }
+            lastProvider = apInfo.provider();
+            if (first != NO_ENTRY) {
+                lastApKey = apKeys[first];
+            }
+            connectedAt = now;
+        } else {
+            structureChanged = connectionLostAt <= connectedAt;
+            connectionLostAt = now;
+        }
+        if (structureChanged || now - lastSaved >= TIMESTAMP_SAVE_INTERVAL_MILLIS) {
+            save(now);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return size;
+    }
+
+    private boolean sharesClusterWithLast(WlanFencingManager.ProviderAPInfo apInfo) {
+        int last = indexOf(lastApKey);
+        if (last == NO_ENTRY) {
+            return false;
+        }
+        int lastRoot = find(last);
+        for (WlanFencingManager.WlanAPInfo ap : apInfo.transitiveClosureAPs()) {
+            int entry = indexOf(ScanBuffer.physicalApKey(ScanBuffer.packBssid(ap.bssid())));
+            if (entry != NO_ENTRY && find(entry) == lastRoot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int find(int entry) {
+        int root = entry;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        //path compression
+        while (parents[entry] != root) {
+            int next = parents[entry];
+            parents[entry] = root;
+            entry = next;
+        }
+        return root;
+    }
+
+    /**
+     * @return True if the entries were in different clusters
+     */
+    private boolean union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA == rootB) {
+            return false;
+        }
+        //no ranks are kept, the trees are flattened on every save anyway
+        if (rootA < rootB) {
+            parents[rootB] = rootA;
+        } else {
+            parents[rootA] = rootB;
+        }
+        return true;
+    }
+
+    private int add(long apKey, long now) {
+        int entry = size++;
+        apKeys[entry] = apKey;
+        parents[entry] = entry;
+        lastSeen[entry] = now;
+        insert(entry);
+        return entry;
+    }
+
+    /**
+     * Evict expired and least recently seen APs, keeping the clusters of the remaining ones.
+     *
+     * @param now      The current time
+     * @param capacity Maximum number of APs to keep
+     */
+    private void compact(long now, int capacity) {
+        Integer[] order = new Integer[size];
+        int[] roots = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            roots[i] = find(i);
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastSeen[b], lastSeen[a]));
+
+        boolean[] keep = new boolean[size];
+        for (int i = 0; i < size && i < capacity; i++) {
+            int entry = order[i];
+            if (now - lastSeen[entry] > MAX_AGE_MILLIS) {
+                break;
+            }
+            keep[entry] = true;
+        }
+
+        //surviving entries keep their order, the first survivor of each cluster becomes its new root
+        int[] newIndices = new int[size];
+        int[] newRoots = new int[size];
+        Arrays.fill(newRoots, NO_ENTRY);
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!keep[i]) {
+                newIndices[i] = NO_ENTRY;
+                continue;
+            }
+            newIndices[i] = kept;
+            if (newRoots[roots[i]] == NO_ENTRY) {
+                newRoots[roots[i]] = kept;
+            }
+            apKeys[kept] = apKeys[i];
+            lastSeen[kept] = lastSeen[i];
+            parents[kept] = newRoots[roots[i]];
+            kept++;
+        }
+        Log.d(LOG_TAG, "Compacted AP cluster store from " + size + " to " + kept + " entries");
+        size = kept;
+        rebuildIndex();
+    }
+
+    private void expire(long now) {
+        for (int i = 0; i < size; i++) {
+            if (now - lastSeen[i] > MAX_AGE_MILLIS) {
+                compact(now, MAX_ENTRIES);
+                return;
+            }
+        }
+    }
+
+    private void rebuildIndex() {
+        Arrays.fill(slots, NO_ENTRY);
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int entry) {
+        int mask = slots.length - 1;
+        int slot = (int) mix(apKeys[entry]) & mask;
+        while (slots[slot] != NO_ENTRY) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry;
+    }
+
+    private int indexOf(long apKey) {
+        if (apKey == ScanBuffer.NO_BSSID) {
+            return NO_ENTRY;
+        }
+        int mask = slots.length - 1;
+        for (int slot = (int) mix(apKey) & mask; slots[slot] != NO_ENTRY; slot = (slot + 1) & mask) {
+            if (apKeys[slots[slot]] == apKey) {
+                return slots[slot];
+            }
+        }
+        return NO_ENTRY;
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator, see {@link BssidFingerprintStore}.
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(LOG_TAG, "Unsupported AP cluster store format, starting over");
+                return;
+            }
+            String provider = in.readUTF();
+            lastProvider = provider.isEmpty() ? null : provider;
+            lastApKey = in.readLong();
+            connectedAt = in.readLong();
+            connectionLostAt = in.readLong();
+            int count = Math.min(in.readInt(), MAX_ENTRIES);
+            for (int i = 0; i < count; i++) {
+                apKeys[i] = ((long) in.readUnsignedShort() << 32) | (in.readInt() & 0xFFFFFFFFL);
+                parents[i] = in.readUnsignedShort();
+                lastSeen[i] = in.readLong();
+                if (parents[i] >= count) {
+                    throw new IOException("Invalid cluster root");
+                }
+            }
+            size = count;
+            rebuildIndex();
+            expire(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to load AP cluster store", e);
+            lastProvider = null;
+            lastApKey = ScanBuffer.NO_BSSID;
+            connectedAt = NO_TIME;
+            connectionLostAt = NO_TIME;
+            size = 0;
+            rebuildIndex();
+        }
+    }
+
+    private void save(long now) {
+        //flatten the trees so that every entry points directly to its root
+        for (int i = 0; i < size; i++) {
+            parents[i] = find(i);
+        }
+        try {
+            FileUtils.writeAtomically(file, stream -> {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(lastProvider != null ? lastProvider : "");
+                out.writeLong(lastApKey);
+                out.writeLong(connectedAt);
+                out.writeLong(connectionLostAt);
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeShort((int) (apKeys[i] >>> 32));
+                    out.writeInt((int) apKeys[i]);
+                    out.writeShort(parents[i]);
+                    out.writeLong(lastSeen[i]);
+                }
+                out.flush();
+            });
+            lastSaved = now;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to save AP cluster store", e);
+        }
+    }
+}
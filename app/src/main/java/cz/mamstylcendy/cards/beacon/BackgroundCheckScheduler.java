@@ -0,0 +1,105 @@
+package cz.mamstylcendy.cards.beacon;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+
+import cz.mamstylcendy.cards.data.CardsPreferences;
+
+/**
+ * Decides when the next background WLAN check should run.
+ * <p>
+ * The interval set by the user is the base interval. While checks find no known AP at all, the interval
+ * doubles with every check, up to {@link #MAX_BACKOFF_MINUTES}. As soon as a known AP shows up, even one too weak
+ * to be reported, the backoff is reset, and after such a near miss the next check runs after half the base interval.
+ * The number of checks per day is limited by {@link CardsPreferences#getBackgroundDailyWakeupBudget()};
+ * once it is used up, the next check is postponed to the next day.
+ */
+public class BackgroundCheckScheduler {
+
+    private static final int MAX_BACKOFF_MINUTES = 120;
+    private static final int MAX_BACKOFF_STEPS = 5;
+
+    private final CardsPreferences prefs;
+
+    public BackgroundCheckScheduler(CardsPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    /**
+     * Count a background check against the daily budget.
+     *
+     * @param today The current local date
+     */
+    public void recordWakeup(LocalDate today) {
+        if (prefs.getBackgroundWakeupDay() != today.toEpochDay()) {
+            prefs.putBackgroundWakeups(today.toEpochDay(), 1);
+        } else {
+            prefs.putBackgroundWakeups(today.toEpochDay(), prefs.getBackgroundWakeupCount() + 1);
+        }
+    }
+
+    /**
+     * Classify the result of a background check.
+     *
+     * @param detected             Whether a provider was reported
+     * @param strongestKnownSignal Signal level of the strongest AP of a known provider,
+     *                             or {@link WlanFencingManager#SIGNAL_OUT_OF_RANGE} if none was seen
+     * @param minDbm               Signal level below which providers are not reported, see {@link CardsPreferences#getMinWlanDbm()}
+     * @return The outcome
+     */
+    public static Outcome classify(boolean detected, int strongestKnownSignal, int minDbm) {
+        if (detected) {
+            return Outcome.DETECTED;
+        }
+        if (strongestKnownSignal != WlanFencingManager.SIGNAL_OUT_OF_RANGE && strongestKnownSignal < minDbm) {
+            return Outcome.NEAR_MISS;
+        }
+        return Outcome.QUIET;
+    }
+
+    /**
+     * Record the outcome of a background check and compute the delay before the next one.
+     *
+     * @param outcome The outcome
+     * @param now     The current time
+     * @return The delay in minutes
+     */
+    public long nextDelayMinutes(Outcome outcome, ZonedDateTime now) {
+        int base = Math.max(1, prefs.getBackgroundCheckInterval());
+
+        long delay;
+        if (outcome == Outcome.QUIET) {
+            int quietChecks = prefs.getBackgroundQuietChecks() + 1;
+            prefs.putBackgroundQuietChecks(quietChecks);
+            delay = Math.min((long) base << Math.min(quietChecks, MAX_BACKOFF_STEPS), Math.max(base, MAX_BACKOFF_MINUTES));
+        } else {
+            prefs.putBackgroundQuietChecks(0);
+            delay = outcome == Outcome.NEAR_MISS ? Math.max(1, base / 2) : base;
+        }
+
+        LocalDate today = now.toLocalDate();
+        if (prefs.getBackgroundWakeupDay() == today.toEpochDay()
+                && prefs.getBackgroundWakeupCount() >= prefs.getBackgroundDailyWakeupBudget()) {
+            ZonedDateTime tomorrow = today.plusDays(1).atStartOfDay(now.getZone());
+            delay = Math.max(delay, Duration.between(now, tomorrow).toMinutes() + 1);
+        }
+        return delay;
+    }
+
+    public static enum Outcome {
+        /**
+         * No provider was detected, and no AP of a known provider was seen below the minimum signal level.
+         */
+        QUIET,
+        /**
+         * An AP of a known provider was seen, but below {@link CardsPreferences#getMinWlanDbm()},
+         * too weak to report the provider.
+         */
+        NEAR_MISS,
+        /**
+         * A provider was detected.
+         */
+        DETECTED
+    }
+}
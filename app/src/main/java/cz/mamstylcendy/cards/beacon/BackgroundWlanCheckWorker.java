@@ -1,21 +1,21 @@
 package cz.mamstylcendy.cards.beacon;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.core.content.ContextCompat;
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.Observer;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import java.util.UUID;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
@@ -26,7 +26,7 @@ public class BackgroundWlanCheckWorker extends Worker {
 
     private static final String TAG = "BackgroundWlanScanner"; //log character limit is 23 until Oreo
 
-    private static final String WORK_NAME = "BackgroundWlanCheck";
+    static final String WORK_NAME = "BackgroundWlanCheck";
 
     @Inject
     WlanFencingManager wlanFencingManager;
@@ -34,6 +34,8 @@ public class BackgroundWlanCheckWorker extends Worker {
     CardNotificationManager cardNotificationManager;
     @Inject
     CardsPreferences prefs;
+    @Inject
+    BeaconStats stats;
 
     private static WlanFencingManager.OnNearbyProviderCallback lastGlobalCallback = null;
 
@@ -53,10 +55,22 @@ public class BackgroundWlanCheckWorker extends Worker {
             return Result.failure();
         }
 
-        WlanFencingManager.ProviderAPInfo provider = filterProviderInfo(wlanFencingManager.update());
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        stats.count(BeaconStats.Counter.WORKER_RUNS);
+
+        BackgroundCheckScheduler scheduler = new BackgroundCheckScheduler(prefs);
+        scheduler.recordWakeup(LocalDate.now());
+
+        //the process is likely to be gone long before the next check, so the enter dwell time could never pass
+        WlanFencingManager.ProviderAPInfo provider = filterProviderInfo(wlanFencingManager.update(true));
+        cardNotificationManager.updateNearbyProviders(filterNearbyProviders(wlanFencingManager.getNearbyProviders()));
+        BackgroundCheckScheduler.Outcome outcome = BackgroundCheckScheduler.classify(
+                provider != null, wlanFencingManager.getStrongestKnownSignal(), prefs.getMinWlanDbm());
+
         if (!cardNotificationManager.shouldShowNotificationForProviderAP(provider)) {
             Log.d(TAG, "No notification needed for AP: " + provider);
-            reschedule();
+            reschedule(scheduler, outcome);
+            finishRun(startNanos);
             return Result.success();
         }
 
@@ -65,8 +79,9 @@ public class BackgroundWlanCheckWorker extends Worker {
             cardNotificationManager.showNotificationForProviderAP(provider);
         } else {
             Log.d(TAG, "App is in foreground, notification is suppressed.");
+            stats.count(BeaconStats.Counter.NOTIFICATIONS_SUPPRESSED);
         }
-        reschedule();
+        reschedule(scheduler, outcome);
 
         if (lastGlobalCallback != null) {
             wlanFencingManager.unregisterOnNearbyProviderCallback(lastGlobalCallback);
@@ -87,11 +102,23 @@ public class BackgroundWlanCheckWorker extends Worker {
                 cardNotificationManager.clearNotification();
                 cardNotificationManager.ackAPForFutureNotification(null);
             }
+
+            @Override
+            public void nearbyProvidersChanged(List<WlanFencingManager.NearbyProvider> providers) {
+                cardNotificationManager.updateNearbyProviders(filterNearbyProviders(providers));
+            }
         }, null, false); //don't care about the thread, no UI operations are done
 
+        finishRun(startNanos);
         return Result.success();
     }
 
+    private void finishRun(long startNanos) {
+        stats.time(BeaconStats.Timer.WORKER_RUN, SystemClock.elapsedRealtimeNanos() - startNanos);
+        //the process may be killed any time after the work is done
+        stats.flush();
+    }
+
     private WlanFencingManager.ProviderAPInfo filterProviderInfo(WlanFencingManager.ProviderAPInfo providerAPInfo) {
         if (providerAPInfo != null && providerAPInfo.primaryAP().signal() < prefs.getMinWlanDbm()) {
             return null; //act as if no AP is found
@@ -99,33 +126,18 @@ public class BackgroundWlanCheckWorker extends Worker {
         return providerAPInfo;
     }
 
-    private void reschedule() {
-        Context context = getApplicationContext();
-        WorkManager workManager = WorkManager.getInstance(context);
-        UUID id = getId();
-
-        ContextCompat.getMainExecutor(getApplicationContext()).execute(() -> {
-            LiveData<WorkInfo> wi = workManager.getWorkInfoByIdLiveData(id);
-            wi.observeForever(new Observer<>() {
-                @Override
-                public void onChanged(WorkInfo workInfo) {
-                    boolean keepObserver = false;
-                    try {
-                        if (workInfo == null) {
-                            Log.w(TAG, "WorkInfo not found for id " + id);
-                        } else if (workInfo.getState().isFinished()) {
-                            scheduleWork(context, prefs, ExistingWorkPolicy.REPLACE);
-                        } else {
-                            keepObserver = true;
-                        }
-                    } finally {
-                        if (!keepObserver) {
-                            wi.removeObserver(this);
-                        }
-                    }
-                }
-            });
-        });
+    private List<WlanFencingManager.NearbyProvider> filterNearbyProviders(List<WlanFencingManager.NearbyProvider> providers) {
+        int minDbm = prefs.getMinWlanDbm();
+        return providers.stream()
+                .filter(provider -> provider.strongestAP().signal() >= minDbm)
+                .collect(Collectors.toList());
+    }
+
+    private void reschedule(BackgroundCheckScheduler scheduler, BackgroundCheckScheduler.Outcome outcome) {
+        long delay = scheduler.nextDelayMinutes(outcome, ZonedDateTime.now());
+        Log.d(TAG, "Check outcome: " + outcome + ", wakeups today: " + prefs.getBackgroundWakeupCount());
+        //the running work is the last one in the chain, so the next one is appended and starts after this one finishes
+        scheduleWork(getApplicationContext(), delay, ExistingWorkPolicy.APPEND_OR_REPLACE);
     }
 
     public static synchronized void scheduleWork(Context context, CardsPreferences prefs) {
@@ -133,12 +145,16 @@ public class BackgroundWlanCheckWorker extends Worker {
     }
 
     public static synchronized void scheduleWork(Context context, CardsPreferences prefs, ExistingWorkPolicy existingWorkPolicy) {
-        Log.d(TAG, "Scheduling BackgroundWlanCheckWorker to run in " + prefs.getBackgroundCheckInterval() + " minutes.");
+        scheduleWork(context, prefs.getBackgroundCheckInterval(), existingWorkPolicy);
+    }
+
+    private static synchronized void scheduleWork(Context context, long delayMinutes, ExistingWorkPolicy existingWorkPolicy) {
+        Log.d(TAG, "Scheduling BackgroundWlanCheckWorker to run in " + delayMinutes + " minutes.");
         WorkManager.getInstance(context).enqueueUniqueWork(
                 WORK_NAME,
                 existingWorkPolicy,
                 new OneTimeWorkRequest.Builder(BackgroundWlanCheckWorker.class)
-                        .setInitialDelay(prefs.getBackgroundCheckInterval(), TimeUnit.MINUTES)
+                        .setInitialDelay(delayMinutes, TimeUnit.MINUTES)
                         .build()
         );
     }
@@ -0,0 +1,392 @@
+package cz.mamstylcendy.cards.beacon;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Counters and duration histograms of the work done by the beacon subsystem, for quantifying its battery impact.
+ * <p>
+ * Measurements are aggregated into hourly buckets. The buckets are kept in a fixed-size ring buffer file,
+ * so the history is bounded to the last {@link #SLOT_COUNT} hours in which anything was measured.
+ * Counting itself never touches the disk; the current bucket is written when the hour changes and on {@link #flush()}.
+ */
+public class BeaconStats {
+
+    private static final String LOG_TAG = BeaconStats.class.getSimpleName();
+
+    private static final String FILE_NAME = "beacon_stats.bin";
+    private static final int MAGIC = 0x4B425354; // "KBST"
+    private static final int VERSION = 1;
+
+    /**
+     * One week of hourly buckets.
+     */
+    private static final int SLOT_COUNT = 7 * 24;
+    private static final long BUCKET_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Upper bound of the first histogram bucket. Each following bucket is twice as wide, the last one is unbounded.
+     */
+    private static final long HISTOGRAM_BASE_MICROS = 500;
+    private static final int HISTOGRAM_BUCKETS = 12;
+    /**
+     * Upper bound of the last bounded histogram bucket.
+     */
+    public static final long LARGEST_HISTOGRAM_BOUND_MICROS = HISTOGRAM_BASE_MICROS << (HISTOGRAM_BUCKETS - 2);
+
+    private static final int COUNTERS = Counter.values().length;
+    private static final int TIMERS = Timer.values().length;
+
+    private static final int HEADER_SIZE = 4 * 4;
+    private static final int SLOT_SIZE = 8 + COUNTERS * 4 + TIMERS * (8 + HISTOGRAM_BUCKETS * 4);
+
+    private final File file;
+    private boolean loaded = false;
+
+    private int currentSlot = 0;
+    private final Bucket current = new Bucket();
+    private boolean dirty = false;
+
+    private final ByteBuffer slotBuffer = ByteBuffer.allocate(SLOT_SIZE);
+
+    public BeaconStats(Context context) {
+        this.file = context.getDatabasePath(FILE_NAME);
+    }
+
+    public void count(Counter counter) {
+        count(counter, 1);
+    }
+
+    public synchronized void count(Counter counter, int amount) {
+        roll(System.currentTimeMillis());
+        current.counters[counter.ordinal()] += amount;
+        dirty = true;
+    }
+
+    /**
+     * Record the duration of an operation.
+     *
+     * @param timer         The measured operation
+     * @param durationNanos The duration in nanoseconds
+     */
+    public synchronized void time(Timer timer, long durationNanos) {
+        roll(System.currentTimeMillis());
+        long micros = Math.max(0, durationNanos / 1000);
+        current.totalMicros[timer.ordinal()] += micros;
+        current.histograms[timer.ordinal()][histogramBucket(micros)]++;
+        dirty = true;
+    }
+
+    private static int histogramBucket(long micros) {
+        int bucket = 0;
+        for (long bound = HISTOGRAM_BASE_MICROS; micros >= bound && bucket < HISTOGRAM_BUCKETS - 1; bound <<= 1) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Persist the current bucket.
+     */
+    public synchronized void flush() {
+        ensureLoaded();
+        if (dirty) {
+            writeSlot(currentSlot, current);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Get the recorded buckets, including the current one.
+     *
+     * @return The non-empty buckets, oldest first
+     */
+    public synchronized List<Bucket> getBuckets() {
+        flush();
+        List<Bucket> buckets = new ArrayList<>();
+        if (!file.exists()) {
+            return buckets;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                Bucket bucket = new Bucket();
+                if (readSlot(raf, slot, bucket) && bucket.startMillis != 0) {
+                    buckets.add(bucket);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read beacon stats", e);
+        }
+        buckets.sort(Comparator.comparingLong(b -> b.startMillis));
+        return buckets;
+    }
+
+    /**
+     * Sum up buckets.
+     *
+     * @param buckets  The buckets
+     * @param fromTime Start of the period, buckets starting earlier are skipped
+     * @return The total
+     */
+    public static Bucket sum(List<Bucket> buckets, long fromTime) {
+        Bucket total = new Bucket();
+        for (Bucket bucket : buckets) {
+            if (bucket.startMillis < fromTime) {
+                continue;
+            }
+            if (total.startMillis == 0) {
+                total.startMillis = bucket.startMillis;
+            }
+            total.add(bucket);
+        }
+        return total;
+    }
+
+    /**
+     * Write the recorded buckets as CSV, one line per hour.
+     *
+     * @param buckets The buckets
+     * @return The CSV text
+     */
+    public static String toCsv(List<Bucket> buckets) {
+        StringBuilder sb = new StringBuilder("hour");
+        for (Counter counter : Counter.values()) {
+            sb.append(',').append(counter.name().toLowerCase(Locale.ROOT));
+        }
+        for (Timer timer : Timer.values()) {
+            String name = timer.name().toLowerCase(Locale.ROOT);
+            sb.append(',').append(name).append("_total_us");
+            long bound = HISTOGRAM_BASE_MICROS;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++, bound <<= 1) {
+                sb.append(',').append(name).append(i < HISTOGRAM_BUCKETS - 1 ? "_lt" + bound + "us" : "_more");
+            }
+        }
+        sb.append('\n');
+        for (Bucket bucket : buckets) {
+            sb.append(Instant.ofEpochMilli(bucket.startMillis));
+            for (int count : bucket.counters) {
+                sb.append(',').append(count);
+            }
+            for (int t = 0; t < TIMERS; t++) {
+                sb.append(',').append(bucket.totalMicros[t]);
+                for (int count : bucket.histograms[t]) {
+                    sb.append(',').append(count);
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void roll(long now) {
+        ensureLoaded();
+        long bucketStart = now - now % BUCKET_MILLIS;
+        if (bucketStart == current.startMillis) {
+            return;
+        }
+        if (current.startMillis != 0) {
+            if (dirty) {
+                writeSlot(currentSlot, current);
+            }
+            currentSlot = (currentSlot + 1) % SLOT_COUNT;
+        }
+        current.clear();
+        current.startMillis = bucketStart;
+        dirty = true;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readInt() != SLOT_COUNT || raf.readInt() != SLOT_SIZE) {
+                Log.w(LOG_TAG, "Unsupported beacon stats format, starting over");
+                file.delete();
+                return;
+            }
+            //the slot last written to is found by its timestamp, so that the header does not need to be updated on every write
+            Bucket bucket = new Bucket();
+            long latest = 0;
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                if (readSlot(raf, slot, bucket) && bucket.startMillis > latest) {
+                    latest = bucket.startMillis;
+                    currentSlot = slot;
+                }
+            }
+            if (latest != 0) {
+                readSlot(raf, currentSlot, current);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to load beacon stats", e);
+            current.clear();
+            currentSlot = 0;
+        }
+    }
+
+    private boolean readSlot(RandomAccessFile raf, int slot, Bucket bucket) throws IOException {
+        long offset = HEADER_SIZE + (long) slot * SLOT_SIZE;
+        if (offset + SLOT_SIZE > raf.length()) {
+            return false;
+        }
+        raf.seek(offset);
+        raf.readFully(slotBuffer.array());
+        slotBuffer.clear();
+        bucket.startMillis = slotBuffer.getLong();
+        for (int c = 0; c < COUNTERS; c++) {
+            bucket.counters[c] = slotBuffer.getInt();
+        }
+        for (int t = 0; t < TIMERS; t++) {
+            bucket.totalMicros[t] = slotBuffer.getLong();
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                bucket.histograms[t][i] = slotBuffer.getInt();
+            }
+        }
+        return true;
+    }
+
+    private void writeSlot(int slot, Bucket bucket) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < HEADER_SIZE) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeInt(SLOT_COUNT);
+                raf.writeInt(SLOT_SIZE);
+            }
+            slotBuffer.clear();
+            slotBuffer.putLong(bucket.startMillis);
+            for (int c = 0; c < COUNTERS; c++) {
+                slotBuffer.putInt(bucket.counters[c]);
+            }
+            for (int t = 0; t < TIMERS; t++) {
+                slotBuffer.putLong(bucket.totalMicros[t]);
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    slotBuffer.putInt(bucket.histograms[t][i]);
+                }
+            }
+            long offset = HEADER_SIZE + (long) slot * SLOT_SIZE;
+            if (raf.length() < offset) {
+                //fill the gap so that a shorter file never contains garbage slots
+                raf.setLength(offset);
+            }
+            raf.seek(offset);
+            raf.write(slotBuffer.array());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write beacon stats", e);
+        }
+    }
+
+    /**
+     * Measurements aggregated over one hour, or summed up over a longer period.
+     */
+    public static class Bucket {
+
+        private long startMillis;
+        private final int[] counters = new int[COUNTERS];
+        private final long[] totalMicros = new long[TIMERS];
+        private final int[][] histograms = new int[TIMERS][HISTOGRAM_BUCKETS];
+
+        /**
+         * @return Start of the bucket in milliseconds since the epoch
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public int getCount(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        public int getTimedCount(Timer timer) {
+            int count = 0;
+            for (int c : histograms[timer.ordinal()]) {
+                count += c;
+            }
+            return count;
+        }
+
+        public long getTotalMicros(Timer timer) {
+            return totalMicros[timer.ordinal()];
+        }
+
+        /**
+         * Estimate a percentile of the durations of an operation from the histogram.
+         *
+         * @param timer    The operation
+         * @param fraction The percentile, between 0 and 1
+         * @return Upper bound of the histogram bucket containing the percentile in microseconds,
+         * or {@link Long#MAX_VALUE} if it is above {@link #LARGEST_HISTOGRAM_BOUND_MICROS}, or 0 if nothing was recorded
+         */
+        public long getPercentileMicros(Timer timer, double fraction) {
+            int total = getTimedCount(timer);
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            long bound = HISTOGRAM_BASE_MICROS;
+            int[] histogram = histograms[timer.ordinal()];
+            for (int i = 0; i < HISTOGRAM_BUCKETS - 1; i++, bound <<= 1) {
+                seen += histogram[i];
+                if (seen >= target) {
+                    return bound;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private void add(Bucket other) {
+            for (int c = 0; c < COUNTERS; c++) {
+                counters[c] += other.counters[c];
+            }
+            for (int t = 0; t < TIMERS; t++) {
+                totalMicros[t] += other.totalMicros[t];
+                for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                    histograms[t][i] += other.histograms[t][i];
+                }
+            }
+        }
+
+        private void clear() {
+            startMillis = 0;
+            Arrays.fill(counters, 0);
+            Arrays.fill(totalMicros, 0);
+            for (int[] histogram : histograms) {
+                Arrays.fill(histogram, 0);
+            }
+        }
+    }
+
+    public static enum Counter {
+        WORKER_RUNS,
+        UPDATES,
+        SCAN_RESULTS,
+        LISTENER_DISPATCHES,
+        NOTIFICATIONS_POSTED,
+        NOTIFICATIONS_SUPPRESSED,
+        NOTIFICATION_STATE_WRITES,
+        SCANS_REQUESTED,
+        SCANS_GRANTED,
+        SCANS_SKIPPED
+    }
+
+    public static enum Timer {
+        WORKER_RUN,
+        UPDATE
+    }
+}
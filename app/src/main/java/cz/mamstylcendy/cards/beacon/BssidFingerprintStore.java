@@ -0,0 +1,344 @@
+package cz.mamstylcendy.cards.beacon;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cz.spojenka.android.util.FileUtils;
+
+/**
+ * Persistent store of BSSIDs learned from confirmed provider detections, so that a store can be
+ * recognised by its access points even if their SSID is not in the config.
+ * <p>
+ * APs are identified by their {@link ScanBuffer#physicalApKey(long) physical AP key}, so that all BSSIDs
+ * of a multi-band AP are recognised once any of them has been learned.
+ * <p>
+ * Every confirmed detection raises the confidence of the APs involved. Confidence decays exponentially
+ * with the time since an AP was last confirmed, and only APs above a minimum confidence are recognised.
+ * The number of APs is bounded; when the store is full, the least confident ones are evicted.
+ * <p>
+ * A Bloom filter over all stored BSSIDs is checked before the hash table, so the vast majority
+ * of foreign APs in a scan are rejected by a few bit tests.
+ * <p>
+ * Changes are saved on a background thread, at most once per {@link #SAVE_INTERVAL_MILLIS}, so that
+ * learning does not block the detection that triggered it.
+ */
+public class BssidFingerprintStore {
+
+    private static final String LOG_TAG = BssidFingerprintStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "bssid_fingerprints.bin";
+    private static final int MAGIC = 0x4B424650; // "KBFP"
+    private static final int VERSION = 2;
+
+    private static final int MAX_ENTRIES = 4096;
+    /**
+     * Number of entries kept when the store is full and has to be compacted.
+     */
+    private static final int COMPACTED_ENTRIES = MAX_ENTRIES * 3 / 4;
+
+    private static final float MAX_CONFIDENCE = 10f;
+    private static final float MIN_RECOGNISED_CONFIDENCE = 2f;
+    private static final float MIN_KEPT_CONFIDENCE = 0.25f;
+    private static final double CONFIDENCE_HALF_LIFE_MILLIS = 30d * 24 * 60 * 60 * 1000;
+
+    private static final int BLOOM_BITS = MAX_ENTRIES * 10;
+    private static final int BLOOM_HASHES = 4;
+
+    /**
+     * Minimum time between saves. Detections within this time after a save are saved together.
+     */
+    private static final long SAVE_INTERVAL_MILLIS = 30 * 1000;
+
+    private static final int NO_ENTRY = -1;
+    private static final long NO_TIME = 0;
+
+    private final File file;
+    private boolean loaded = false;
+
+    private final ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "BssidFingerprintSave"));
+    private boolean savePending = false;
+    private long lastSaved = NO_TIME;
+
+    private final List<String> providers = new ArrayList<>();
+
+    private int size = 0;
+    private final long[] apKeys = new long[MAX_ENTRIES];
+    private final int[] providerIndices = new int[MAX_ENTRIES];
+    private final float[] confidences = new float[MAX_ENTRIES];
+    private final long[] lastConfirmed = new long[MAX_ENTRIES];
+
+    private final int[] slots = new int[Integer.highestOneBit(MAX_ENTRIES) * 4];
+    private final long[] bloom = new long[BLOOM_BITS / 64];
+
+    public BssidFingerprintStore(Context context) {
+        this.file = context.getDatabasePath(FILE_NAME);
+        Arrays.fill(slots, NO_ENTRY);
+    }
+
+    /**
+     * Get the provider an AP has been learned for.
+     *
+     * @param bssid The packed BSSID, see {@link ScanBuffer#packBssid(String)}
+     * @param now   The current time in milliseconds since the epoch
+     * @return The provider ID, or null if the AP is not recognised with enough confidence
+     */
+    public synchronized String findProvider(long bssid, long now) {
+        if (bssid == ScanBuffer.NO_BSSID) {
+            return null;
+        }
+        ensureLoaded();
+        long apKey = ScanBuffer.physicalApKey(bssid);
+        if (!bloomMightContain(apKey)) {
+            return null;
+        }
+        int entry = indexOf(apKey);
+        if (entry == NO_ENTRY || decayedConfidence(entry, now) < MIN_RECOGNISED_CONFIDENCE) {
+            return null;
+        }
+        return providers.get(providerIndices[entry]);
+    }
+
+    /**
+     * Raise the confidence of all APs of a confirmed detection that are currently in range, and schedule the store to be saved.
+     *
+     * @param apInfo The detected provider and its APs
+     * @param now    The current time in milliseconds since the epoch
+     */
+    public synchronized void learn(WlanFencingManager.ProviderAPInfo apInfo, long now) {
+        ensureLoaded();
+        int providerIndex = providers.indexOf(apInfo.provider());
+        if (providerIndex == -1) {
+            providerIndex = providers.size();
+            providers.add(apInfo.provider());
+        }
+        for (WlanFencingManager.WlanAPInfo ap : apInfo.transitiveClosureAPs()) {
+            long apKey = ScanBuffer.physicalApKey(ScanBuffer.packBssid(ap.bssid()));
+            if (apKey == ScanBuffer.NO_BSSID || ap.signal() == WlanFencingManager.SIGNAL_OUT_OF_RANGE) {
+                continue;
+            }
+            int entry = indexOf(apKey);
+            if (entry == NO_ENTRY) {
+                if (size == MAX_ENTRIES) {
+                    compact(now);
+                }
+                entry = size++;
+                apKeys[entry] = apKey;
+                confidences[entry] = 0;
+                insert(entry);
+            } else if (providerIndices[entry] != providerIndex) {
+                //the AP moved to another store, start over
+                confidences[entry] = 0;
+            } else {
+                confidences[entry] = decayedConfidence(entry, now);
+            }
+            providerIndices[entry] = providerIndex;
+            confidences[entry] = Math.min(MAX_CONFIDENCE, confidences[entry] + 1);
+            lastConfirmed[entry] = now;
+        }
+        scheduleSave(now);
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return size;
+    }
+
+    private float decayedConfidence(int entry, long now) {
+        long age = Math.max(0, now - lastConfirmed[entry]);
+        return (float) (confidences[entry] * Math.pow(0.5, age / CONFIDENCE_HALF_LIFE_MILLIS));
+    }
+
+    /**
+     * Drop APs whose confidence has decayed to almost nothing and, if that is not enough,
+     * the least confident ones, then rebuild the hash table and the Bloom filter.
+     */
+    private void compact(long now) {
+        Integer[] order = new Integer[size];
+        float[] decayed = new float[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            decayed[i] = decayedConfidence(i, now);
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(decayed[b], decayed[a]));
+
+        int kept = 0;
+        long[] newApKeys = new long[size];
+        int[] newProviders = new int[size];
+        float[] newConfidences = new float[size];
+        long[] newLastConfirmed = new long[size];
+        for (int i = 0; i < size && kept < COMPACTED_ENTRIES; i++) {
+            int entry = order[i];
+            if (decayed[entry] < MIN_KEPT_CONFIDENCE) {
+                break;
+            }
+            newApKeys[kept] = apKeys[entry];
+            newProviders[kept] = providerIndices[entry];
+            newConfidences[kept] = decayed[entry];
+            newLastConfirmed[kept] = now;
+            kept++;
+        }
+        Log.d(LOG_TAG, "Compacted BSSID store from " + size + " to " + kept + " entries");
+
+        System.arraycopy(newApKeys, 0, apKeys, 0, kept);
+        System.arraycopy(newProviders, 0, providerIndices, 0, kept);
+        System.arraycopy(newConfidences, 0, confidences, 0, kept);
+        System.arraycopy(newLastConfirmed, 0, lastConfirmed, 0, kept);
+        size = kept;
+        rebuildIndex();
+    }
+
+    private void rebuildIndex() {
+        Arrays.fill(slots, NO_ENTRY);
+        Arrays.fill(bloom, 0);
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private void insert(int entry) {
+        long apKey = apKeys[entry];
+        int mask = slots.length - 1;
+        int slot = (int) mix(apKey) & mask;
+        while (slots[slot] != NO_ENTRY) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry;
+
+        long hash = mix(apKey);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (int) ((hash >>> (i * 16)) & 0xFFFF) % BLOOM_BITS;
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private int indexOf(long apKey) {
+        int mask = slots.length - 1;
+        for (int slot = (int) mix(apKey) & mask; slots[slot] != NO_ENTRY; slot = (slot + 1) & mask) {
+            if (apKeys[slots[slot]] == apKey) {
+                return slots[slot];
+            }
+        }
+        return NO_ENTRY;
+    }
+
+    private boolean bloomMightContain(long apKey) {
+        long hash = mix(apKey);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (int) ((hash >>> (i * 16)) & 0xFFFF) % BLOOM_BITS;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator. BSSIDs of one vendor share the upper bits, so they need to be spread out.
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(LOG_TAG, "Unsupported BSSID store format, starting over");
+                return;
+            }
+            int providerCount = in.readInt();
+            for (int i = 0; i < providerCount; i++) {
+                providers.add(in.readUTF());
+            }
+            int count = Math.min(in.readInt(), MAX_ENTRIES);
+            for (int i = 0; i < count; i++) {
+                apKeys[i] = in.readLong();
+                providerIndices[i] = in.readUnsignedShort();
+                confidences[i] = in.readFloat();
+                lastConfirmed[i] = in.readLong();
+                if (providerIndices[i] >= providerCount) {
+                    throw new IOException("Invalid provider index");
+                }
+            }
+            size = count;
+            rebuildIndex();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to load BSSID store", e);
+            providers.clear();
+            size = 0;
+            rebuildIndex();
+        }
+    }
+
+    private void scheduleSave(long now) {
+        if (savePending) {
+            //the pending save picks up this change as well
+            return;
+        }
+        savePending = true;
+        long delay = Math.max(0, lastSaved + SAVE_INTERVAL_MILLIS - now);
+        saveExecutor.schedule(() -> save(now + delay), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void save(long now) {
+        byte[] data;
+        synchronized (this) {
+            savePending = false;
+            lastSaved = now;
+            try {
+                data = serialize();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to serialize BSSID store", e);
+                return;
+            }
+        }
+        //the file is written outside of the lock, so lookups during detection do not wait for it
+        try {
+            FileUtils.writeAtomically(file, out -> out.write(data));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to save BSSID store", e);
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(16 + size * 22);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(providers.size());
+        for (String provider : providers) {
+            out.writeUTF(provider);
+        }
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(apKeys[i]);
+            out.writeShort(providerIndices[i]);
+            out.writeFloat(confidences[i]);
+            out.writeLong(lastConfirmed[i]);
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+}
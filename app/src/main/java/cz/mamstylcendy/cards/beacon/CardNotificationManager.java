@@ -4,18 +4,26 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.service.notification.StatusBarNotification;
+import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import cz.mamstylcendy.cards.R;
@@ -24,26 +32,63 @@ import cz.mamstylcendy.cards.data.CardsConfig;
 import cz.mamstylcendy.cards.data.CardsPreferences;
 import cz.mamstylcendy.cards.ui.activity.MainActivity;
 
+/**
+ * Shows the notification about nearby providers.
+ * <p>
+ * The providers in the shown notification are tracked locally, so that deciding whether to notify does not need
+ * to query the system. The state is read from the system once on startup, and cleared when the notification
+ * is cancelled, including when the user dismisses it. The number of usable, that is non-blacklisted, codes
+ * of each provider is cached as well, until the blacklist of the provider or the config changes.
+ */
 public class CardNotificationManager {
 
+    private static final String LOG_TAG = CardNotificationManager.class.getSimpleName();
+
     private static final String CHANNEL_ID = "cards_beacon_channel";
     private static final String EXTRA_PROVIDER = "provider";
+    private static final String EXTRA_NEARBY_PROVIDERS = "nearby_providers";
+
+    private static final String ACTION_NOTIFICATION_DISMISSED = "cz.mamstylcendy.cards.action.NOTIFICATION_DISMISSED";
 
     private static final int GLOBAL_NOTIFICATION_ID = 1;
 
     private final Context context;
     private final CardsPreferences prefs;
     private final ConfigManager configManager;
+    private final BeaconStats stats;
+    private final ApClusterStore apClusters;
     private final NotificationManagerCompat notificationManager;
     private NotificationChannel channel;
 
-    public CardNotificationManager(Context context, CardsPreferences prefs, ConfigManager configManager) {
+    private volatile List<String> nearbyProviders = List.of();
+
+    /**
+     * The providers in the shown notification, the main one first, or null if no notification is shown.
+     */
+    private List<String> shownProviders;
+
+    private final Map<String, Integer> usableCodeCounts = new HashMap<>();
+    private CardsConfig usableCodeCountsConfig;
+
+    private final BroadcastReceiver dismissReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            setShownProviders(null);
+        }
+    };
+
+    public CardNotificationManager(Context context, CardsPreferences prefs, ConfigManager configManager, BeaconStats stats, ApClusterStore apClusters) {
         this.context = context;
         this.prefs = prefs;
         this.configManager = configManager;
+        this.stats = stats;
+        this.apClusters = apClusters;
         notificationManager = NotificationManagerCompat.from(context);
 
         initNotificationChannel();
+        shownProviders = readShownProviders();
+        ContextCompat.registerReceiver(context, dismissReceiver, new IntentFilter(ACTION_NOTIFICATION_DISMISSED), ContextCompat.RECEIVER_NOT_EXPORTED);
+        prefs.addCardBlacklistListener(this::invalidateUsableCodeCount);
     }
 
     private void initNotificationChannel() {
@@ -75,13 +120,29 @@ public class CardNotificationManager {
         );
     }
 
-    private Bundle createNotificationExtra(String provider) {
+    private PendingIntent createDismissIntent() {
+        return PendingIntent.getBroadcast(
+                context,
+                0,
+                new Intent(ACTION_NOTIFICATION_DISMISSED).setPackage(context.getPackageName()),
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
+        );
+    }
+
+    private Bundle createNotificationExtra(String provider, List<String> otherProviders) {
         Bundle extras = new Bundle();
         extras.putString(EXTRA_PROVIDER, provider);
+        extras.putStringArray(EXTRA_NEARBY_PROVIDERS, otherProviders.toArray(new String[0]));
         return extras;
     }
 
-    private Notification buildNotification(String provider) {
+    private List<String> getOtherProviders(String provider) {
+        List<String> otherProviders = new ArrayList<>(nearbyProviders);
+        otherProviders.remove(provider);
+        return otherProviders;
+    }
+
+    private Notification buildNotification(String provider, List<String> otherProviders) {
         String providerName = configManager.getProviderNameOrDefault(provider);
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
@@ -90,47 +151,173 @@ public class CardNotificationManager {
                 .setContentText(context.getString(R.string.notification_text, providerName))
                 .setPriority(NotificationCompat.PRIORITY_LOW)
                 .setContentIntent(createLaunchForProviderIntent(provider))
+                .setDeleteIntent(createDismissIntent())
                 .setCategory(NotificationCompat.CATEGORY_RECOMMENDATION)
-                .setExtras(createNotificationExtra(provider))
+                .setExtras(createNotificationExtra(provider, otherProviders))
+                .setOnlyAlertOnce(true)
                 .setAutoCancel(true);
 
+        if (!otherProviders.isEmpty()) {
+            //the notification opens the card of the main provider, the others are listed for information
+            NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle()
+                    .addLine(providerName);
+            for (String other : otherProviders) {
+                style.addLine(configManager.getProviderNameOrDefault(other));
+            }
+            builder.setContentText(context.getString(R.string.notification_text_multi, providerName, otherProviders.size()))
+                    .setStyle(style.setSummaryText(context.getString(R.string.notification_multi_summary)));
+        }
+
         return builder.build();
     }
 
-    public boolean shouldShowNotificationForProviderAP(WlanFencingManager.ProviderAPInfo apInfo) {
-        if (apInfo == null) {
-            return true; //always cancel
+    private boolean hasUsableCodes(String provider) {
+        return getUsableCodeCount(provider) > 0;
+    }
+
+    /**
+     * Get the number of codes of a provider that are not blacklisted. The count is computed on first use
+     * and cached until the blacklist of the provider or the config changes.
+     *
+     * @param provider The provider ID
+     * @return The number of usable codes, 0 if the provider is unknown
+     */
+    private synchronized int getUsableCodeCount(String provider) {
+        CardsConfig config = configManager.getCurrentConfig();
+        if (config != usableCodeCountsConfig) {
+            usableCodeCounts.clear();
+            usableCodeCountsConfig = config;
         }
-        if (prefs.checkLastAPsNeighboring(apInfo)) {
-            //update persisted closure
-            prefs.putLastNotificationAPInfo(apInfo);
-            return false;
+        Integer count = usableCodeCounts.get(provider);
+        if (count == null) {
+            count = countUsableCodes(provider);
+            usableCodeCounts.put(provider, count);
         }
-        CardsConfig.ProviderInfo pi = configManager.getProviderInfo(apInfo.provider());
-        if (pi == null) {
-            return false;
+        return count;
+    }
+
+    private int countUsableCodes(String provider) {
+        CardsConfig.ProviderInfo pi = configManager.getProviderInfoOrNull(provider);
+        if (pi == null || pi.codes() == null) {
+            return 0;
         }
-        Set<String> codes = new HashSet<>(pi.codes());
-        codes.removeAll(prefs.getCardBlacklist(apInfo.provider()));
-        if (codes.isEmpty()) {
-            return false; // no valid codes for this provider, do not show notification
+        Set<String> blacklist = prefs.getCardBlacklist(provider);
+        int count = 0;
+        try {
+            for (String code : pi.codes()) {
+                if (!blacklist.contains(code)) {
+                    count++;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            Log.e(LOG_TAG, "Failed to read codes of " + provider, e);
+            return 0;
         }
+        return count;
+    }
+
+    private synchronized void invalidateUsableCodeCount(String provider) {
+        usableCodeCounts.remove(provider);
+    }
+
+    private synchronized List<String> getShownProviders() {
+        return shownProviders;
+    }
+
+    private synchronized void setShownProviders(List<String> providers) {
+        shownProviders = providers;
+    }
+
+    /**
+     * Read the providers in the shown notification from the system. This is an IPC call,
+     * so it is only used to initialize the local state.
+     *
+     * @return The providers in the shown notification, the main one first, or null if no notification is shown
+     */
+    private List<String> readShownProviders() {
         for (StatusBarNotification notification : notificationManager.getActiveNotifications()) {
             if (notification.getId() == GLOBAL_NOTIFICATION_ID) {
                 Bundle extras = notification.getNotification().extras;
-                if (extras != null) {
-                    String existingProvider = extras.getString(EXTRA_PROVIDER);
-                    if (existingProvider != null && existingProvider.equals(apInfo.provider())) {
-                        return false; // Already showing notification for this provider
+                if (extras != null && extras.getString(EXTRA_PROVIDER) != null) {
+                    List<String> providers = new ArrayList<>();
+                    providers.add(extras.getString(EXTRA_PROVIDER));
+                    String[] others = extras.getStringArray(EXTRA_NEARBY_PROVIDERS);
+                    if (others != null) {
+                        providers.addAll(List.of(others));
                     }
+                    return providers;
                 }
             }
         }
+        return null;
+    }
+
+    /**
+     * Update the other providers listed in the notification. The shown notification is only re-posted
+     * if the set of providers has changed, its main provider stays the same.
+     *
+     * @param providers The ranked nearby providers, see {@link WlanFencingManager#getNearbyProviders()}
+     */
+    public void updateNearbyProviders(List<WlanFencingManager.NearbyProvider> providers) {
+        List<String> usable = new ArrayList<>();
+        for (WlanFencingManager.NearbyProvider provider : providers) {
+            if (hasUsableCodes(provider.provider())) {
+                usable.add(provider.provider());
+            }
+        }
+        nearbyProviders = usable;
+
+        List<String> shown = getShownProviders();
+        if (shown == null) {
+            return;
+        }
+        String mainProvider = shown.get(0);
+        Set<String> newProviders = new HashSet<>(usable);
+        newProviders.add(mainProvider);
+        if (newProviders.equals(new HashSet<>(shown))) {
+            return;
+        }
+        if (ContextCompat.checkSelfPermission(context, android.Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        postNotification(mainProvider);
+    }
+
+    private void postNotification(String provider) {
+        List<String> otherProviders = getOtherProviders(provider);
+        notificationManager.notify(GLOBAL_NOTIFICATION_ID, buildNotification(provider, otherProviders));
+        List<String> shown = new ArrayList<>();
+        shown.add(provider);
+        shown.addAll(otherProviders);
+        setShownProviders(shown);
+        stats.count(BeaconStats.Counter.NOTIFICATIONS_POSTED);
+    }
+
+    public boolean shouldShowNotificationForProviderAP(WlanFencingManager.ProviderAPInfo apInfo) {
+        if (apInfo == null) {
+            return true; //always cancel
+        }
+        if (apClusters.isContinuationOfLastNotification(apInfo, System.currentTimeMillis())) {
+            //update persisted closure
+            putLastNotificationAPInfo(apInfo);
+            stats.count(BeaconStats.Counter.NOTIFICATIONS_SUPPRESSED);
+            return false;
+        }
+        if (!hasUsableCodes(apInfo.provider())) {
+            stats.count(BeaconStats.Counter.NOTIFICATIONS_SUPPRESSED);
+            return false; // no valid codes for this provider, do not show notification
+        }
+        List<String> shownProviders = getShownProviders();
+        if (shownProviders != null && shownProviders.contains(apInfo.provider())) {
+            stats.count(BeaconStats.Counter.NOTIFICATIONS_SUPPRESSED);
+            return false; // Already showing notification for this provider, possibly as one of several nearby
+        }
         return true;
     }
 
     public void clearNotification() {
         notificationManager.cancel(GLOBAL_NOTIFICATION_ID);
+        setShownProviders(null);
     }
 
     public void showNotificationForProviderAP(WlanFencingManager.ProviderAPInfo apInfo) {
@@ -140,13 +327,21 @@ public class CardNotificationManager {
         if (apInfo == null) {
             clearNotification();
         } else {
-            Notification notification = buildNotification(apInfo.provider());
-            notificationManager.notify(GLOBAL_NOTIFICATION_ID, notification);
+            postNotification(apInfo.provider());
         }
-        prefs.putLastNotificationAPInfo(apInfo);
+        putLastNotificationAPInfo(apInfo);
     }
 
     public void ackAPForFutureNotification(WlanFencingManager.ProviderAPInfo apInfo) {
-        prefs.putLastNotificationAPInfo(apInfo);
+        putLastNotificationAPInfo(apInfo);
+    }
+
+    /**
+     * Records the notified APs in the AP cluster store, counting the writes in {@link BeaconStats}.
+     */
+    private void putLastNotificationAPInfo(WlanFencingManager.ProviderAPInfo apInfo) {
+        if (apClusters.recordNotification(apInfo, System.currentTimeMillis())) {
+            stats.count(BeaconStats.Counter.NOTIFICATION_STATE_WRITES);
+        }
     }
 }
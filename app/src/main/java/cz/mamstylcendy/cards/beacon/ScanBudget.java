@@ -0,0 +1,79 @@
+package cz.mamstylcendy.cards.beacon;
+
+import java.util.Arrays;
+
+/**
+ * Decides whether an explicit WLAN scan is worth requesting on Android versions that need them.
+ * <p>
+ * Android 9 throttles apps in the foreground to {@link #MAX_SCANS_PER_WINDOW} scans per {@link #THROTTLE_WINDOW_MILLIS};
+ * calls beyond that only return the cached results. The budget keeps track of the scans it has granted,
+ * so that such calls are never made. Scans are also skipped while the cached results are fresh,
+ * and in the background unless a known store has been seen recently.
+ */
+class ScanBudget {
+
+    static final long NEVER = Long.MIN_VALUE;
+
+    private static final int MAX_SCANS_PER_WINDOW = 4;
+    private static final long THROTTLE_WINDOW_MILLIS = 2 * 60 * 1000;
+    /**
+     * Age of the newest scan result up to which the cached results are used instead of scanning.
+     */
+    private static final long FRESH_RESULTS_MILLIS = 30 * 1000;
+    /**
+     * Time after a known AP was last seen during which scans are allowed in the background.
+     */
+    private static final long RECENTLY_NEARBY_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Times of the granted scans, as a ring buffer.
+     */
+    private final long[] scanTimes = new long[MAX_SCANS_PER_WINDOW];
+    private int nextScan = 0;
+
+    ScanBudget() {
+        Arrays.fill(scanTimes, NEVER);
+    }
+
+    /**
+     * Decide on a scan request. If the scan is granted, it is counted against the budget.
+     *
+     * @param now                 The current time on the monotonic clock
+     * @param newestResultMillis  Time of the newest cached scan result on the same clock, or {@link #NEVER}
+     * @param foreground          Whether the app is in the foreground
+     * @param lastKnownSeenMillis Time a known AP was last seen on the same clock, or {@link #NEVER}
+     * @return The decision
+     */
+    Decision request(long now, long newestResultMillis, boolean foreground, long lastKnownSeenMillis) {
+        if (newestResultMillis != NEVER && now - newestResultMillis < FRESH_RESULTS_MILLIS) {
+            return Decision.SKIPPED_FRESH;
+        }
+        if (!foreground && (lastKnownSeenMillis == NEVER || now - lastKnownSeenMillis > RECENTLY_NEARBY_MILLIS)) {
+            return Decision.SKIPPED_IDLE;
+        }
+        //the oldest granted scan is the next one to be replaced
+        long oldest = scanTimes[nextScan];
+        if (oldest != NEVER && now - oldest < THROTTLE_WINDOW_MILLIS) {
+            return Decision.SKIPPED_THROTTLED;
+        }
+        scanTimes[nextScan] = now;
+        nextScan = (nextScan + 1) % MAX_SCANS_PER_WINDOW;
+        return Decision.GRANTED;
+    }
+
+    static enum Decision {
+        GRANTED,
+        /**
+         * The cached results are recent enough.
+         */
+        SKIPPED_FRESH,
+        /**
+         * The app is in the background and no known AP has been seen recently.
+         */
+        SKIPPED_IDLE,
+        /**
+         * The scan would be throttled by the OS.
+         */
+        SKIPPED_THROTTLED
+    }
+}
@@ -0,0 +1,285 @@
+package cz.mamstylcendy.cards.beacon;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Reusable buffer of WLAN scan results, stored as parallel arrays.
+ * <p>
+ * The buffer only grows, so once it has seen the largest scan of a session, filling it does not allocate.
+ * BSSIDs are additionally kept packed into the lower 48 bits of a long, see {@link #packBssid(String)}.
+ * <p>
+ * SSIDs may be added either as strings in the format of {@code WifiInfo.getSSID()}, or as raw bytes. Raw SSIDs
+ * are only converted to strings when {@link #ssid(int)} is called, which is normally only done for known APs.
+ */
+class ScanBuffer {
+
+    /**
+     * Packed value of a missing or malformed BSSID. Valid packed BSSIDs are never negative.
+     */
+    static final long NO_BSSID = -1L;
+
+    /**
+     * Value of {@link #timestamp()} before one has been set.
+     */
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long timestamp = NO_TIMESTAMP;
+    private int size = 0;
+    private long[] bssids = new long[INITIAL_CAPACITY];
+    private String[] bssidStrings = new String[INITIAL_CAPACITY];
+    private String[] ssids = new String[INITIAL_CAPACITY];
+    private byte[][] rawSsids = new byte[INITIAL_CAPACITY][];
+    private int[] signals = new int[INITIAL_CAPACITY];
+
+    private int knownCount = 0;
+    private int[] knownIndices = new int[INITIAL_CAPACITY];
+    private String[] providers = new String[INITIAL_CAPACITY];
+    private int[] filteredSignals = new int[INITIAL_CAPACITY];
+
+    void clear() {
+        // drop references so that the scan results can be collected
+        Arrays.fill(bssidStrings, 0, size, null);
+        Arrays.fill(ssids, 0, size, null);
+        Arrays.fill(rawSsids, 0, size, null);
+        Arrays.fill(providers, 0, size, null);
+        size = 0;
+        knownCount = 0;
+        timestamp = NO_TIMESTAMP;
+    }
+
+    /**
+     * @return Time the scan was taken on the monotonic clock, or {@link #NO_TIMESTAMP} if it has not been set
+     */
+    long timestamp() {
+        return timestamp;
+    }
+
+    void setTimestamp(long timestampMillis) {
+        this.timestamp = timestampMillis;
+    }
+
+    void add(String bssid, String ssid, int signal) {
+        add(bssid, ssid, null, signal);
+    }
+
+    /**
+     * Add an entry with a raw SSID, such as the result of {@code WifiSsid.getBytes()}.
+     */
+    void add(String bssid, byte[] rawSsid, int signal) {
+        add(bssid, null, rawSsid, signal);
+    }
+
+    private void add(String bssid, String ssid, byte[] rawSsid, int signal) {
+        if (size == bssids.length) {
+            int capacity = size * 2;
+            bssids = Arrays.copyOf(bssids, capacity);
+            bssidStrings = Arrays.copyOf(bssidStrings, capacity);
+            ssids = Arrays.copyOf(ssids, capacity);
+            rawSsids = Arrays.copyOf(rawSsids, capacity);
+            signals = Arrays.copyOf(signals, capacity);
+            knownIndices = Arrays.copyOf(knownIndices, capacity);
+            providers = Arrays.copyOf(providers, capacity);
+            filteredSignals = Arrays.copyOf(filteredSignals, capacity);
+        }
+        bssids[size] = packBssid(bssid);
+        bssidStrings[size] = bssid;
+        ssids[size] = ssid;
+        rawSsids[size] = rawSsid;
+        signals[size] = signal;
+        filteredSignals[size] = signal;
+        size++;
+    }
+
+    /**
+     * Add an entry unless there already is one with the same BSSID.
+     */
+    void addIfAbsent(String bssid, String ssid, int signal) {
+        if (indexOfBssid(bssid) == -1) {
+            add(bssid, ssid, signal);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long bssid(int index) {
+        return bssids[index];
+    }
+
+    String bssidString(int index) {
+        return bssidStrings[index];
+    }
+
+    /**
+     * Get the SSID of an entry in the format of {@code WifiInfo.getSSID()}, that is, in quotes if it is valid UTF-8,
+     * or as hex digits otherwise.
+     */
+    String ssid(int index) {
+        String ssid = ssids[index];
+        if (ssid == null && rawSsids[index] != null) {
+            ssid = formatSsid(rawSsids[index]);
+            ssids[index] = ssid;
+        }
+        return ssid;
+    }
+
+    /**
+     * Get the raw SSID of an entry.
+     *
+     * @return The SSID bytes, or null if the entry was added with a string SSID
+     */
+    byte[] rawSsid(int index) {
+        return rawSsids[index];
+    }
+
+    int signal(int index) {
+        return signals[index];
+    }
+
+    /**
+     * Find an entry by BSSID. Entries with an unparseable BSSID are matched by the original string.
+     *
+     * @param bssid The BSSID string
+     * @return The index of the entry, or -1
+     */
+    int indexOfBssid(String bssid) {
+        long packed = packBssid(bssid);
+        for (int i = 0; i < size; i++) {
+            if (bssids[i] != packed) {
+                continue;
+            }
+            if (packed != NO_BSSID || Objects.equals(bssidStrings[i], bssid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int filteredSignal(int index) {
+        return filteredSignals[index];
+    }
+
+    void setFilteredSignal(int index, int signal) {
+        filteredSignals[index] = signal;
+    }
+
+    /**
+     * Get the provider of an entry marked with {@link #markKnown(int, String)}.
+     *
+     * @param index The entry index
+     * @return The provider ID, or null if the entry is not known
+     */
+    String provider(int index) {
+        return providers[index];
+    }
+
+    /**
+     * Mark an entry as belonging to a known provider.
+     *
+     * @param index    The entry index
+     * @param provider The provider ID
+     */
+    void markKnown(int index, String provider) {
+        knownIndices[knownCount++] = index;
+        providers[index] = provider;
+    }
+
+    int knownCount() {
+        return knownCount;
+    }
+
+    int knownIndex(int i) {
+        return knownIndices[i];
+    }
+
+    /**
+     * Format a raw SSID the same way as {@code WifiSsid.toString()}.
+     */
+    static String formatSsid(byte[] rawSsid) {
+        try {
+            CharSequence text = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(rawSsid));
+            return "\"" + text + "\"";
+        } catch (CharacterCodingException e) {
+            char[] chars = new char[rawSsid.length * 2];
+            for (int i = 0; i < rawSsid.length; i++) {
+                chars[i * 2] = Character.forDigit((rawSsid[i] >>> 4) & 0xF, 16);
+                chars[i * 2 + 1] = Character.forDigit(rawSsid[i] & 0xF, 16);
+            }
+            return new String(chars);
+        }
+    }
+
+    /**
+     * Pack a BSSID in the usual {@code xx:xx:xx:xx:xx:xx} notation into the lower 48 bits of a long.
+     *
+     * @param bssid The BSSID
+     * @return The packed BSSID, or {@link #NO_BSSID} if it is null or malformed
+     */
+    static long packBssid(String bssid) {
+        if (bssid == null || bssid.length() != 17) {
+            return NO_BSSID;
+        }
+        long packed = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = bssid.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return NO_BSSID;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return NO_BSSID;
+            }
+            packed = (packed << 4) | digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Get the identity of the physical AP a BSSID belongs to. Enterprise APs advertise several BSSIDs, one per band
+     * and virtual network, that differ only in the last octet. These are all mapped to the same key,
+     * which is the upper 40 bits of the BSSID.
+     *
+     * @param bssid The packed BSSID
+     * @return The physical AP key, or {@link #NO_BSSID} if the BSSID is missing
+     */
+    static long physicalApKey(long bssid) {
+        return bssid == NO_BSSID ? NO_BSSID : bssid >>> 8;
+    }
+
+    /**
+     * Format a packed BSSID in the usual {@code xx:xx:xx:xx:xx:xx} notation.
+     *
+     * @param bssid The packed BSSID
+     * @return The BSSID string
+     */
+    static String formatBssid(long bssid) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (bssid >>> ((5 - i) * 8)) & 0xFF;
+            chars[i * 3] = Character.forDigit(octet >>> 4, 16);
+            chars[i * 3 + 1] = Character.forDigit(octet & 0xF, 16);
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,233 @@
+package cz.mamstylcendy.cards.beacon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary recording of WLAN scans, for analysing and replaying detection offline.
+ * <p>
+ * A trace is a sequence of records. A segment record starts each recording session and resets the SSID
+ * dictionary. A frame record holds one scan: its timestamps, the connected AP, if any, and the scanned APs
+ * with 6-byte BSSIDs, 1-byte signal levels and SSIDs encoded as references into the dictionary.
+ * New SSIDs are written inline the first time they occur in a segment.
+ */
+class ScanTrace {
+
+    private static final int MAGIC = 0x4B575354; // "KWST"
+    private static final int VERSION = 1;
+
+    private static final int RECORD_SEGMENT = 'S';
+    private static final int RECORD_FRAME = 'F';
+
+    private static final int FLAG_HAS_CONNECTED = 1;
+
+    private static final long BSSID_MASK = 0xFFFFFFFFFFFFL;
+
+    /**
+     * Appends frames to a trace file. Not thread-safe.
+     */
+    static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        /**
+         * Open a trace file for appending and start a new segment.
+         *
+         * @param file The trace file
+         * @throws IOException If the file could not be opened
+         */
+        Writer(File file) throws IOException {
+            boolean isNew = !file.exists() || file.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (isNew) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            out.writeByte(RECORD_SEGMENT);
+        }
+
+        /**
+         * Write a frame.
+         *
+         * @param elapsedRealtimeMillis Time of the scan on the monotonic clock
+         * @param wallTimeMillis        Time of the scan in milliseconds since the epoch
+         * @param scan                  The scanned APs, without the connected AP
+         * @param connectedBssid        BSSID of the connected AP, or null if not connected
+         * @param connectedSsid         SSID of the connected AP
+         * @param connectedSignal       Signal level of the connected AP
+         * @throws IOException If the frame could not be written
+         */
+        void writeFrame(long elapsedRealtimeMillis, long wallTimeMillis, ScanBuffer scan,
+                        String connectedBssid, String connectedSsid, int connectedSignal) throws IOException {
+            out.writeByte(RECORD_FRAME);
+            out.writeLong(elapsedRealtimeMillis);
+            out.writeLong(wallTimeMillis);
+            boolean hasConnected = connectedBssid != null || connectedSsid != null;
+            out.writeByte(hasConnected ? FLAG_HAS_CONNECTED : 0);
+            if (hasConnected) {
+                writeAP(ScanBuffer.packBssid(connectedBssid), connectedSsid, connectedSignal);
+            }
+            writeVarInt(scan.size());
+            for (int i = 0; i < scan.size(); i++) {
+                writeAP(scan.bssid(i), scan.ssid(i), scan.signal(i));
+            }
+            out.flush();
+        }
+
+        private void writeAP(long bssid, String ssid, int signal) throws IOException {
+            out.writeShort((int) (bssid >>> 32) & 0xFFFF);
+            out.writeInt((int) bssid);
+            out.writeByte(Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, signal)));
+            Integer ref = dictionary.get(ssid);
+            if (ref == null) {
+                writeVarInt(dictionary.size());
+                out.writeUTF(ssid != null ? ssid : "");
+                dictionary.put(ssid, dictionary.size());
+            } else {
+                writeVarInt(ref);
+            }
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads frames of a trace file sequentially.
+     */
+    static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<String> dictionary = new ArrayList<>();
+
+        private long elapsedRealtimeMillis;
+        private long wallTimeMillis;
+
+        Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException("Not a supported scan trace");
+            }
+        }
+
+        /**
+         * Read the next frame into a scan buffer. The connected AP is added to the scanned APs
+         * unless it is among them already, the same way as during live detection.
+         *
+         * @param scan The buffer, cleared before reading
+         * @return False if the end of the trace has been reached
+         * @throws IOException If the trace is corrupted
+         */
+        boolean readFrame(ScanBuffer scan) throws IOException {
+            scan.clear();
+            while (true) {
+                int record;
+                try {
+                    record = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    return false;
+                }
+                if (record == RECORD_SEGMENT) {
+                    dictionary.clear();
+                } else if (record == RECORD_FRAME) {
+                    break;
+                } else {
+                    throw new IOException("Unknown record type: " + record);
+                }
+            }
+            elapsedRealtimeMillis = in.readLong();
+            wallTimeMillis = in.readLong();
+            int flags = in.readUnsignedByte();
+            String connectedBssid = null;
+            String connectedSsid = null;
+            int connectedSignal = 0;
+            if ((flags & FLAG_HAS_CONNECTED) != 0) {
+                connectedBssid = readBssid();
+                connectedSignal = in.readByte();
+                connectedSsid = readSsid();
+            }
+            int count = readVarInt();
+            for (int i = 0; i < count; i++) {
+                String bssid = readBssid();
+                int signal = in.readByte();
+                scan.add(bssid, readSsid(), signal);
+            }
+            if ((flags & FLAG_HAS_CONNECTED) != 0) {
+                scan.addIfAbsent(connectedBssid, connectedSsid, connectedSignal);
+            }
+            //traces do not keep the scan result timestamps, each frame counts as a new scan
+            scan.setTimestamp(elapsedRealtimeMillis);
+            return true;
+        }
+
+        /**
+         * @return Time of the last read frame on the monotonic clock of the recording device
+         */
+        long getElapsedRealtimeMillis() {
+            return elapsedRealtimeMillis;
+        }
+
+        /**
+         * @return Time of the last read frame in milliseconds since the epoch
+         */
+        long getWallTimeMillis() {
+            return wallTimeMillis;
+        }
+
+        private String readBssid() throws IOException {
+            long bssid = ((long) in.readUnsignedShort() << 32) | (in.readInt() & 0xFFFFFFFFL);
+            return bssid == (ScanBuffer.NO_BSSID & BSSID_MASK) ? null : ScanBuffer.formatBssid(bssid);
+        }
+
+        private String readSsid() throws IOException {
+            int ref = readVarInt();
+            if (ref == dictionary.size()) {
+                dictionary.add(in.readUTF());
+            } else if (ref > dictionary.size()) {
+                throw new IOException("Invalid SSID reference: " + ref);
+            }
+            return dictionary.get(ref);
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package cz.mamstylcendy.cards.beacon;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Smooths the signal level of access points over consecutive scans, keeping separate state for each BSSID.
+ * States of access points that have not been seen for a while are discarded with {@link #forget(long)}.
+ */
+public abstract class SignalFilter {
+
+    private final Map<Long, State> states = new HashMap<>();
+
+    /**
+     * Feed a new sample and get the filtered signal level. A sample that is not newer than the last one
+     * fed for the same access point, such as a cached scan result evaluated again, does not change the state.
+     *
+     * @param bssid           Packed BSSID of the access point, see {@link ScanBuffer#packBssid(String)}
+     * @param rssi            The measured signal level in dBm
+     * @param timestampMillis Time of the measurement, on a monotonic clock
+     * @return The filtered signal level in dBm
+     */
+    public double filter(long bssid, int rssi, long timestampMillis) {
+        State state = states.get(bssid);
+        if (state == null) {
+            state = new State();
+            state.value = rssi;
+            state.variance = initialVariance();
+            states.put(bssid, state);
+        } else if (timestampMillis > state.timestamp) {
+            update(state, rssi, (timestampMillis - state.timestamp) / 1000.0);
+        } else {
+            return state.value;
+        }
+        state.timestamp = timestampMillis;
+        return state.value;
+    }
+
+    /**
+     * Discard the state of access points last seen before a given time.
+     *
+     * @param timestampMillis The time, on the same clock as passed to {@link #filter(long, int, long)}
+     */
+    public void forget(long timestampMillis) {
+        Iterator<State> it = states.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().timestamp < timestampMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    public abstract Type getType();
+
+    protected double initialVariance() {
+        return 0;
+    }
+
+    protected abstract void update(State state, int rssi, double elapsedSeconds);
+
+    public static SignalFilter create(Type type) {
+        return switch (type) {
+            case NONE -> new Passthrough();
+            case EWMA -> new Ewma();
+            case KALMAN -> new Kalman();
+        };
+    }
+
+    protected static class State {
+
+        double value;
+        double variance;
+        long timestamp;
+    }
+
+    public static enum Type {
+        NONE,
+        EWMA,
+        KALMAN
+    }
+
+    /**
+     * Uses the last sample as is.
+     */
+    private static class Passthrough extends SignalFilter {
+
+        @Override
+        public Type getType() {
+            return Type.NONE;
+        }
+
+        @Override
+        protected void update(State state, int rssi, double elapsedSeconds) {
+            state.value = rssi;
+        }
+    }
+
+    /**
+     * Exponentially weighted moving average with a fixed weight of new samples.
+     */
+    private static class Ewma extends SignalFilter {
+
+        private static final double ALPHA = 0.35;
+
+        @Override
+        public Type getType() {
+            return Type.EWMA;
+        }
+
+        @Override
+        protected void update(State state, int rssi, double elapsedSeconds) {
+            state.value += ALPHA * (rssi - state.value);
+        }
+    }
+
+    /**
+     * One-dimensional Kalman filter modelling the signal level as a random walk. Unlike the EWMA,
+     * it trusts new samples more after a long gap between scans.
+     */
+    private static class Kalman extends SignalFilter {
+
+        /**
+         * Variance of a single RSSI measurement, dBm^2.
+         */
+        private static final double MEASUREMENT_VARIANCE = 16;
+        /**
+         * Growth of the variance of the true signal level per second, dBm^2/s.
+         */
+        private static final double PROCESS_VARIANCE_PER_SECOND = 0.5;
+
+        @Override
+        public Type getType() {
+            return Type.KALMAN;
+        }
+
+        @Override
+        protected double initialVariance() {
+            return MEASUREMENT_VARIANCE;
+        }
+
+        @Override
+        protected void update(State state, int rssi, double elapsedSeconds) {
+            double variance = state.variance + PROCESS_VARIANCE_PER_SECOND * elapsedSeconds;
+            double gain = variance / (variance + MEASUREMENT_VARIANCE);
+            state.value += gain * (rssi - state.value);
+            state.variance = (1 - gain) * variance;
+        }
+    }
+}
@@ -14,37 +14,88 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiSsid;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.core.content.ContextCompat;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import cz.mamstylcendy.cards.BuildConfig;
 import cz.mamstylcendy.cards.CardsApplication;
+import cz.mamstylcendy.cards.data.CardsPreferences;
 import cz.mamstylcendy.cards.data.ConfigManager;
+import cz.mamstylcendy.cards.data.PersonalCardStore;
+import cz.mamstylcendy.cards.data.SsidIndex;
 import cz.mamstylcendy.cards.util.AbstractListenerTarget;
 import cz.spojenka.android.system.PermissionRequestHelper;
-import cz.spojenka.android.util.AsyncUtils;
-import cz.spojenka.android.util.CollectionUtils;
 
 public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManager.OnNearbyProviderCallback> {
 
     public static final int SIGNAL_OUT_OF_RANGE = Integer.MIN_VALUE;
 
     private static final String LOG_TAG = WlanFencingManager.class.getSimpleName();
+    private static final boolean DEBUG = BuildConfig.DEBUG;
+
+    private static final long UPDATE_COALESCING_WINDOW_MILLIS = 250;
+    private static final long SIGNAL_STATE_EXPIRY_MILLIS = 10 * 60 * 1000;
+    private static final long NOT_ABSENT = -1;
+    private static final byte[] EMPTY_SSID = new byte[0];
+
+    /**
+     * Maximum number of APs in {@link ProviderAPInfo#transitiveClosureAPs()}. Out-of-range APs carried over
+     * from previous detections are dropped beyond this, so that the closure does not grow without limit in large venues.
+     */
+    private static final int MAX_CLOSURE_APS = 64;
+
+    /**
+     * Maximum number of providers reported by {@link #getNearbyProviders()}.
+     */
+    public static final int MAX_NEARBY_PROVIDERS = 4;
+    private static final int FAVOURITE_BONUS_DB = 10;
+    private static final int PERSONAL_CARD_BONUS_DB = 5;
+    /**
+     * Bonus of providers that are already ranked, so that providers of similar strength do not swap places with every scan.
+     */
+    private static final int RANKED_BONUS_DB = 3;
+    private static final Comparator<NearbyProvider> NEARBY_PROVIDER_ORDER = Comparator
+            .comparingInt(NearbyProvider::score)
+            .thenComparing(NearbyProvider::provider, Comparator.reverseOrder());
+
+    /**
+     * Minimum advance of {@link #lastKnownSeenMillis} before it is persisted again.
+     */
+    private static final long LAST_KNOWN_SEEN_PERSIST_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final String SCAN_TRACE_FILE_NAME = "scan_trace.bin";
+    private static final long MAX_SCAN_TRACE_BYTES = 8 * 1024 * 1024;
 
     private final Context context;
     private final ConnectivityManager connectivityManager;
     private final WifiManager wifiManager;
     private final ConfigManager config;
+    private final CardsPreferences prefs;
+    private final PersonalCardStore personalCards;
+    private final BeaconStats stats;
 
     private boolean registered = false;
 
@@ -52,16 +103,56 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
 
     private final ReceiverImpl receiverImpl;
 
+    private final ScanBuffer scanBuffer = new ScanBuffer();
+    private final BssidFingerprintStore fingerprints;
+    private ScanTrace.Writer traceWriter;
+
+    private SignalFilter signalFilter;
+    private String pendingProvider;
+    private long pendingSince;
+    private long absentSince = NOT_ABSENT;
+    private long lastPresentMillis = NOT_ABSENT;
+    private int strongestKnownSignal = SIGNAL_OUT_OF_RANGE;
+
+    private final ScanBudget scanBudget = new ScanBudget();
+    private long newestScanResultMillis = ScanBudget.NEVER;
+    /**
+     * Time a known AP was last seen, on the monotonic clock. It is persisted, so that the scan budget
+     * of a process started in the background knows whether a store was nearby before.
+     */
+    private long lastKnownSeenMillis;
+    private long persistedLastKnownSeenMillis;
+
+    private final Map<String, Integer> strongestByProvider = new HashMap<>();
+    private List<NearbyProvider> nearbyProviders = List.of();
+
+    private final Handler wlanHandler;
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+    private final Runnable coalescedUpdate = () -> {
+        updatePending.set(false);
+        update();
+    };
+
     private final ConnectivityManager.NetworkCallback networkCallback;
     private WifiInfo wifiInfoFromCallback;
     private Network wifiInfoSourceNetwork;
     private boolean isDoneInitialScan = false;
 
-    public WlanFencingManager(Context context, ConfigManager config) {
+    public WlanFencingManager(Context context, ConfigManager config, CardsPreferences prefs, PersonalCardStore personalCards, BeaconStats stats) {
         this.context = context;
         this.connectivityManager = context.getSystemService(ConnectivityManager.class);
         this.wifiManager = context.getSystemService(WifiManager.class);
         this.config = config;
+        this.prefs = prefs;
+        this.personalCards = personalCards;
+        this.stats = stats;
+        this.fingerprints = new BssidFingerprintStore(context);
+        this.lastKnownSeenMillis = restoreLastKnownSeen();
+        this.persistedLastKnownSeenMillis = lastKnownSeenMillis;
+
+        HandlerThread wlanThread = new HandlerThread("WlanFencing");
+        wlanThread.start();
+        wlanHandler = new Handler(wlanThread.getLooper());
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             receiverImpl = new Api30Impl();
@@ -81,7 +172,7 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
                         if (networkCapabilities.getTransportInfo() instanceof WifiInfo wi) {
                             wifiInfoFromCallback = wi;
                             wifiInfoSourceNetwork = network;
-                            update();
+                            requestUpdate();
                         }
                     }
                 }
@@ -91,7 +182,7 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
                     if (Objects.equals(network, wifiInfoSourceNetwork)) {
                         wifiInfoFromCallback = null;
                         wifiInfoSourceNetwork = null;
-                        update();
+                        requestUpdate();
                     }
                 }
             };
@@ -105,7 +196,7 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
                     }
                     if (networkCapabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
                         wifiInfoSourceNetwork = network;
-                        update();
+                        requestUpdate();
                     }
                 }
 
@@ -113,7 +204,7 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
                 public void onLost(@NonNull Network network) {
                     if (Objects.equals(network, wifiInfoSourceNetwork)) {
                         wifiInfoSourceNetwork = null;
-                        update();
+                        requestUpdate();
                     }
                 }
             };
@@ -131,6 +222,9 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         if (callIfCurrent && currentAPInfo != null) {
             callback.providerNearby(currentAPInfo);
         }
+        if (callIfCurrent && !nearbyProviders.isEmpty()) {
+            callback.nearbyProvidersChanged(nearbyProviders);
+        }
     }
 
     public synchronized void unregisterOnNearbyProviderCallback(OnNearbyProviderCallback callback) {
@@ -142,15 +236,23 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
 
     private void invokeOnNearbyProviderCallbacks(ProviderAPInfo provider) {
         Log.d(LOG_TAG, "Provider nearby: " + provider + ", callback count=" + getListenerCount());
+        stats.count(BeaconStats.Counter.LISTENER_DISPATCHES, getListenerCount());
         invokeListeners(cb -> cb.providerNearby(provider));
     }
 
     private void invokeOnProviderLostCallback(ProviderAPInfo provider) {
         Log.d(LOG_TAG, "Provider lost: " + provider + ", callback count=" + getListenerCount());
+        stats.count(BeaconStats.Counter.LISTENER_DISPATCHES, getListenerCount());
         invokeListeners(cb -> cb.providerLost(provider));
     }
 
+    private void invokeNearbyProvidersCallback(List<NearbyProvider> providers) {
+        stats.count(BeaconStats.Counter.LISTENER_DISPATCHES, getListenerCount());
+        invokeListeners(cb -> cb.nearbyProvidersChanged(providers));
+    }
+
     private void invokeNoProviderCallback() {
+        stats.count(BeaconStats.Counter.LISTENER_DISPATCHES, getListenerCount());
         invokeListeners(OnNearbyProviderCallback::noProvider);
     }
 
@@ -179,7 +281,11 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
             return;
         }
         receiverImpl.register();
-        connectivityManager.registerDefaultNetworkCallback(networkCallback);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            connectivityManager.registerDefaultNetworkCallback(networkCallback, wlanHandler);
+        } else {
+            connectivityManager.registerDefaultNetworkCallback(networkCallback);
+        }
         registered = true;
     }
 
@@ -189,6 +295,8 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         }
         connectivityManager.unregisterNetworkCallback(networkCallback);
         receiverImpl.unregister();
+        wlanHandler.removeCallbacks(coalescedUpdate);
+        updatePending.set(false);
         registered = false;
     }
 
@@ -196,13 +304,36 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         return Build.VERSION.SDK_INT < Build.VERSION_CODES.Q;
     }
 
+    /**
+     * Request a WLAN scan, if it is worth it. While the cached results are fresh, they are evaluated instead.
+     * Scans that would be throttled by the OS are skipped, and so are scans in the background
+     * unless a known store has been nearby recently.
+     */
     @SuppressWarnings("deprecation")
     public synchronized void performExplicitScan() {
         if (!holdsNeededPermissions()) {
             return;
         }
+        stats.count(BeaconStats.Counter.SCANS_REQUESTED);
+        ScanBudget.Decision decision = scanBudget.request(
+                SystemClock.elapsedRealtime(),
+                newestScanResultMillis,
+                CardsApplication.isAppInForeground(),
+                lastKnownSeenMillis
+        );
+        if (decision != ScanBudget.Decision.GRANTED) {
+            Log.d(LOG_TAG, "Explicit WLAN scan skipped: " + decision);
+            stats.count(BeaconStats.Counter.SCANS_SKIPPED);
+            if (decision == ScanBudget.Decision.SKIPPED_FRESH) {
+                requestUpdate();
+            }
+            return;
+        }
         Log.d(LOG_TAG, "Performing explicit WLAN scan");
-        wifiManager.startScan();
+        stats.count(BeaconStats.Counter.SCANS_GRANTED);
+        if (!wifiManager.startScan()) {
+            Log.w(LOG_TAG, "Explicit WLAN scan rejected by the system");
+        }
     }
 
     public synchronized boolean isCurrent(String provider) {
@@ -213,7 +344,82 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         return !CardsApplication.isAppInForeground() && !canWorkInBackground();
     }
 
-    public synchronized ProviderAPInfo update() {
+    /**
+     * Request a re-evaluation of nearby providers on the WLAN thread. Requests arriving within
+     * a short window are merged into a single evaluation.
+     */
+    public void requestUpdate() {
+        if (updatePending.compareAndSet(false, true)) {
+            wlanHandler.postDelayed(coalescedUpdate, UPDATE_COALESCING_WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Evaluate nearby providers immediately and notify listeners. The evaluation runs on the WLAN thread,
+     * the calling thread waits for it, so that transitions reach the listeners in the order they were evaluated in.
+     * Prefer {@link #requestUpdate()} unless the result is needed right away.
+     *
+     * @return The current provider, or null if there is none
+     */
+    public ProviderAPInfo update() {
+        return update(false);
+    }
+
+    /**
+     * Evaluate nearby providers immediately, as in {@link #update()}.
+     *
+     * @param skipEnterDwell Detect a provider on the first scan that sees it above the enter threshold.
+     *                       For callers that only get single scans far apart, like the background worker,
+     *                       whose process may not live long enough to see the enter dwell time pass.
+     * @return The current provider, or null if there is none
+     */
+    public ProviderAPInfo update(boolean skipEnterDwell) {
+        if (wlanHandler.getLooper().isCurrentThread()) {
+            return updateOnWlanThread(skipEnterDwell);
+        }
+        FutureTask<ProviderAPInfo> task = new FutureTask<>(() -> updateOnWlanThread(skipEnterDwell));
+        if (!wlanHandler.post(task)) {
+            Log.w(LOG_TAG, "WLAN thread is not running, skipping update");
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private ProviderAPInfo updateOnWlanThread(boolean skipEnterDwell) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        ProviderTransition transition = evaluate(skipEnterDwell);
+        stats.count(BeaconStats.Counter.UPDATES);
+        stats.time(BeaconStats.Timer.UPDATE, SystemClock.elapsedRealtimeNanos() - startNanos);
+        if (transition == null) {
+            return null;
+        }
+        //listeners are called outside of the lock so that they can not stall the next evaluation
+        if (transition.lost() != null) {
+            invokeOnProviderLostCallback(transition.lost());
+        }
+        if (transition.nearby() != null) {
+            invokeOnNearbyProviderCallbacks(transition.nearby());
+        }
+        if (transition.none()) {
+            invokeNoProviderCallback();
+        }
+        if (transition.nearbyProviders() != null) {
+            invokeNearbyProvidersCallback(transition.nearbyProviders());
+        }
+        return transition.current();
+    }
+
+    private synchronized ProviderTransition evaluate(boolean skipEnterDwell) {
         if (!holdsNeededPermissions()) {
             return null;
         }
@@ -221,68 +427,332 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
             return null;
         }
         try {
-            List<WlanAPInfo> lastScanResults = wifiManager.getScanResults()
-                    .stream().map(WlanAPInfo::new)
-                    .collect(Collectors.toList());
+            ScanBuffer scan = scanBuffer;
+            scan.clear();
+            List<ScanResult> scanResults = wifiManager.getScanResults();
+            long newestResultMicros = Long.MIN_VALUE;
+            for (int i = 0; i < scanResults.size(); i++) {
+                ScanResult result = scanResults.get(i);
+                addScanResult(scan, result);
+                newestResultMicros = Math.max(newestResultMicros, result.timestamp);
+            }
+            long elapsedRealtime = SystemClock.elapsedRealtime();
+            if (!scanResults.isEmpty()) {
+                //scan result timestamps are in microseconds since boot
+                newestScanResultMillis = newestResultMicros / 1000;
+                scan.setTimestamp(newestScanResultMillis);
+            } else {
+                scan.setTimestamp(elapsedRealtime);
+            }
 
-            if (!lastScanResults.isEmpty()) {
+            stats.count(BeaconStats.Counter.SCAN_RESULTS, scan.size());
+            if (!scan.isEmpty()) {
                 //force initial scan done if OS was able to return some results from scans not initiated by this app
                 isDoneInitialScan = true;
             }
 
-            WlanAPInfo connectedResult = createCurrentNetworkPlaceholderResult();
-            if (connectedResult != null) {
-                Log.d(LOG_TAG, "Active WLAN: " + connectedResult);
-                implantResult(lastScanResults, connectedResult);
+            long wallTime = System.currentTimeMillis();
+            WifiInfo wi = getCurrentWifiInfo();
+            recordFrame(elapsedRealtime, wallTime, scan, wi);
+
+            if (wi != null) {
+                if (DEBUG) {
+                    Log.d(LOG_TAG, "Active WLAN: " + wi.getBSSID() + " " + wi.getSSID() + " " + wi.getRssi());
+                }
+                scan.addIfAbsent(wi.getBSSID(), wi.getSSID(), wi.getRssi());
             }
 
-            Log.d(LOG_TAG, "Received " + lastScanResults.size() + " scan results");
-            for (var result : lastScanResults) {
-                Log.d(LOG_TAG, "SSID: " + result.ssid() + ", Level: " + result.signal());
+            if (DEBUG) {
+                Log.d(LOG_TAG, "Received " + scan.size() + " scan results");
+                for (int i = 0; i < scan.size(); i++) {
+                    Log.d(LOG_TAG, "SSID: " + scan.ssid(i) + ", Level: " + scan.signal(i));
+                }
             }
-            Optional<WlanAPInfo> nearest = getNearestKnownWlan(lastScanResults);
 
-            if (nearest.isPresent()) {
-                WlanAPInfo nearestScanResult = nearest.get();
-                String ssid = nearest.get().ssid();
-                Log.d(LOG_TAG, "Nearest known WLAN: " + ssid);
+            long enterDwellMillis = skipEnterDwell ? 0 : prefs.getWlanEnterDwellSeconds() * 1000L;
+            return evaluateScan(scan, elapsedRealtime, wallTime, enterDwellMillis);
+        } catch (SecurityException ex) {
+            Log.e(LOG_TAG, "Failed to get scan results due to missing permissions (unexpected)", ex);
+        }
+        return new ProviderTransition(currentAPInfo, null, null, false);
+    }
 
-                ProviderAPInfo newAPInfo = new ProviderAPInfo(
-                        nearestScanResult,
-                        getSameSSIDAPs(lastScanResults, ssid),
-                        Objects.requireNonNull(config.getProviderForWlan(ssid))
-                );
-                ProviderAPInfo previousAPInfo = currentAPInfo;
-                if (currentAPInfo != null && newAPInfo.transitiveMatches(currentAPInfo)) {
-                    newAPInfo = newAPInfo.mergeFrom(currentAPInfo);
-                }
-                currentAPInfo = newAPInfo;
+    /**
+     * Update the current provider from a scan. This is separate from reading the scan from the system,
+     * so that recorded {@link ScanTrace scan traces} can be fed through the same logic.
+     *
+     * @param scan                  The scanned APs, including the connected AP
+     * @param elapsedRealtimeMillis Time of the scan on the monotonic clock
+     * @param wallTimeMillis        Time of the scan in milliseconds since the epoch
+     * @return The resulting transition
+     */
+    synchronized ProviderTransition evaluateScan(ScanBuffer scan, long elapsedRealtimeMillis, long wallTimeMillis) {
+        return evaluateScan(scan, elapsedRealtimeMillis, wallTimeMillis, prefs.getWlanEnterDwellSeconds() * 1000L);
+    }
+
+    private synchronized ProviderTransition evaluateScan(ScanBuffer scan, long elapsedRealtimeMillis, long wallTimeMillis, long enterDwellMillis) {
+        strongestByProvider.clear();
+        boolean anyKnown = markKnownAPs(scan, wallTimeMillis);
+        if (anyKnown) {
+            updateLastKnownSeen(elapsedRealtimeMillis, wallTimeMillis);
+        }
+        ProviderTransition transition;
+        if (!anyKnown && currentAPInfo == null) {
+            pendingProvider = null;
+            transition = ProviderTransition.NO_PROVIDER;
+        } else {
+            transition = evaluateKnownAPs(scan, elapsedRealtimeMillis, wallTimeMillis, enterDwellMillis);
+        }
 
-                if (previousAPInfo == null || !newAPInfo.apSetMatches(previousAPInfo)) {
-                    Log.d(LOG_TAG, "WLAN changed, new provider: " + currentAPInfo);
+        List<NearbyProvider> ranking = rankNearbyProviders(scan);
+        boolean changed = !hasSameProviders(ranking, nearbyProviders);
+        //keep the fresh signal levels even if the order has not changed
+        nearbyProviders = ranking;
+        return changed ? transition.withNearbyProviders(ranking) : transition;
+    }
+
+    private void updateLastKnownSeen(long elapsedRealtimeMillis, long wallTimeMillis) {
+        lastKnownSeenMillis = elapsedRealtimeMillis;
+        if (persistedLastKnownSeenMillis == ScanBudget.NEVER
+                || elapsedRealtimeMillis - persistedLastKnownSeenMillis >= LAST_KNOWN_SEEN_PERSIST_INTERVAL_MILLIS) {
+            persistedLastKnownSeenMillis = elapsedRealtimeMillis;
+            prefs.putWlanLastKnownSeenTime(wallTimeMillis);
+        }
+    }
+
+    /**
+     * Convert the persisted wall clock time a known AP was last seen to the monotonic clock.
+     *
+     * @return The time, or {@link ScanBudget#NEVER} if it was never seen or not since the device booted
+     */
+    private long restoreLastKnownSeen() {
+        long seenAt = prefs.getWlanLastKnownSeenTime();
+        if (seenAt == 0) {
+            return ScanBudget.NEVER;
+        }
+        long age = System.currentTimeMillis() - seenAt;
+        long elapsedRealtime = SystemClock.elapsedRealtime();
+        if (age < 0 || age > elapsedRealtime) {
+            return ScanBudget.NEVER;
+        }
+        return elapsedRealtime - age;
+    }
 
-                    invokeOnNearbyProviderCallbacks(currentAPInfo);
+    /**
+     * Select the best providers from {@link #strongestByProvider} with a bounded heap.
+     * A provider enters the ranking above the enter threshold and stays in it down to the exit threshold.
+     */
+    private List<NearbyProvider> rankNearbyProviders(ScanBuffer scan) {
+        if (strongestByProvider.isEmpty()) {
+            return List.of();
+        }
+        int enterDbm = prefs.getWlanEnterDbm();
+        List<String> favourites = prefs.getFavouriteProviders();
+        //the weakest ranked provider is at the head, ready to be replaced
+        PriorityQueue<NearbyProvider> heap = new PriorityQueue<>(MAX_NEARBY_PROVIDERS + 1, NEARBY_PROVIDER_ORDER);
+        for (Map.Entry<String, Integer> entry : strongestByProvider.entrySet()) {
+            String provider = entry.getKey();
+            int index = entry.getValue();
+            int signal = scan.filteredSignal(index);
+            boolean ranked = isNearby(provider);
+            if (signal < enterDbm && !ranked) {
+                continue;
+            }
+            int score = signal;
+            if (favourites.contains(provider)) {
+                score += FAVOURITE_BONUS_DB;
+            }
+            if (personalCards.getCardForProvider(provider) != null) {
+                score += PERSONAL_CARD_BONUS_DB;
+            }
+            if (ranked) {
+                score += RANKED_BONUS_DB;
+            }
+            heap.add(new NearbyProvider(provider, new WlanAPInfo(scan.bssidString(index), scan.ssid(index), signal), score));
+            if (heap.size() > MAX_NEARBY_PROVIDERS) {
+                heap.poll();
+            }
+        }
+        NearbyProvider[] ranking = heap.toArray(new NearbyProvider[0]);
+        Arrays.sort(ranking, NEARBY_PROVIDER_ORDER.reversed());
+        return List.of(ranking);
+    }
+
+    private boolean isNearby(String provider) {
+        for (int i = 0; i < nearbyProviders.size(); i++) {
+            if (nearbyProviders.get(i).provider().equals(provider)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasSameProviders(List<NearbyProvider> a, List<NearbyProvider> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).provider().equals(b.get(i).provider())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void recordFrame(long elapsedRealtime, long wallTime, ScanBuffer scan, WifiInfo wi) {
+        if (!prefs.isWlanTraceRecordingEnabled()) {
+            closeTraceWriter();
+            return;
+        }
+        try {
+            File traceFile = getScanTraceFile();
+            if (traceWriter != null && traceFile.length() > MAX_SCAN_TRACE_BYTES) {
+                closeTraceWriter();
+                File oldTraceFile = new File(traceFile.getPath() + ".old");
+                if (!traceFile.renameTo(oldTraceFile)) {
+                    Log.w(LOG_TAG, "Could not rotate scan trace");
                 }
+            }
+            if (traceWriter == null) {
+                traceWriter = new ScanTrace.Writer(traceFile);
+            }
+            if (wi != null) {
+                traceWriter.writeFrame(elapsedRealtime, wallTime, scan, wi.getBSSID(), wi.getSSID(), wi.getRssi());
             } else {
-                ProviderAPInfo lostProvider = currentAPInfo;
-                currentAPInfo = null;
-                if (lostProvider != null) {
-                    invokeOnProviderLostCallback(lostProvider);
+                traceWriter.writeFrame(elapsedRealtime, wallTime, scan, null, null, 0);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to record scan trace", e);
+            closeTraceWriter();
+        }
+    }
+
+    private void closeTraceWriter() {
+        if (traceWriter != null) {
+            try {
+                traceWriter.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close scan trace", e);
+            }
+            traceWriter = null;
+        }
+    }
+
+    /**
+     * @return The file scan traces are recorded to when enabled in {@link CardsPreferences#isWlanTraceRecordingEnabled()}
+     */
+    public File getScanTraceFile() {
+        return new File(context.getFilesDir(), SCAN_TRACE_FILE_NAME);
+    }
+
+    /**
+     * Decide on the current provider based on the filtered signal levels of known APs.
+     * <p>
+     * A provider is detected once its strongest AP has stayed above the enter threshold for the enter dwell time.
+     * It is then kept as long as any of its APs stays above the lower exit threshold, even if another
+     * provider becomes stronger, and only reported lost after all of them have stayed below it for the exit dwell time.
+     * The absence is taken to have started halfway between the last scan that saw the provider and the first one
+     * that did not, so that with scans further apart than the exit dwell time, the loss is not reported a scan late.
+     */
+    private ProviderTransition evaluateKnownAPs(ScanBuffer scan, long now, long wallTime, long enterDwellMillis) {
+        //cached scan results evaluated again keep the timestamp of their scan, so they are not fed to the filter twice
+        long sampleTime = scan.timestamp() != ScanBuffer.NO_TIMESTAMP ? scan.timestamp() : now;
+        SignalFilter filter = getSignalFilter();
+        filter.forget(now - SIGNAL_STATE_EXPIRY_MILLIS);
+        int enterDbm = prefs.getWlanEnterDbm();
+        int exitDbm = prefs.getWlanExitDbm();
+
+        String currentProvider = currentAPInfo != null ? currentAPInfo.provider() : null;
+        int strongest = -1;
+        int strongestCurrent = -1;
+        for (int k = 0; k < scan.knownCount(); k++) {
+            int i = scan.knownIndex(k);
+            int signal = (int) Math.round(filter.filter(scan.bssid(i), scan.signal(i), sampleTime));
+            scan.setFilteredSignal(i, signal);
+            if (signal >= exitDbm) {
+                Integer providerStrongest = strongestByProvider.get(scan.provider(i));
+                if (providerStrongest == null || signal > scan.filteredSignal(providerStrongest)) {
+                    strongestByProvider.put(scan.provider(i), i);
                 }
-                invokeNoProviderCallback();
             }
-        } catch (SecurityException ex) {
-            Log.e(LOG_TAG, "Failed to get scan results due to missing permissions (unexpected)", ex);
+            if (signal >= exitDbm && scan.provider(i).equals(currentProvider)
+                    && (strongestCurrent == -1 || signal > scan.filteredSignal(strongestCurrent))) {
+                strongestCurrent = i;
+            }
+            if (signal >= enterDbm && (strongest == -1 || signal > scan.filteredSignal(strongest))) {
+                strongest = i;
+            }
         }
-        return getCurrentProviderAP();
+
+        ProviderAPInfo lost = null;
+        if (currentAPInfo != null) {
+            if (strongestCurrent != -1) {
+                absentSince = NOT_ABSENT;
+                lastPresentMillis = sampleTime;
+                return updateCurrentAP(scan, strongestCurrent, null, wallTime);
+            }
+            if (absentSince == NOT_ABSENT) {
+                absentSince = lastPresentMillis != NOT_ABSENT && lastPresentMillis < sampleTime
+                        ? lastPresentMillis + (sampleTime - lastPresentMillis) / 2
+                        : sampleTime;
+            }
+            if (now - absentSince < prefs.getWlanExitDwellSeconds() * 1000L) {
+                Log.d(LOG_TAG, "Provider " + currentProvider + " out of range, not reporting it lost yet");
+                return new ProviderTransition(currentAPInfo, null, null, false);
+            }
+            lost = currentAPInfo;
+            currentAPInfo = null;
+            absentSince = NOT_ABSENT;
+        }
+
+        if (strongest == -1) {
+            pendingProvider = null;
+        } else {
+            String candidate = scan.provider(strongest);
+            if (!candidate.equals(pendingProvider)) {
+                pendingProvider = candidate;
+                pendingSince = now;
+            }
+            if (now - pendingSince >= enterDwellMillis) {
+                pendingProvider = null;
+                lastPresentMillis = sampleTime;
+                return updateCurrentAP(scan, strongest, lost, wallTime);
+            }
+            Log.d(LOG_TAG, "Provider " + candidate + " in range, not reporting it nearby yet");
+        }
+        return lost != null ? new ProviderTransition(null, null, lost, true) : ProviderTransition.NO_PROVIDER;
     }
 
-    private WlanAPInfo createCurrentNetworkPlaceholderResult() {
-        WifiInfo wi = getCurrentWifiInfo();
-        if (wi == null) {
-            return null;
+    private ProviderTransition updateCurrentAP(ScanBuffer scan, int nearest, ProviderAPInfo lost, long wallTime) {
+        String ssid = scan.ssid(nearest);
+        Log.d(LOG_TAG, "Nearest known WLAN: " + ssid);
+
+        ProviderAPInfo newAPInfo = new ProviderAPInfo(
+                new WlanAPInfo(scan.bssidString(nearest), ssid, scan.filteredSignal(nearest)),
+                getSameSSIDAPs(scan, ssid),
+                scan.provider(nearest)
+        );
+        ProviderAPInfo previousAPInfo = currentAPInfo;
+        if (currentAPInfo != null && newAPInfo.transitiveMatches(currentAPInfo)) {
+            newAPInfo = newAPInfo.mergeFrom(currentAPInfo);
         }
-        return new WlanAPInfo(wi.getBSSID(), wi.getSSID(), wi.getRssi());
+        currentAPInfo = newAPInfo;
+
+        if (previousAPInfo == null || !newAPInfo.apSetMatches(previousAPInfo)) {
+            Log.d(LOG_TAG, "WLAN changed, new provider: " + currentAPInfo);
+            fingerprints.learn(currentAPInfo, wallTime);
+
+            return new ProviderTransition(currentAPInfo, currentAPInfo, lost, false);
+        }
+        return new ProviderTransition(currentAPInfo, null, lost, false);
+    }
+
+    private SignalFilter getSignalFilter() {
+        SignalFilter.Type type = prefs.getWlanSignalFilter();
+        if (signalFilter == null || signalFilter.getType() != type) {
+            signalFilter = SignalFilter.create(type);
+        }
+        return signalFilter;
     }
 
     @SuppressWarnings("deprecation")
@@ -313,26 +783,93 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.S;
     }
 
-    private void implantResult(List<WlanAPInfo> results, WlanAPInfo result) {
-        if (results.stream().noneMatch(result2 -> Objects.equals(result2.bssid(), result.bssid()))) {
-            results.add(result);
-        }
-    }
-
     public ProviderAPInfo getCurrentProviderAP() {
         return currentAPInfo;
     }
 
-    private Optional<WlanAPInfo> getNearestKnownWlan(List<WlanAPInfo> scanResults) {
-        return scanResults.stream()
-                .filter(scanResult -> config.isWlanCompatible(scanResult.ssid()))
-                .max((o1, o2) -> WifiManager.compareSignalLevel(o1.signal(), o2.signal()));
+    /**
+     * @return The strongest signal level of any known AP in the last evaluated scan,
+     * regardless of whether its provider was reported, or {@link #SIGNAL_OUT_OF_RANGE} if there was none
+     */
+    public synchronized int getStrongestKnownSignal() {
+        return strongestKnownSignal;
+    }
+
+    /**
+     * Get the providers in range, ranked by the signal level of their strongest AP,
+     * preferring favourite providers and providers the user has a personal card for.
+     *
+     * @return At most {@link #MAX_NEARBY_PROVIDERS} providers, best first
+     */
+    public synchronized List<NearbyProvider> getNearbyProviders() {
+        return nearbyProviders;
     }
 
-    private Set<WlanAPInfo> getSameSSIDAPs(List<WlanAPInfo> scanResults, String ssid) {
-        return scanResults.stream()
-                .filter(scanResult -> Objects.equals(scanResult.ssid(), ssid))
-                .collect(Collectors.toSet());
+    /**
+     * Mark all APs of known providers in a scan. APs learned by the fingerprint store are recognised
+     * by their BSSID, the others by their SSID.
+     *
+     * @return True if there is at least one known AP
+     */
+    private boolean markKnownAPs(ScanBuffer scan, long now) {
+        SsidIndex ssidIndex = config.getSsidIndex();
+        int strongest = SIGNAL_OUT_OF_RANGE;
+        for (int i = 0; i < scan.size(); i++) {
+            String provider = fingerprints.findProvider(scan.bssid(i), now);
+            if (provider == null || !config.getCurrentConfig().cardData().containsKey(provider)) {
+                byte[] rawSsid = scan.rawSsid(i);
+                provider = rawSsid != null ? ssidIndex.findProvider(rawSsid) : ssidIndex.findProvider(scan.ssid(i));
+            }
+            if (provider != null) {
+                scan.markKnown(i, provider);
+                strongest = Math.max(strongest, scan.signal(i));
+            }
+        }
+        strongestKnownSignal = strongest;
+        return scan.knownCount() > 0;
+    }
+
+    /**
+     * Get the APs broadcasting an SSID, with one entry per {@link ScanBuffer#physicalApKey(long) physical AP},
+     * represented by its strongest BSSID.
+     */
+    private static Set<WlanAPInfo> getSameSSIDAPs(ScanBuffer scan, String ssid) {
+        //APs with the same SSID are known as well, so there is no need to go through the whole scan again
+        Map<Long, Integer> strongestByAP = new HashMap<>();
+        Set<WlanAPInfo> result = new HashSet<>();
+        for (int i = 0; i < scan.knownCount(); i++) {
+            int index = scan.knownIndex(i);
+            if (!Objects.equals(scan.ssid(index), ssid)) {
+                continue;
+            }
+            long apKey = ScanBuffer.physicalApKey(scan.bssid(index));
+            if (apKey == ScanBuffer.NO_BSSID) {
+                result.add(new WlanAPInfo(scan.bssidString(index), ssid, scan.filteredSignal(index)));
+                continue;
+            }
+            Integer strongest = strongestByAP.get(apKey);
+            if (strongest == null || scan.filteredSignal(index) > scan.filteredSignal(strongest)) {
+                strongestByAP.put(apKey, index);
+            }
+        }
+        for (int index : strongestByAP.values()) {
+            result.add(new WlanAPInfo(scan.bssidString(index), ssid, scan.filteredSignal(index)));
+        }
+        return result;
+    }
+
+    /**
+     * Add a scan result to a scan buffer. On Android 13 and newer, the SSID is added as raw bytes, which are looked up
+     * without converting them to a string.
+     */
+    @SuppressWarnings("deprecation")
+    private static void addScanResult(ScanBuffer scan, ScanResult result) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            WifiSsid wifiSsid = result.getWifiSsid();
+            scan.add(result.BSSID, wifiSsid != null ? wifiSsid.getBytes() : EMPTY_SSID, result.level);
+        } else {
+            scan.add(result.BSSID, result.SSID != null ? result.SSID : "", result.level);
+        }
     }
 
     @SuppressWarnings("deprecation")
@@ -347,6 +884,28 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         return ssid != null ? ssid : "";
     }
 
+    /**
+     * @param nearbyProviders The new ranking of nearby providers, or null if it has not changed
+     */
+    static record ProviderTransition(
+            ProviderAPInfo current,
+            ProviderAPInfo nearby,
+            ProviderAPInfo lost,
+            boolean none,
+            List<NearbyProvider> nearbyProviders
+    ) {
+
+        static final ProviderTransition NO_PROVIDER = new ProviderTransition(null, null, null, true);
+
+        ProviderTransition(ProviderAPInfo current, ProviderAPInfo nearby, ProviderAPInfo lost, boolean none) {
+            this(current, nearby, lost, none, null);
+        }
+
+        ProviderTransition withNearbyProviders(List<NearbyProvider> nearbyProviders) {
+            return new ProviderTransition(current, nearby, lost, none, nearbyProviders);
+        }
+    }
+
     public static interface OnNearbyProviderCallback {
 
         public void providerNearby(ProviderAPInfo provider);
@@ -356,6 +915,27 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         public default void noProvider() {
 
         }
+
+        /**
+         * Called when the set or order of providers in {@link #getNearbyProviders()} changes.
+         *
+         * @param providers The nearby providers, best first, possibly empty
+         */
+        public default void nearbyProvidersChanged(List<NearbyProvider> providers) {
+
+        }
+    }
+
+    /**
+     * @param provider    The provider ID
+     * @param strongestAP The strongest AP of the provider, with the filtered signal level
+     * @param score       The ranking score, i.e. the signal level in dBm raised by preference bonuses
+     */
+    public static record NearbyProvider(
+            String provider,
+            WlanAPInfo strongestAP,
+            int score
+    ) {
     }
 
     public static record ProviderAPInfo(
@@ -370,25 +950,58 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
                     .collect(Collectors.toSet());
         }
 
+        /**
+         * @return The {@link ScanBuffer#physicalApKey(long) physical AP keys} of {@link #transitiveClosureAPs()}, sorted and deduplicated
+         */
+        private long[] getPhysicalAPKeys() {
+            long[] packed = new long[transitiveClosureAPs().size()];
+            int count = 0;
+            for (WlanAPInfo ap : transitiveClosureAPs()) {
+                packed[count++] = ScanBuffer.physicalApKey(ScanBuffer.packBssid(ap.bssid()));
+            }
+            Arrays.sort(packed);
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique == 0 || packed[unique - 1] != packed[i]) {
+                    packed[unique++] = packed[i];
+                }
+            }
+            return unique == count ? packed : Arrays.copyOf(packed, unique);
+        }
+
         public boolean transitiveMatches(ProviderAPInfo other) {
             if (!Objects.equals(provider(), other.provider())) {
                 return false;
             }
-            return CollectionUtils.setIntersects(getBSSIDClosure(), other.getBSSIDClosure());
+            long[] a = getPhysicalAPKeys();
+            long[] b = other.getPhysicalAPKeys();
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] == b[j]) {
+                    return true;
+                } else if (a[i] < b[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return false;
         }
 
         public boolean apSetMatches(ProviderAPInfo other) {
             if (!Objects.equals(provider(), other.provider())) {
                 return false;
             }
-            return CollectionUtils.setEquals(getBSSIDClosure(), other.getBSSIDClosure());
+            return Arrays.equals(getPhysicalAPKeys(), other.getPhysicalAPKeys());
         }
 
         public ProviderAPInfo mergeFrom(ProviderAPInfo other) {
-            Set<String> myBSSIDs = getBSSIDClosure();
+            long[] myAPs = getPhysicalAPKeys();
             Set<WlanAPInfo> aps = new HashSet<>(transitiveClosureAPs());
             for (WlanAPInfo ap : other.transitiveClosureAPs()) {
-                if (!myBSSIDs.contains(ap.bssid())) {
+                if (aps.size() >= MAX_CLOSURE_APS) {
+                    break;
+                }
+                if (Arrays.binarySearch(myAPs, ScanBuffer.physicalApKey(ScanBuffer.packBssid(ap.bssid()))) < 0) {
                     aps.add(new WlanAPInfo(
                             ap.bssid(),
                             ap.ssid(),
@@ -414,14 +1027,14 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
             @Override
             public void onScanResultsAvailable() {
                 isDoneInitialScan = true;
-                update();
+                requestUpdate();
             }
         };
 
         @Override
         public void register() {
             Log.d(LOG_TAG, "Registering scan results callback for Android >=R");
-            wifiManager.registerScanResultsCallback(AsyncUtils.getMainThreadExecutor(), callback);
+            wifiManager.registerScanResultsCallback(wlanHandler::post, callback);
         }
 
         @Override
@@ -437,7 +1050,7 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
             public void onReceive(Context context, Intent intent) {
                 if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(intent.getAction())) {
                     isDoneInitialScan = true;
-                    update();
+                    requestUpdate();
                 }
             }
         };
@@ -445,7 +1058,7 @@ public class WlanFencingManager extends AbstractListenerTarget<WlanFencingManage
         @Override
         public void register() {
             Log.d(LOG_TAG, "Registering scan results receiver for Android <=Q");
-            context.registerReceiver(receiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+            context.registerReceiver(receiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION), null, wlanHandler);
         }
 
         @Override
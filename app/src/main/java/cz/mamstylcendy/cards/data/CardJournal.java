@@ -0,0 +1,680 @@
+package cz.mamstylcendy.cards.data;
+
+import android.util.Log;
+
+import com.google.zxing.BarcodeFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the personal card list.
+ * <p>
+ * Every change of the list is appended as one record, so the cost of a change does not depend on the number of cards.
+ * Records address cards by their position in the list. Each record carries a CRC, and loading stops at the first
+ * record that is truncated or damaged, which is what a crash in the middle of an append leaves behind;
+ * the file is then cut back to the last intact record. A journal that cannot be read because of an I/O error
+ * is left as it is. Once the journal has grown well past the size of the list,
+ * it is compacted on a background thread into one {@link #TYPE_ADD} record per card.
+ * <p>
+ * Records are written behind: they are kept in memory for {@link #WRITE_DELAY_MILLIS} and then written together.
+ * While a record is pending, it may be merged with the next one; consecutive moves of a dragged card become one
+ * order key change, and repeated renames of a card keep only the last name.
+ */
+class CardJournal {
+
+    private static final String LOG_TAG = CardJournal.class.getSimpleName();
+
+    private static final int MAGIC = 0x4B434A4C; // "KCJL"
+    private static final int VERSION = 2;
+    /**
+     * Version without order keys, which are then assigned by {@link PersonalCardStore} after loading.
+     */
+    private static final int VERSION_WITHOUT_ORDER_KEYS = 1;
+    private static final int HEADER_SIZE = 4 * 2;
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+
+    private static final byte TYPE_NONE = 0;
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_RENAME = 3;
+    /**
+     * Move by positions, only written by {@link #VERSION_WITHOUT_ORDER_KEYS}.
+     */
+    private static final byte TYPE_MOVE = 4;
+    private static final byte TYPE_REORDER = 5;
+
+    private static final int MAX_RECORD_SIZE = 256 * 1024;
+
+    /**
+     * The journal is compacted once it holds this many times more records than there are cards...
+     */
+    private static final int COMPACTION_RATIO = 2;
+    /**
+     * ...and at least this many records.
+     */
+    private static final int MIN_COMPACTION_RECORDS = 256;
+
+    /**
+     * Time for which appended records are held back, so that a burst of changes is written at once.
+     */
+    private static final long WRITE_DELAY_MILLIS = 500;
+
+    private final File file;
+    /**
+     * Thread that does all writes to the journal, so that appends and compactions never overlap.
+     */
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "CardJournalWriter"));
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Only used on the writer thread.
+     */
+    private FileOutputStream appendStream;
+    /**
+     * Number of records in the journal, including the pending ones.
+     */
+    private int recordCount = 0;
+    /**
+     * Set when the journal on disk may be missing records, so that it has to be rewritten as a whole.
+     */
+    private boolean needsRewrite = false;
+    private boolean compacting = false;
+
+    /**
+     * Records waiting to be written. The last one may still be merged with the next record.
+     */
+    private List<byte[]> pending = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private byte lastPendingType = TYPE_NONE;
+    private int lastPendingFrom;
+    private int lastPendingTo;
+    /**
+     * Order key of the card before the last pending reorder, and the ones merged into it.
+     */
+    private long lastPendingPreviousKey;
+
+    /**
+     * Number of changes journalled, including the ones merged with other records.
+     */
+    private long records = 0;
+    /**
+     * Number of changes that were not written as a record of their own.
+     */
+    private long coalescedRecords = 0;
+    private long writes = 0;
+    private long totalWriteNanos = 0;
+    private long maxWriteNanos = 0;
+    private long compactions = 0;
+
+    CardJournal(File file) {
+        this.file = file;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Replay the journal.
+     *
+     * @return The card list, or null if the file does not even hold a readable header
+     * @throws IOException If the file could not be read. It is not changed then.
+     */
+    synchronized List<PersonalCard> load() throws IOException {
+        List<PersonalCard> cards = new ArrayList<>();
+        recordCount = 0;
+        long validLength;
+        boolean tornTail = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version;
+            try {
+                if (in.readInt() != MAGIC || ((version = in.readInt()) != VERSION && version != VERSION_WITHOUT_ORDER_KEYS)) {
+                    Log.w(LOG_TAG, "Unsupported card journal format");
+                    needsRewrite = true;
+                    return null;
+                }
+            } catch (EOFException e) {
+                Log.w(LOG_TAG, "Card journal has no header");
+                needsRewrite = true;
+                return null;
+            }
+            if (version != VERSION) {
+                //records of the current version cannot be appended, rewrite the journal first
+                needsRewrite = true;
+            }
+            validLength = HEADER_SIZE;
+            byte[] record = new byte[64];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    //the end of the file, or a torn length if there is anything after the last record
+                    tornTail = true;
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    Log.w(LOG_TAG, "Invalid record length " + length + " at offset " + validLength);
+                    tornTail = true;
+                    break;
+                }
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                int storedCrc;
+                try {
+                    in.readFully(record, 0, length);
+                    storedCrc = in.readInt();
+                } catch (EOFException e) {
+                    Log.w(LOG_TAG, "Truncated record at offset " + validLength);
+                    tornTail = true;
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != storedCrc) {
+                    Log.w(LOG_TAG, "Damaged record at offset " + validLength);
+                    tornTail = true;
+                    break;
+                }
+                boolean applied;
+                try {
+                    applied = replay(new DataInputStream(new ByteArrayInputStream(record, 0, length)), cards, version);
+                } catch (IOException e) {
+                    //the record is read from memory, it is only malformed
+                    applied = false;
+                }
+                if (!applied) {
+                    //the record is intact, so the ones after it were not torn either; the list as replayed so far replaces them
+                    Log.w(LOG_TAG, "Inapplicable record at offset " + validLength);
+                    needsRewrite = true;
+                    break;
+                }
+                validLength += 4 + length + 4;
+                recordCount++;
+            }
+        }
+
+        if (tornTail && validLength < file.length()) {
+            //drop the torn tail, so that new records are appended right after the last intact one
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to truncate card journal", e);
+                needsRewrite = true;
+            }
+        }
+        return cards;
+    }
+
+    /**
+     * Move a journal that {@link #load()} could not make sense of aside, so that a new one can be written
+     * without destroying it. A journal moved aside before is replaced.
+     *
+     * @throws IOException If the journal could not be moved
+     */
+    synchronized void moveAside() throws IOException {
+        closeAppendStream();
+        File corruptFile = new File(file.getPath() + CORRUPT_SUFFIX);
+        if (!file.renameTo(corruptFile)) {
+            throw new IOException("Could not move " + file + " aside");
+        }
+        Log.w(LOG_TAG, "Unreadable card journal moved to " + corruptFile);
+    }
+
+    private static boolean replay(DataInputStream in, List<PersonalCard> cards, int version) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_ADD: {
+                int index = in.readInt();
+                PersonalCard card = readCard(in, version);
+                if (index < 0 || index > cards.size()) {
+                    return false;
+                }
+                cards.add(index, card);
+                return true;
+            }
+            case TYPE_REMOVE: {
+                int index = in.readInt();
+                if (index < 0 || index >= cards.size()) {
+                    return false;
+                }
+                cards.remove(index);
+                return true;
+            }
+            case TYPE_RENAME: {
+                int index = in.readInt();
+                String name = readNullableUTF(in);
+                if (index < 0 || index >= cards.size()) {
+                    return false;
+                }
+                cards.get(index).rename(name);
+                return true;
+            }
+            case TYPE_MOVE: {
+                int from = in.readInt();
+                int to = in.readInt();
+                if (from < 0 || from >= cards.size() || to < 0 || to >= cards.size()) {
+                    return false;
+                }
+                cards.add(to, cards.remove(from));
+                return true;
+            }
+            case TYPE_REORDER: {
+                int from = in.readInt();
+                long orderKey = in.readLong();
+                if (from < 0 || from >= cards.size()) {
+                    return false;
+                }
+                PersonalCard card = cards.remove(from);
+                card.setOrderKey(orderKey);
+                cards.add(PersonalCardStore.findInsertionIndex(cards, orderKey), card);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    synchronized void appendAdd(int index, PersonalCard card) {
+        try {
+            beginRecord(TYPE_ADD);
+            recordOut.writeInt(index);
+            writeCard(recordOut, card);
+            appendRecord(TYPE_ADD, index, index);
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    synchronized void appendRemove(int index) {
+        try {
+            beginRecord(TYPE_REMOVE);
+            recordOut.writeInt(index);
+            appendRecord(TYPE_REMOVE, index, index);
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    synchronized void appendRename(int index, String name) {
+        try {
+            if (lastPendingType == TYPE_RENAME && lastPendingFrom == index) {
+                //only the last name matters
+                dropLastPending();
+            }
+            beginRecord(TYPE_RENAME);
+            recordOut.writeInt(index);
+            writeNullableUTF(recordOut, name);
+            appendRecord(TYPE_RENAME, index, index);
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    /**
+     * Append a change of the order key of a card, which moves the card to the position given by the new key.
+     *
+     * @param from        The position of the card before the change
+     * @param to          The position of the card after the change
+     * @param previousKey The order key of the card before the change
+     * @param orderKey    The new order key
+     */
+    synchronized void appendReorder(int from, int to, long previousKey, long orderKey) {
+        try {
+            if (lastPendingType == TYPE_REORDER && lastPendingTo == from) {
+                //the card is being dragged, only the last key matters
+                from = lastPendingFrom;
+                previousKey = lastPendingPreviousKey;
+                dropLastPending();
+            }
+            if (from == to && previousKey == orderKey) {
+                //the card was dragged back to where it started
+                records++;
+                coalescedRecords++;
+                return;
+            }
+            beginRecord(TYPE_REORDER);
+            recordOut.writeInt(from);
+            recordOut.writeLong(orderKey);
+            appendRecord(TYPE_REORDER, from, to);
+            lastPendingPreviousKey = previousKey;
+        } catch (IOException e) {
+            appendFailed(e);
+        }
+    }
+
+    /**
+     * Make the next compaction rewrite the journal, after order keys have been reassigned
+     * or when the journal could not be written as a whole. Nothing is appended until then.
+     */
+    synchronized void requestRewrite() {
+        needsRewrite = true;
+    }
+
+    private void beginRecord(byte type) throws IOException {
+        recordBuffer.reset();
+        recordOut.writeInt(0); //length placeholder
+        recordOut.writeByte(type);
+    }
+
+    private void appendRecord(byte type, int from, int to) throws IOException {
+        pending.add(finishRecord());
+        lastPendingType = type;
+        lastPendingFrom = from;
+        lastPendingTo = to;
+        records++;
+        recordCount++;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(this::writePending, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void dropLastPending() {
+        pending.remove(pending.size() - 1);
+        lastPendingType = TYPE_NONE;
+        recordCount--;
+        coalescedRecords++;
+    }
+
+    /**
+     * Fill in the length of the record in {@link #recordBuffer} and append its CRC.
+     *
+     * @return The framed record
+     */
+    private byte[] finishRecord() throws IOException {
+        int length = recordBuffer.size() - 4;
+        crc.reset();
+        crc.update(recordBuffer.toByteArray(), 4, length);
+        recordOut.writeInt((int) crc.getValue());
+        byte[] frame = recordBuffer.toByteArray();
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    private void appendFailed(IOException e) {
+        Log.e(LOG_TAG, "Failed to append to card journal", e);
+        needsRewrite = true;
+    }
+
+    /**
+     * Write the pending records. Runs on the writer thread.
+     */
+    private void writePending() {
+        List<byte[]> frames;
+        synchronized (this) {
+            flushScheduled = false;
+            if (compacting || needsRewrite || pending.isEmpty()) {
+                //a compaction writes the whole list, including these records
+                return;
+            }
+            if (appendStream == null && file.length() < HEADER_SIZE) {
+                //appending would create a journal without a header, which could never be loaded again
+                Log.w(LOG_TAG, "Card journal is missing, waiting for it to be rewritten");
+                needsRewrite = true;
+                return;
+            }
+            frames = pending;
+            pending = new ArrayList<>();
+            lastPendingType = TYPE_NONE;
+        }
+        long start = System.nanoTime();
+        try {
+            if (appendStream == null) {
+                appendStream = new FileOutputStream(file, true);
+            }
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (byte[] frame : frames) {
+                batch.write(frame);
+            }
+            batch.writeTo(appendStream);
+        } catch (IOException e) {
+            synchronized (this) {
+                appendFailed(e);
+            }
+            closeAppendStream();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            writes++;
+            totalWriteNanos += elapsed;
+            maxWriteNanos = Math.max(maxWriteNanos, elapsed);
+        }
+    }
+
+    /**
+     * Write all pending records now. Blocks until they are written, or until a running compaction has finished.
+     * Must not be called from the writer thread.
+     */
+    void flush() {
+        try {
+            writer.submit(this::writePending).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Failed to flush card journal", e);
+        }
+    }
+
+    private void closeAppendStream() {
+        if (appendStream != null) {
+            try {
+                appendStream.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to close card journal", e);
+            }
+            appendStream = null;
+        }
+    }
+
+    /**
+     * Check whether the journal should be compacted.
+     *
+     * @param cardCount The current number of cards
+     * @return True if {@link #compactInBackground(List)} should be called
+     */
+    synchronized boolean needsCompaction(int cardCount) {
+        if (compacting) {
+            return false;
+        }
+        return needsRewrite || recordCount >= Math.max(MIN_COMPACTION_RECORDS, cardCount * COMPACTION_RATIO);
+    }
+
+    /**
+     * Replace the journal with one record per card, synchronously. Only used before any records are appended.
+     *
+     * @param cards The card list
+     * @throws IOException If the journal could not be written
+     */
+    synchronized void writeSnapshot(List<PersonalCard> cards) throws IOException {
+        File tempFile = getTempFile();
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            BufferedOutputStream out = new BufferedOutputStream(fos);
+            writeSnapshot(out, cards);
+            out.flush();
+            fos.getFD().sync();
+            swapIn(tempFile);
+        } finally {
+            tempFile.delete();
+        }
+        recordCount = cards.size();
+        needsRewrite = false;
+    }
+
+    /**
+     * Compact the journal on the writer thread. The pending records are dropped, as the compacted journal contains
+     * their effects; records appended in the meantime are written after it.
+     *
+     * @param cards The card list at the time the last record was appended. The cards are copied, so they may be
+     *              changed as soon as this returns.
+     */
+    synchronized void compactInBackground(List<PersonalCard> cards) {
+        if (compacting) {
+            return;
+        }
+        //the writer thread must not see changes made after this point, they are appended after the compaction
+        List<PersonalCard> snapshot = new ArrayList<>(cards.size());
+        for (PersonalCard card : cards) {
+            snapshot.add(copyCard(card));
+        }
+        compacting = true;
+        coalescedRecords += pending.size();
+        recordCount = snapshot.size();
+        pending.clear();
+        lastPendingType = TYPE_NONE;
+        writer.execute(() -> compact(snapshot));
+    }
+
+    private static PersonalCard copyCard(PersonalCard card) {
+        PersonalCard.CustomCardProperties custom = card.customProperties();
+        if (custom != null) {
+            custom = new PersonalCard.CustomCardProperties(custom.providerName(), custom.format(), custom.color());
+        }
+        PersonalCard copy = new PersonalCard(card.id(), card.name(), card.provider(), custom, card.cardNumber());
+        copy.setOrderKey(card.orderKey());
+        return copy;
+    }
+
+    private void compact(List<PersonalCard> cards) {
+        long start = System.nanoTime();
+        File tempFile = getTempFile();
+        try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+            BufferedOutputStream out = new BufferedOutputStream(fos);
+            writeSnapshot(out, cards);
+            out.flush();
+            fos.getFD().sync();
+            swapIn(tempFile);
+            synchronized (this) {
+                needsRewrite = false;
+                compacting = false;
+                compactions++;
+            }
+            Log.d(LOG_TAG, "Compacted card journal to " + cards.size() + " records in " + (System.nanoTime() - start) / 1000 + " us");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to compact card journal", e);
+            synchronized (this) {
+                //the dropped pending records are only in the failed snapshot
+                needsRewrite = true;
+                compacting = false;
+            }
+            return;
+        } finally {
+            tempFile.delete();
+        }
+        writePending();
+    }
+
+    synchronized PersonalCardStore.PersistenceStats getPersistenceStats() {
+        return new PersonalCardStore.PersistenceStats(records, coalescedRecords, writes, totalWriteNanos, maxWriteNanos, compactions);
+    }
+
+    private File getTempFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private void swapIn(File tempFile) throws IOException {
+        closeAppendStream();
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Could not move " + tempFile + " into place");
+        }
+    }
+
+    private void writeSnapshot(OutputStream stream, List<PersonalCard> cards) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        //the record buffer is not shared with the appending threads here, use a local one
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        CRC32 snapshotCrc = new CRC32();
+        for (int i = 0; i < cards.size(); i++) {
+            buffer.reset();
+            record.writeByte(TYPE_ADD);
+            record.writeInt(i);
+            writeCard(record, cards.get(i));
+            snapshotCrc.reset();
+            snapshotCrc.update(buffer.toByteArray(), 0, buffer.size());
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            out.writeInt((int) snapshotCrc.getValue());
+        }
+        out.flush();
+    }
+
+    private static void writeCard(DataOutputStream out, PersonalCard card) throws IOException {
+        out.writeInt(card.id());
+        writeNullableUTF(out, card.name());
+        out.writeUTF(card.provider());
+        PersonalCard.CustomCardProperties custom = card.customProperties();
+        out.writeBoolean(custom != null);
+        if (custom != null) {
+            writeNullableUTF(out, custom.providerName());
+            writeNullableUTF(out, custom.format() != null ? custom.format().name() : null);
+            out.writeInt(custom.color());
+        }
+        out.writeUTF(card.cardNumber());
+        out.writeLong(card.orderKey());
+    }
+
+    private static PersonalCard readCard(DataInputStream in, int version) throws IOException {
+        int id = in.readInt();
+        String name = readNullableUTF(in);
+        String provider = in.readUTF();
+        PersonalCard.CustomCardProperties custom = null;
+        if (in.readBoolean()) {
+            String providerName = readNullableUTF(in);
+            String formatName = readNullableUTF(in);
+            BarcodeFormat format;
+            try {
+                format = formatName != null ? BarcodeFormat.valueOf(formatName) : null;
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown barcode format " + formatName);
+            }
+            custom = new PersonalCard.CustomCardProperties(providerName, format, in.readInt());
+        }
+        String cardNumber = in.readUTF();
+        PersonalCard card = new PersonalCard(id, name, provider, custom, cardNumber);
+        if (version != VERSION_WITHOUT_ORDER_KEYS) {
+            card.setOrderKey(in.readLong());
+        }
+        return card;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
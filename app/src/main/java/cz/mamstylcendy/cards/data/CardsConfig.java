@@ -16,14 +16,17 @@ public class CardsConfig {
     //bug: records are broken on Android+Jackson when using R8
 
     private final Map<String, String> wlanMappings;
+    private final LinkedHashMap<String, String> wlanPatterns;
     private final LinkedHashMap<String, ProviderInfo> cardData;
 
     @JsonCreator
     public CardsConfig(
             @JsonProperty("wlanMappings") Map<String, String> wlanMappings,
+            @JsonProperty("wlanPatterns") LinkedHashMap<String, String> wlanPatterns,
             @JsonProperty("cardData") LinkedHashMap<String, ProviderInfo> cardData
     ) {
         this.wlanMappings = wlanMappings;
+        this.wlanPatterns = wlanPatterns != null ? wlanPatterns : new LinkedHashMap<>();
         this.cardData = cardData;
     }
 
@@ -32,6 +35,15 @@ public class CardsConfig {
         return wlanMappings;
     }
 
+    /**
+     * SSID glob patterns mapped to provider IDs, see {@link SsidPatternMatcher}. Exact
+     * {@link #wlanMappings()} take precedence, patterns are tried in declaration order.
+     */
+    @JsonProperty("wlanPatterns")
+    public LinkedHashMap<String, String> wlanPatterns() {
+        return wlanPatterns;
+    }
+
     @JsonProperty("cardData")
     public LinkedHashMap<String, ProviderInfo> cardData() {
         return cardData;
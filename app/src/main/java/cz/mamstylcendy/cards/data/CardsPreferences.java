@@ -4,21 +4,17 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import cz.mamstylcendy.cards.beacon.WlanFencingManager;
-import cz.spojenka.android.util.CollectionUtils;
+import cz.mamstylcendy.cards.beacon.SignalFilter;
 
 public class CardsPreferences {
 
-    private static final int AP_CONTINUITY_DROPOUT_MAX_SECONDS = 90;
-
     private static final String PK_WLAN_AUTO_DETECT = "wlan_auto_detect";
     private static final String PK_NOTIFICATION_ENABLED = "notification_enabled";
     private static final String PK_NOTIFICATION_NAG_DISABLED = "notification_nag_disabled";
@@ -27,20 +23,50 @@ public class CardsPreferences {
     private static final String PK_LAST_CONNECTED_TS = "last_connected_ts";
     private static final String PK_LAST_CONNECTION_LOST_TS = "last_connection_lost_ts";
     private static final String PK_BACKGROUND_CHECK_INTERVAL = "background_check_interval";
+    private static final String PK_BACKGROUND_QUIET_CHECKS = "background_quiet_checks";
+    private static final String PK_BACKGROUND_WAKEUP_DAY = "background_wakeup_day";
+    private static final String PK_BACKGROUND_WAKEUP_COUNT = "background_wakeup_count";
+    private static final String PK_BACKGROUND_DAILY_WAKEUP_BUDGET = "background_daily_wakeup_budget";
     private static final String PK_LAST_REMOTE_UPDATE = "last_remote_update";
     private static final String PK_LAST_REMOTE_ETAG = "last_remote_etag";
+    private static final String PK_LAST_REMOTE_LAST_MODIFIED = "last_remote_last_modified";
     private static final String PK_MIN_WLAN_DBM = "min_wlan_dbm";
+    private static final String PK_WLAN_SIGNAL_FILTER = "wlan_signal_filter";
+    private static final String PK_WLAN_ENTER_DBM = "wlan_enter_dbm";
+    private static final String PK_WLAN_EXIT_DBM = "wlan_exit_dbm";
+    private static final String PK_WLAN_ENTER_DWELL_SECONDS = "wlan_enter_dwell_seconds";
+    private static final String PK_WLAN_EXIT_DWELL_SECONDS = "wlan_exit_dwell_seconds";
+    private static final String PK_WLAN_TRACE_RECORDING = "wlan_trace_recording";
+    private static final String PK_WLAN_LAST_KNOWN_SEEN = "wlan_last_known_seen";
     private static final String PK_FAVOURITE_PROVIDERS = "favourite_providers";
     private static final String PK_CARD_BLACKLIST_PREFIX = "card_blacklist_";
     private static final String PK_LAST_CARD_LIST_TAB = "last_card_list_tab";
     private static final String PK_BG_LOCATION_PERMISSION_ATTEMPTED = "bg_location_permission_attempted";
 
+    private static final int WLAN_HYSTERESIS_DB = 5;
+
     private final SharedPreferences prefs;
 
     private Map<String, Set<String>> cardBlacklistCache = new HashMap<>();
+    private final List<CardBlacklistListener> cardBlacklistListeners = new CopyOnWriteArrayList<>();
 
     public CardsPreferences(Context context) {
         prefs = context.getSharedPreferences("karticky", android.content.Context.MODE_PRIVATE);
+        removeLegacyNotificationAPInfo();
+    }
+
+    /**
+     * The last notified APs used to be stored here, they are kept in {@link cz.mamstylcendy.cards.beacon.ApClusterStore} now.
+     */
+    private void removeLegacyNotificationAPInfo() {
+        if (prefs.contains(PK_LAST_NOTIFICATION_BSSID_CLOSURE) || prefs.contains(PK_LAST_CONNECTED_TS)) {
+            prefs.edit()
+                    .remove(PK_LAST_NOTIFICATION_PROVIDER)
+                    .remove(PK_LAST_NOTIFICATION_BSSID_CLOSURE)
+                    .remove(PK_LAST_CONNECTED_TS)
+                    .remove(PK_LAST_CONNECTION_LOST_TS)
+                    .apply();
+        }
     }
 
     public SharedPreferences getPrefs() {
@@ -55,77 +81,57 @@ public class CardsPreferences {
         prefs.edit().putBoolean(PK_WLAN_AUTO_DETECT, enabled).apply();
     }
 
-    public String getLastNofificationProvider() {
-        return prefs.getString(PK_LAST_NOTIFICATION_PROVIDER, null);
+    public boolean isBGNotificationEnabled() {
+        return prefs.getBoolean(PK_NOTIFICATION_ENABLED, false);
     }
 
-    private Set<String> getLastNotificationBSSIDClosure() {
-        return prefs.getStringSet(PK_LAST_NOTIFICATION_BSSID_CLOSURE, Set.of());
+    public void putBGNotificationEnabled(boolean enabled) {
+        prefs.edit().putBoolean(PK_NOTIFICATION_ENABLED, enabled).apply();
     }
 
-    public boolean checkLastAPsNeighboring(WlanFencingManager.ProviderAPInfo currentAPs) {
-        Instant now = Instant.now();
-        Instant connectionLostAt = null;
-        Instant connectedAt = null;
-
-        if (prefs.contains(PK_LAST_CONNECTION_LOST_TS)) {
-            connectionLostAt = Instant.ofEpochMilli(prefs.getLong(PK_LAST_CONNECTION_LOST_TS, 0));
-        }
-        if (prefs.contains(PK_LAST_CONNECTED_TS)) {
-            connectedAt = Instant.ofEpochMilli(prefs.getLong(PK_LAST_CONNECTED_TS, 0));
-        }
-
-        if (connectedAt != null) {
-            if (connectionLostAt == null || connectionLostAt.isBefore(connectedAt)) {
-                if (CollectionUtils.setIntersects(getLastNotificationBSSIDClosure(), currentAPs.getBSSIDClosure())) {
-                    return true;
-                }
-            }
-
-            String currentProvider = getLastNofificationProvider();
-            if (Objects.equals(currentProvider, currentAPs.provider())) {
-                return ChronoUnit.SECONDS.between(connectedAt, now) < AP_CONTINUITY_DROPOUT_MAX_SECONDS;
-            }
-        }
+    public int getBackgroundCheckInterval() {
+        return prefs.getInt(PK_BACKGROUND_CHECK_INTERVAL, 5);
+    }
 
-        return false;
+    public void putBackgroundCheckInterval(int minutes) {
+        prefs.edit().putInt(PK_BACKGROUND_CHECK_INTERVAL, minutes).apply();
     }
 
-    public void putLastNotificationAPInfo(WlanFencingManager.ProviderAPInfo apInfo) {
-        if (apInfo != null) {
-            Set<String> currentClosure = getLastNotificationBSSIDClosure();
-            Set<String> newClosure = apInfo.getBSSIDClosure();
+    /**
+     * @return Number of consecutive background checks that found no known AP
+     */
+    public int getBackgroundQuietChecks() {
+        return prefs.getInt(PK_BACKGROUND_QUIET_CHECKS, 0);
+    }
 
-            if (checkLastAPsNeighboring(apInfo)) {
-                newClosure = CollectionUtils.setUnion(currentClosure, newClosure);
-            }
+    public void putBackgroundQuietChecks(int count) {
+        prefs.edit().putInt(PK_BACKGROUND_QUIET_CHECKS, count).apply();
+    }
 
-            prefs.edit()
-                    .putString(PK_LAST_NOTIFICATION_PROVIDER, apInfo.provider())
-                    .putStringSet(PK_LAST_NOTIFICATION_BSSID_CLOSURE, newClosure)
-                    .putLong(PK_LAST_CONNECTED_TS, Instant.now().toEpochMilli())
-                    .apply();
-        } else {
-            prefs.edit()
-                    .putLong(PK_LAST_CONNECTION_LOST_TS, Instant.now().toEpochMilli())
-                    .apply();
-        }
+    /**
+     * @return Epoch day of {@link #getBackgroundWakeupCount()}
+     */
+    public long getBackgroundWakeupDay() {
+        return prefs.getLong(PK_BACKGROUND_WAKEUP_DAY, -1);
     }
 
-    public boolean isBGNotificationEnabled() {
-        return prefs.getBoolean(PK_NOTIFICATION_ENABLED, false);
+    public int getBackgroundWakeupCount() {
+        return prefs.getInt(PK_BACKGROUND_WAKEUP_COUNT, 0);
     }
 
-    public void putBGNotificationEnabled(boolean enabled) {
-        prefs.edit().putBoolean(PK_NOTIFICATION_ENABLED, enabled).apply();
+    public void putBackgroundWakeups(long epochDay, int count) {
+        prefs.edit()
+                .putLong(PK_BACKGROUND_WAKEUP_DAY, epochDay)
+                .putInt(PK_BACKGROUND_WAKEUP_COUNT, count)
+                .apply();
     }
 
-    public int getBackgroundCheckInterval() {
-        return prefs.getInt(PK_BACKGROUND_CHECK_INTERVAL, 5);
+    public int getBackgroundDailyWakeupBudget() {
+        return prefs.getInt(PK_BACKGROUND_DAILY_WAKEUP_BUDGET, 96);
     }
 
-    public void putBackgroundCheckInterval(int minutes) {
-        prefs.edit().putInt(PK_BACKGROUND_CHECK_INTERVAL, minutes).apply();
+    public void putBackgroundDailyWakeupBudget(int wakeups) {
+        prefs.edit().putInt(PK_BACKGROUND_DAILY_WAKEUP_BUDGET, wakeups).apply();
     }
 
     public boolean isNotificationNagDisabled() {
@@ -153,6 +159,14 @@ public class CardsPreferences {
         prefs.edit().putString(PK_LAST_REMOTE_ETAG, etag).apply();
     }
 
+    public String getLastRemoteLastModified() {
+        return prefs.getString(PK_LAST_REMOTE_LAST_MODIFIED, null);
+    }
+
+    public void putLastRemoteLastModified(String lastModified) {
+        prefs.edit().putString(PK_LAST_REMOTE_LAST_MODIFIED, lastModified).apply();
+    }
+
     public int getMinWlanDbm() {
         return prefs.getInt(PK_MIN_WLAN_DBM, -100);
     }
@@ -161,6 +175,80 @@ public class CardsPreferences {
         prefs.edit().putInt(PK_MIN_WLAN_DBM, dbm).apply();
     }
 
+    public SignalFilter.Type getWlanSignalFilter() {
+        String type = prefs.getString(PK_WLAN_SIGNAL_FILTER, null);
+        if (type != null) {
+            try {
+                return SignalFilter.Type.valueOf(type);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return SignalFilter.Type.EWMA;
+    }
+
+    public void putWlanSignalFilter(SignalFilter.Type type) {
+        prefs.edit().putString(PK_WLAN_SIGNAL_FILTER, type.name()).apply();
+    }
+
+    /**
+     * @return Filtered signal level an access point needs to reach for its provider to be detected.
+     * Defaults to {@link #getMinWlanDbm()}, so that no AP the user allows is left undetected.
+     */
+    public int getWlanEnterDbm() {
+        return prefs.getInt(PK_WLAN_ENTER_DBM, getMinWlanDbm());
+    }
+
+    public void putWlanEnterDbm(int dbm) {
+        prefs.edit().putInt(PK_WLAN_ENTER_DBM, dbm).apply();
+    }
+
+    /**
+     * @return Filtered signal level below which a detected provider starts to be considered lost.
+     * Should be lower than {@link #getWlanEnterDbm()}, which it defaults to be {@link #WLAN_HYSTERESIS_DB} below.
+     */
+    public int getWlanExitDbm() {
+        return prefs.getInt(PK_WLAN_EXIT_DBM, getWlanEnterDbm() - WLAN_HYSTERESIS_DB);
+    }
+
+    public void putWlanExitDbm(int dbm) {
+        prefs.edit().putInt(PK_WLAN_EXIT_DBM, dbm).apply();
+    }
+
+    public int getWlanEnterDwellSeconds() {
+        return prefs.getInt(PK_WLAN_ENTER_DWELL_SECONDS, 0);
+    }
+
+    public void putWlanEnterDwellSeconds(int seconds) {
+        prefs.edit().putInt(PK_WLAN_ENTER_DWELL_SECONDS, seconds).apply();
+    }
+
+    public int getWlanExitDwellSeconds() {
+        return prefs.getInt(PK_WLAN_EXIT_DWELL_SECONDS, 60);
+    }
+
+    public void putWlanExitDwellSeconds(int seconds) {
+        prefs.edit().putInt(PK_WLAN_EXIT_DWELL_SECONDS, seconds).apply();
+    }
+
+    public boolean isWlanTraceRecordingEnabled() {
+        return prefs.getBoolean(PK_WLAN_TRACE_RECORDING, false);
+    }
+
+    public void putWlanTraceRecordingEnabled(boolean enabled) {
+        prefs.edit().putBoolean(PK_WLAN_TRACE_RECORDING, enabled).apply();
+    }
+
+    /**
+     * @return Time an AP of a known provider was last seen, in milliseconds since the epoch, or 0 if never
+     */
+    public long getWlanLastKnownSeenTime() {
+        return prefs.getLong(PK_WLAN_LAST_KNOWN_SEEN, 0);
+    }
+
+    public void putWlanLastKnownSeenTime(long epochMillis) {
+        prefs.edit().putLong(PK_WLAN_LAST_KNOWN_SEEN, epochMillis).apply();
+    }
+
     public List<String> getFavouriteProviders() {
         String list = prefs.getString(PK_FAVOURITE_PROVIDERS, "");
         if (list.isEmpty()) {
@@ -184,6 +272,17 @@ public class CardsPreferences {
     public void putCardBlacklist(String provider, Set<String> blacklist) {
         cardBlacklistCache.put(provider, blacklist);
         prefs.edit().putStringSet(PK_CARD_BLACKLIST_PREFIX + provider, blacklist).apply();
+        for (CardBlacklistListener listener : cardBlacklistListeners) {
+            listener.cardBlacklistChanged(provider);
+        }
+    }
+
+    public void addCardBlacklistListener(CardBlacklistListener listener) {
+        cardBlacklistListeners.add(listener);
+    }
+
+    public void removeCardBlacklistListener(CardBlacklistListener listener) {
+        cardBlacklistListeners.remove(listener);
     }
 
     public void addCardToBlacklist(String provider, String cardId) {
@@ -213,4 +312,14 @@ public class CardsPreferences {
     public void putBGLocationPermissionAttempted(boolean attempted) {
         prefs.edit().putBoolean(PK_BG_LOCATION_PERMISSION_ATTEMPTED, attempted).apply();
     }
+
+    public static interface CardBlacklistListener {
+
+        /**
+         * Called after the card blacklist of a provider has been replaced or modified.
+         *
+         * @param provider The provider ID
+         */
+        void cardBlacklistChanged(String provider);
+    }
 }
@@ -4,35 +4,65 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
 import cz.mamstylcendy.cards.BuildConfig;
 import cz.spojenka.android.polyfills.InputStreamCompat;
+import cz.spojenka.android.util.FileUtils;
 
 public class ConfigManager {
 
     private static final String LOG_TAG = ConfigManager.class.getSimpleName();
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectWriter CONFIG_WRITER = OBJECT_MAPPER.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 
     private static final String CONFIG_FILE_NAME = "config.json";
+    private static final String CONFIG_SNAPSHOT_FILE_NAME = "config.bin";
+    /**
+     * Time for which a replaced snapshot is kept open, so that readers that got its config before
+     * it was replaced can finish.
+     */
+    private static final long SNAPSHOT_CLOSE_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
     private final Random codeRandom = new Random();
 
     private final Context appContext;
-    private CardsConfig config;
+    private volatile CardsConfig config;
+    private volatile SsidIndex ssidIndex;
+    /**
+     * The config loaded from the snapshot file that is currently kept open.
+     */
+    private CardsConfig snapshotConfig;
+    /**
+     * Futures of updates that have not been written yet, completed by the next write that happens.
+     */
+    private final List<CompletableFuture<Void>> pendingWrites = new ArrayList<>();
+
+    private final ScheduledExecutorService persistExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ConfigPersistence"));
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong supersededWriteCount = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+    private final AtomicLong callerBlockedNanos = new AtomicLong();
 
     public ConfigManager(Context appContext) {
         this.appContext = appContext;
@@ -67,11 +97,22 @@ public class ConfigManager {
         return appContext.getDatabasePath(CONFIG_FILE_NAME);
     }
 
+    private File getLocalSnapshotFile() {
+        return appContext.getDatabasePath(CONFIG_SNAPSHOT_FILE_NAME);
+    }
+
     private boolean loadFromAppData() {
         File file = getLocalConfigFile();
         if (file.exists()) {
+            CardsConfig snapshot = readSnapshot();
+            if (snapshot != null) {
+                config = snapshot;
+                retainSnapshot(snapshot);
+                return true;
+            }
             try {
                 config = OBJECT_MAPPER.readValue(file, CardsConfig.class);
+                writeSnapshot(config);
                 return true;
             } catch (IOException e) {
                 Log.e(LOG_TAG, "Failed to load config from app data", e);
@@ -80,19 +121,136 @@ public class ConfigManager {
         return false;
     }
 
+    private CardsConfig readSnapshot() {
+        try {
+            return ConfigSnapshot.read(getLocalSnapshotFile(), getLocalConfigFile());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to load config snapshot, falling back to JSON", e);
+            return null;
+        }
+    }
+
+    /**
+     * Keep the file of a config loaded from the snapshot open, and close the file of the previously
+     * loaded one after {@link #SNAPSHOT_CLOSE_DELAY_MILLIS}.
+     *
+     * @param snapshot The config loaded from the snapshot
+     */
+    private void retainSnapshot(CardsConfig snapshot) {
+        CardsConfig previous;
+        synchronized (this) {
+            previous = snapshotConfig;
+            snapshotConfig = snapshot;
+        }
+        if (previous != null) {
+            persistExecutor.schedule(() -> ConfigSnapshot.close(previous), SNAPSHOT_CLOSE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void writeSnapshot(CardsConfig config) {
+        try {
+            ConfigSnapshot.write(config, getLocalConfigFile(), getLocalSnapshotFile());
+        } catch (IOException e) {
+            //not fatal, the JSON file is still authoritative
+            Log.w(LOG_TAG, "Failed to write config snapshot", e);
+            getLocalSnapshotFile().delete();
+        }
+    }
+
     private void copyFromAssets() throws IOException {
-        try (InputStream in = appContext.getAssets().open(CONFIG_FILE_NAME); OutputStream out = new FileOutputStream(getLocalConfigFile())) {
-            InputStreamCompat.transferTo(in, out);
+        try (InputStream in = appContext.getAssets().open(CONFIG_FILE_NAME)) {
+            FileUtils.writeAtomically(getLocalConfigFile(), out -> InputStreamCompat.transferTo(in, out));
         }
     }
 
-    public synchronized CardsConfig getCurrentConfig() {
+    public CardsConfig getCurrentConfig() {
         return config;
     }
 
-    public synchronized void updateConfig(CardsConfig newConfig) throws IOException {
-        this.config = newConfig;
-        OBJECT_MAPPER.writeValue(getLocalConfigFile(), newConfig);
+    /**
+     * Replace the current config. The new config is visible to readers immediately, it is then
+     * persisted on a background thread. If another update comes in before the write starts,
+     * only the newer config is written.
+     *
+     * @param newConfig The new config
+     * @return Future that completes once the config, or a config that superseded it, has been persisted.
+     * If the write of the superseding config fails, the future fails as well.
+     */
+    public CompletableFuture<Void> updateConfig(CardsConfig newConfig) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            this.config = newConfig;
+            pendingWrites.add(future);
+        }
+        persistExecutor.execute(() -> persistIfCurrent(newConfig));
+        callerBlockedNanos.addAndGet(System.nanoTime() - start);
+        return future;
+    }
+
+    private void persistIfCurrent(CardsConfig newConfig) {
+        List<CompletableFuture<Void>> completing;
+        synchronized (this) {
+            if (config != newConfig) {
+                //the future of this update is completed by the write of the newer config
+                supersededWriteCount.incrementAndGet();
+                return;
+            }
+            completing = new ArrayList<>(pendingWrites);
+            pendingWrites.clear();
+        }
+        try {
+            persist(newConfig);
+            for (CompletableFuture<Void> future : completing) {
+                future.complete(null);
+            }
+        } catch (Throwable th) {
+            Log.e(LOG_TAG, "Failed to persist config", th);
+            for (CompletableFuture<Void> future : completing) {
+                future.completeExceptionally(th);
+            }
+        }
+    }
+
+    private void persist(CardsConfig newConfig) throws IOException {
+        long start = System.nanoTime();
+        FileUtils.writeAtomically(getLocalConfigFile(), out -> CONFIG_WRITER.writeValue(out, newConfig));
+        writeSnapshot(newConfig);
+        long elapsed = System.nanoTime() - start;
+
+        writeCount.incrementAndGet();
+        totalWriteNanos.addAndGet(elapsed);
+        maxWriteNanos.accumulateAndGet(elapsed, Math::max);
+        Log.d(LOG_TAG, "Config persisted in " + elapsed / 1000 + " us, " + getPersistenceStats());
+
+        //swap to the snapshot-backed config so that the downloaded code lists can be released,
+        //unless a newer config has been published in the meantime
+        CardsConfig snapshot = readSnapshot();
+        if (snapshot != null) {
+            boolean swapped = false;
+            synchronized (this) {
+                if (config == newConfig) {
+                    config = snapshot;
+                    swapped = true;
+                }
+            }
+            if (swapped) {
+                retainSnapshot(snapshot);
+            } else {
+                //not published, nobody can be reading it
+                ConfigSnapshot.close(snapshot);
+            }
+        }
+    }
+
+    public PersistenceStats getPersistenceStats() {
+        return new PersistenceStats(
+                writeCount.get(),
+                supersededWriteCount.get(),
+                totalWriteNanos.get(),
+                maxWriteNanos.get(),
+                callerBlockedNanos.get()
+        );
     }
 
     public List<String> getAllProviders() {
@@ -121,26 +279,45 @@ public class ConfigManager {
     }
 
     public String getRandomCode(CardsConfig.ProviderInfo providerInfo, Predicate<String> filter) {
-        List<String> filteredCodes = providerInfo.codes().stream().filter(filter).toList();
+        List<String> filteredCodes;
+        try {
+            filteredCodes = providerInfo.codes().stream().filter(filter).toList();
+        } catch (UncheckedIOException e) {
+            Log.e(LOG_TAG, "Failed to read provider codes", e);
+            return null;
+        }
         if (filteredCodes.isEmpty()) {
             return null;
         }
         return filteredCodes.get(codeRandom.nextInt(filteredCodes.size()));
     }
 
-    public boolean isWlanCompatible(String ssid) {
-        return getCurrentConfig().wlanMappings().containsKey(unquoteSsid(ssid));
-    }
-
-    private String unquoteSsid(String ssid) {
-        // textova SSID maji v androidu na zacatku a konci uvozovky
-        if (ssid.startsWith("\"") && ssid.endsWith("\"")) {
-            return ssid.substring(1, ssid.length() - 1);
+    /**
+     * Get the SSID lookup index of the current config. The index is built on first use after
+     * the config changes and shared until the next change.
+     *
+     * @return The index
+     */
+    public SsidIndex getSsidIndex() {
+        CardsConfig current = getCurrentConfig();
+        SsidIndex index = ssidIndex;
+        if (index == null || !index.isFor(current)) {
+            index = SsidIndex.build(current);
+            ssidIndex = index;
         }
-        return ssid;
+        return index;
     }
 
-    public String getProviderForWlan(String ssid) {
-        return getCurrentConfig().wlanMappings().get(unquoteSsid(ssid));
+    /**
+     * Config persistence counters.
+     *
+     * @param writes             Number of configs written to storage
+     * @param supersededWrites   Number of writes skipped because a newer config had already been published
+     * @param totalWriteNanos    Total time spent writing
+     * @param maxWriteNanos      Longest single write
+     * @param callerBlockedNanos Total time {@link #updateConfig(CardsConfig)} callers spent before returning
+     */
+    public static record PersistenceStats(long writes, long supersededWrites, long totalWriteNanos, long maxWriteNanos, long callerBlockedNanos) {
+
     }
 }
@@ -0,0 +1,206 @@
+package cz.mamstylcendy.cards.data;
+
+import androidx.annotation.Keep;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incremental update of a {@link CardsConfig}, relative to the config version identified by {@link #baseETag()}.
+ * <p>
+ * Patches are strict: removing something that does not exist or adding something that already exists
+ * means that the local config has diverged from the patch base, and is reported as a {@link PatchConflictException}.
+ * The caller is then expected to fall back to downloading the full config.
+ */
+@Keep
+public class ConfigPatch {
+
+    private final String baseETag;
+    private final List<String> providersRemoved;
+    private final LinkedHashMap<String, CardsConfig.ProviderInfo> providersUpdated;
+    private final Map<String, List<String>> codesAdded;
+    private final Map<String, List<String>> codesRemoved;
+    private final Map<String, String> wlanMappingsSet;
+    private final List<String> wlanMappingsRemoved;
+    private final LinkedHashMap<String, String> wlanPatternsSet;
+    private final List<String> wlanPatternsRemoved;
+
+    @JsonCreator
+    public ConfigPatch(
+            @JsonProperty("baseETag") String baseETag,
+            @JsonProperty("providersRemoved") List<String> providersRemoved,
+            @JsonProperty("providersUpdated") LinkedHashMap<String, CardsConfig.ProviderInfo> providersUpdated,
+            @JsonProperty("codesAdded") Map<String, List<String>> codesAdded,
+            @JsonProperty("codesRemoved") Map<String, List<String>> codesRemoved,
+            @JsonProperty("wlanMappingsSet") Map<String, String> wlanMappingsSet,
+            @JsonProperty("wlanMappingsRemoved") List<String> wlanMappingsRemoved,
+            @JsonProperty("wlanPatternsSet") LinkedHashMap<String, String> wlanPatternsSet,
+            @JsonProperty("wlanPatternsRemoved") List<String> wlanPatternsRemoved
+    ) {
+        this.baseETag = baseETag;
+        this.providersRemoved = providersRemoved != null ? providersRemoved : List.of();
+        this.providersUpdated = providersUpdated != null ? providersUpdated : new LinkedHashMap<>();
+        this.codesAdded = codesAdded != null ? codesAdded : Map.of();
+        this.codesRemoved = codesRemoved != null ? codesRemoved : Map.of();
+        this.wlanMappingsSet = wlanMappingsSet != null ? wlanMappingsSet : Map.of();
+        this.wlanMappingsRemoved = wlanMappingsRemoved != null ? wlanMappingsRemoved : List.of();
+        this.wlanPatternsSet = wlanPatternsSet != null ? wlanPatternsSet : new LinkedHashMap<>();
+        this.wlanPatternsRemoved = wlanPatternsRemoved != null ? wlanPatternsRemoved : List.of();
+    }
+
+    @JsonProperty("baseETag")
+    public String baseETag() {
+        return baseETag;
+    }
+
+    /**
+     * Keys of providers that are removed entirely, including their codes.
+     */
+    @JsonProperty("providersRemoved")
+    public List<String> providersRemoved() {
+        return providersRemoved;
+    }
+
+    /**
+     * New or changed provider metadata. The code lists of these entries are ignored, codes are only
+     * changed through {@link #codesAdded()} and {@link #codesRemoved()}.
+     */
+    @JsonProperty("providersUpdated")
+    public LinkedHashMap<String, CardsConfig.ProviderInfo> providersUpdated() {
+        return providersUpdated;
+    }
+
+    @JsonProperty("codesAdded")
+    public Map<String, List<String>> codesAdded() {
+        return codesAdded;
+    }
+
+    @JsonProperty("codesRemoved")
+    public Map<String, List<String>> codesRemoved() {
+        return codesRemoved;
+    }
+
+    @JsonProperty("wlanMappingsSet")
+    public Map<String, String> wlanMappingsSet() {
+        return wlanMappingsSet;
+    }
+
+    @JsonProperty("wlanMappingsRemoved")
+    public List<String> wlanMappingsRemoved() {
+        return wlanMappingsRemoved;
+    }
+
+    /**
+     * New or changed SSID patterns. New patterns are added with the lowest priority.
+     */
+    @JsonProperty("wlanPatternsSet")
+    public LinkedHashMap<String, String> wlanPatternsSet() {
+        return wlanPatternsSet;
+    }
+
+    @JsonProperty("wlanPatternsRemoved")
+    public List<String> wlanPatternsRemoved() {
+        return wlanPatternsRemoved;
+    }
+
+    /**
+     * Apply this patch to a config. The base config is not modified.
+     *
+     * @param base The config this patch was created against
+     * @return The patched config
+     * @throws PatchConflictException If the base config does not match what the patch expects
+     * @throws IOException            If the codes of the base config could not be read
+     */
+    public CardsConfig applyTo(CardsConfig base) throws IOException {
+        try {
+            return applyToUnchecked(base);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private CardsConfig applyToUnchecked(CardsConfig base) throws PatchConflictException {
+        LinkedHashMap<String, CardsConfig.ProviderInfo> cardData = new LinkedHashMap<>(base.cardData());
+
+        for (String provider : providersRemoved) {
+            if (cardData.remove(provider) == null) {
+                throw new PatchConflictException("Removed provider does not exist: " + provider);
+            }
+        }
+
+        for (Map.Entry<String, CardsConfig.ProviderInfo> entry : providersUpdated.entrySet()) {
+            CardsConfig.ProviderInfo existing = cardData.get(entry.getKey());
+            cardData.put(entry.getKey(), withCodes(entry.getValue(), existing != null ? existing.codes() : List.of()));
+        }
+
+        Set<String> providersWithCodeChanges = new LinkedHashSet<>(codesRemoved.keySet());
+        providersWithCodeChanges.addAll(codesAdded.keySet());
+        for (String provider : providersWithCodeChanges) {
+            CardsConfig.ProviderInfo pi = cardData.get(provider);
+            if (pi == null) {
+                throw new PatchConflictException("Codes changed for unknown provider: " + provider);
+            }
+            LinkedHashSet<String> codes = new LinkedHashSet<>(pi.codes());
+            for (String code : codesRemoved.getOrDefault(provider, List.of())) {
+                if (!codes.remove(code)) {
+                    throw new PatchConflictException("Removed code does not exist: " + provider + "/" + code);
+                }
+            }
+            for (String code : codesAdded.getOrDefault(provider, List.of())) {
+                if (!codes.add(code)) {
+                    throw new PatchConflictException("Added code already exists: " + provider + "/" + code);
+                }
+            }
+            cardData.put(provider, withCodes(pi, new ArrayList<>(codes)));
+        }
+
+        Map<String, String> wlanMappings = new HashMap<>(base.wlanMappings());
+        for (String ssid : wlanMappingsRemoved) {
+            if (wlanMappings.remove(ssid) == null) {
+                throw new PatchConflictException("Removed WLAN mapping does not exist: " + ssid);
+            }
+        }
+        wlanMappings.putAll(wlanMappingsSet);
+
+        LinkedHashMap<String, String> wlanPatterns = new LinkedHashMap<>(base.wlanPatterns());
+        for (String pattern : wlanPatternsRemoved) {
+            if (wlanPatterns.remove(pattern) == null) {
+                throw new PatchConflictException("Removed WLAN pattern does not exist: " + pattern);
+            }
+        }
+        wlanPatterns.putAll(wlanPatternsSet);
+
+        return new CardsConfig(wlanMappings, wlanPatterns, cardData);
+    }
+
+    private static CardsConfig.ProviderInfo withCodes(CardsConfig.ProviderInfo pi, List<String> codes) {
+        if (pi.codes() == codes) {
+            return pi;
+        }
+        return new CardsConfig.ProviderInfo(
+                pi.providerName(),
+                pi.membershipName(),
+                pi.brandColor(),
+                pi.brandColorContrast(),
+                pi.format(),
+                codes
+        );
+    }
+
+    public static class PatchConflictException extends IOException {
+
+        public PatchConflictException(String message) {
+            super(message);
+        }
+    }
+}
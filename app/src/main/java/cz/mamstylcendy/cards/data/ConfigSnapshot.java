@@ -0,0 +1,457 @@
+package cz.mamstylcendy.cards.data;
+
+import android.util.Log;
+
+import com.google.zxing.BarcodeFormat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ThreadLocalRandom;
+
+import cz.spojenka.android.util.FileUtils;
+
+/**
+ * Compact binary image of a {@link CardsConfig}, stored next to the JSON config file so that
+ * process start-up does not have to run the JSON parser.
+ * <p>
+ * The snapshot consists of a fixed header, a string table, a provider table, a WLAN mapping table
+ * and a blob of length-prefixed UTF-8 codes. Only the tables are read when the snapshot is loaded.
+ * The codes of a provider are read from the file when its code list is first accessed, and a bounded
+ * number of providers is kept in memory after that.
+ * <p>
+ * A loaded config keeps the snapshot file open, and reads its codes through that file descriptor. When the snapshot
+ * is replaced by a newer config, the replaced file stays readable until {@link #close(CardsConfig)} is called
+ * for the config loaded from it.
+ */
+class ConfigSnapshot {
+
+    private static final String LOG_TAG = ConfigSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x4B435346; // "KCSF"
+    private static final int VERSION = 3;
+
+    /**
+     * Magic, version, generation (random, informational only), source length, source mtime, code blob offset, code blob length.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8 + 4;
+    private static final int TRAILER_SIZE = 4;
+
+    private static final int MAX_CACHED_PROVIDERS = 8;
+
+    private static final int NO_STRING = -1;
+
+    private static final int FLAG_HAS_BRAND_COLOR = 1;
+    private static final int FLAG_HAS_BRAND_COLOR_CONTRAST = 2;
+
+    /**
+     * Write a snapshot of a config.
+     *
+     * @param config     The config
+     * @param jsonSource The JSON file the config was persisted to. Its size and modification time are
+     *                   recorded so that a stale snapshot can be detected on load.
+     * @param dest       The snapshot file
+     * @throws IOException If the snapshot could not be written
+     */
+    static void write(CardsConfig config, File jsonSource, File dest) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream codeBlob = new ByteArrayOutputStream();
+        DataOutputStream codeOut = new DataOutputStream(codeBlob);
+
+        int providerCount = config.cardData().size();
+        int[] providerFields = new int[providerCount * 4];
+        int[] codeOffsets = new int[providerCount];
+        int[] codeCounts = new int[providerCount];
+
+        int providerIndex = 0;
+        for (Map.Entry<String, CardsConfig.ProviderInfo> entry : config.cardData().entrySet()) {
+            CardsConfig.ProviderInfo pi = entry.getValue();
+            int base = providerIndex * 4;
+            providerFields[base] = strings.indexOf(entry.getKey());
+            providerFields[base + 1] = strings.indexOf(pi.providerName());
+            providerFields[base + 2] = strings.indexOf(pi.membershipName());
+            providerFields[base + 3] = strings.indexOf(pi.format() != null ? pi.format().name() : null);
+
+            codeOffsets[providerIndex] = codeOut.size();
+            List<String> codes = pi.codes();
+            if (codes != null) {
+                for (String code : codes) {
+                    byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+                    codeOut.writeShort(bytes.length);
+                    codeOut.write(bytes);
+                }
+                codeCounts[providerIndex] = codes.size();
+            }
+            providerIndex++;
+        }
+
+        Map<String, String> wlanMappings = config.wlanMappings();
+        int[] wlanFields = new int[wlanMappings.size() * 2];
+        int wlanIndex = 0;
+        for (Map.Entry<String, String> entry : wlanMappings.entrySet()) {
+            wlanFields[wlanIndex++] = strings.indexOf(entry.getKey());
+            wlanFields[wlanIndex++] = strings.indexOf(entry.getValue());
+        }
+
+        Map<String, String> wlanPatterns = config.wlanPatterns();
+        int[] patternFields = new int[wlanPatterns.size() * 2];
+        int patternIndex = 0;
+        for (Map.Entry<String, String> entry : wlanPatterns.entrySet()) {
+            patternFields[patternIndex++] = strings.indexOf(entry.getKey());
+            patternFields[patternIndex++] = strings.indexOf(entry.getValue());
+        }
+
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        DataOutputStream tablesOut = new DataOutputStream(tables);
+
+        tablesOut.writeInt(strings.size());
+        for (String s : strings.values()) {
+            tablesOut.writeUTF(s);
+        }
+
+        tablesOut.writeInt(providerCount);
+        providerIndex = 0;
+        for (CardsConfig.ProviderInfo pi : config.cardData().values()) {
+            int base = providerIndex * 4;
+            tablesOut.writeInt(providerFields[base]);
+            tablesOut.writeInt(providerFields[base + 1]);
+            tablesOut.writeInt(providerFields[base + 2]);
+            tablesOut.writeInt(providerFields[base + 3]);
+            int flags = 0;
+            if (pi.brandColor() != null) {
+                flags |= FLAG_HAS_BRAND_COLOR;
+            }
+            if (pi.brandColorContrast() != null) {
+                flags |= FLAG_HAS_BRAND_COLOR_CONTRAST;
+            }
+            tablesOut.writeByte(flags);
+            tablesOut.writeInt(pi.brandColor() != null ? pi.brandColor() : 0);
+            tablesOut.writeInt(pi.brandColorContrast() != null ? pi.brandColorContrast() : 0);
+            tablesOut.writeInt(codeOffsets[providerIndex]);
+            tablesOut.writeInt(codeCounts[providerIndex]);
+            providerIndex++;
+        }
+
+        tablesOut.writeInt(wlanFields.length / 2);
+        for (int field : wlanFields) {
+            tablesOut.writeInt(field);
+        }
+
+        tablesOut.writeInt(patternFields.length / 2);
+        for (int field : patternFields) {
+            tablesOut.writeInt(field);
+        }
+
+        FileUtils.writeAtomically(dest, stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(ThreadLocalRandom.current().nextLong());
+            out.writeLong(jsonSource.length());
+            out.writeLong(jsonSource.lastModified());
+            out.writeLong(HEADER_SIZE + tables.size());
+            out.writeInt(codeOut.size());
+
+            tables.writeTo(out);
+            codeBlob.writeTo(out);
+            out.writeInt(MAGIC); //trailer, guards against truncated files
+            out.flush();
+        });
+    }
+
+    /**
+     * Read the tables of a snapshot previously written by {@link #write(CardsConfig, File, File)}.
+     * Code lists of the returned config are backed by the snapshot file. Reading them throws
+     * {@link UncheckedIOException} if the file cannot be read anymore.
+     *
+     * @param file       The snapshot file
+     * @param jsonSource The JSON file the snapshot should mirror
+     * @return The config, or null if the snapshot does not exist, has an unsupported version
+     * or does not match the current JSON file
+     * @throws IOException If the snapshot is corrupted or could not be read
+     */
+    static CardsConfig read(File file, File jsonSource) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        boolean keepOpen = false;
+        try {
+            //the tables are read through the same descriptor as the codes, so that both come from the same file
+            //even if the snapshot is replaced in the meantime. The stream is not closed, that would close the descriptor.
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            in.readLong(); //generation
+            long sourceLength = in.readLong();
+            long sourceLastModified = in.readLong();
+            if (sourceLength != jsonSource.length() || sourceLastModified != jsonSource.lastModified()) {
+                return null;
+            }
+            long codeBlobOffset = in.readLong();
+            int codeBlobLength = in.readInt();
+            if (raf.length() != codeBlobOffset + codeBlobLength + TRAILER_SIZE) {
+                throw new IOException("Config snapshot is truncated");
+            }
+
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+
+            int providerCount = in.readInt();
+            String[] keys = new String[providerCount];
+            String[][] providerStrings = new String[providerCount][];
+            int[] flags = new int[providerCount];
+            int[] colors = new int[providerCount * 2];
+            int[] codeOffsets = new int[providerCount + 1];
+            int[] codeCounts = new int[providerCount];
+            for (int i = 0; i < providerCount; i++) {
+                keys[i] = lookup(strings, in.readInt());
+                providerStrings[i] = new String[]{
+                        lookup(strings, in.readInt()),
+                        lookup(strings, in.readInt()),
+                        lookup(strings, in.readInt())
+                };
+                flags[i] = in.readUnsignedByte();
+                colors[i * 2] = in.readInt();
+                colors[i * 2 + 1] = in.readInt();
+                codeOffsets[i] = in.readInt();
+                codeCounts[i] = in.readInt();
+            }
+            codeOffsets[providerCount] = codeBlobLength;
+
+            int wlanCount = in.readInt();
+            Map<String, String> wlanMappings = new HashMap<>(wlanCount * 2);
+            for (int i = 0; i < wlanCount; i++) {
+                String ssid = lookup(strings, in.readInt());
+                wlanMappings.put(ssid, lookup(strings, in.readInt()));
+            }
+
+            int patternCount = in.readInt();
+            LinkedHashMap<String, String> wlanPatterns = new LinkedHashMap<>(patternCount * 2);
+            for (int i = 0; i < patternCount; i++) {
+                String pattern = lookup(strings, in.readInt());
+                wlanPatterns.put(pattern, lookup(strings, in.readInt()));
+            }
+
+            CodeSource source = new CodeSource(raf, codeBlobOffset);
+
+            LinkedHashMap<String, CardsConfig.ProviderInfo> cardData = new LinkedHashMap<>();
+            for (int i = 0; i < providerCount; i++) {
+                String formatName = providerStrings[i][2];
+                cardData.put(keys[i], new CardsConfig.ProviderInfo(
+                        providerStrings[i][0],
+                        providerStrings[i][1],
+                        (flags[i] & FLAG_HAS_BRAND_COLOR) != 0 ? colors[i * 2] : null,
+                        (flags[i] & FLAG_HAS_BRAND_COLOR_CONTRAST) != 0 ? colors[i * 2 + 1] : null,
+                        formatName != null ? BarcodeFormat.valueOf(formatName) : null,
+                        new LazyCodeList(source, i, codeOffsets[i], codeOffsets[i + 1] - codeOffsets[i], codeCounts[i])
+                ));
+            }
+
+            keepOpen = true;
+            return new CardsConfig(wlanMappings, wlanPatterns, cardData);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed config snapshot", e);
+        } finally {
+            if (!keepOpen) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Close the snapshot file a config was loaded from. Codes that are still cached in memory stay readable,
+     * reading any other codes of the config throws {@link UncheckedIOException} afterwards.
+     * Does nothing for a config that was not loaded from a snapshot.
+     *
+     * @param config The config
+     */
+    static void close(CardsConfig config) {
+        for (CardsConfig.ProviderInfo pi : config.cardData().values()) {
+            if (pi.codes() instanceof LazyCodeList) {
+                //all providers of a snapshot share one source
+                ((LazyCodeList) pi.codes()).source.close();
+                return;
+            }
+        }
+    }
+
+    private static String lookup(String[] strings, int index) {
+        return index == NO_STRING ? null : strings[index];
+    }
+
+    private static class StringTable {
+
+        private final Map<String, Integer> indices = new LinkedHashMap<>();
+
+        int indexOf(String s) {
+            if (s == null) {
+                return NO_STRING;
+            }
+            Integer index = indices.get(s);
+            if (index == null) {
+                index = indices.size();
+                indices.put(s, index);
+            }
+            return index;
+        }
+
+        int size() {
+            return indices.size();
+        }
+
+        Iterable<String> values() {
+            return indices.keySet();
+        }
+    }
+
+    /**
+     * Reads code lists of a single snapshot file and keeps the most recently used ones in memory.
+     */
+    private static class CodeSource {
+
+        private final RandomAccessFile file;
+        private final long codeBlobOffset;
+        private boolean closed = false;
+
+        private final Map<Integer, List<String>> cache = new LinkedHashMap<>(MAX_CACHED_PROVIDERS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<String>> eldest) {
+                return size() > MAX_CACHED_PROVIDERS;
+            }
+        };
+
+        CodeSource(RandomAccessFile file, long codeBlobOffset) {
+            this.file = file;
+            this.codeBlobOffset = codeBlobOffset;
+        }
+
+        synchronized List<String> load(LazyCodeList list) {
+            List<String> codes = cache.get(list.providerIndex);
+            if (codes == null) {
+                codes = readCodes(list);
+                cache.put(list.providerIndex, codes);
+            }
+            return codes;
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close config snapshot", e);
+            }
+        }
+
+        private List<String> readCodes(LazyCodeList list) {
+            try {
+                if (closed) {
+                    throw new IOException("Config snapshot has been closed");
+                }
+                byte[] bytes = new byte[list.byteLength];
+                file.seek(codeBlobOffset + list.start);
+                file.readFully(bytes);
+                return new CodeList(bytes, list.count);
+            } catch (IOException e) {
+                //the list has already reported its size, an empty list in its place would not match it
+                Log.e(LOG_TAG, "Failed to read codes from config snapshot", e);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Code list of a provider that is read from the snapshot file on first access.
+     * The size is known up front and does not require any I/O. Accessing the codes throws
+     * {@link UncheckedIOException} if they cannot be read.
+     */
+    private static class LazyCodeList extends AbstractList<String> implements RandomAccess {
+
+        private final CodeSource source;
+        private final int providerIndex;
+        private final int start;
+        private final int byteLength;
+        private final int count;
+
+        LazyCodeList(CodeSource source, int providerIndex, int start, int byteLength, int count) {
+            this.source = source;
+            this.providerIndex = providerIndex;
+            this.start = start;
+            this.byteLength = byteLength;
+            this.count = count;
+        }
+
+        @Override
+        public String get(int index) {
+            return source.load(this).get(index);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * Read-only view of length-prefixed codes in a byte array. Codes are decoded on access.
+     */
+    private static class CodeList extends AbstractList<String> implements RandomAccess {
+
+        private final byte[] blob;
+        private final int count;
+        private int[] offsets;
+
+        CodeList(byte[] blob, int count) {
+            this.blob = blob;
+            this.count = count;
+        }
+
+        private int[] getOffsets() {
+            if (offsets == null) {
+                int[] result = new int[count];
+                int pos = 0;
+                for (int i = 0; i < count; i++) {
+                    result[i] = pos;
+                    pos += 2 + (((blob[pos] & 0xFF) << 8) | (blob[pos + 1] & 0xFF));
+                }
+                offsets = result;
+            }
+            return offsets;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+            }
+            int pos = getOffsets()[index];
+            int length = ((blob[pos] & 0xFF) << 8) | (blob[pos + 1] & 0xFF);
+            return new String(blob, pos + 2, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
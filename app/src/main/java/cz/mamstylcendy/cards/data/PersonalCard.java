@@ -37,6 +37,10 @@ public class PersonalCard implements Parcelable {
     private final String provider;
     private final CustomCardProperties customProperties;
     private final String cardNumber;
+    /**
+     * Position of the card in the user's list, see {@link PersonalCardStore}. Not part of the serialized card.
+     */
+    private long orderKey;
 
     @JsonCreator
     public PersonalCard(
@@ -111,6 +115,14 @@ public class PersonalCard implements Parcelable {
         this.name = newName;
     }
 
+    long orderKey() {
+        return orderKey;
+    }
+
+    void setOrderKey(long orderKey) {
+        this.orderKey = orderKey;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -1,78 +1,307 @@
 package cz.mamstylcendy.cards.data;
 
+import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Looper;
+import android.util.Log;
 
 import androidx.annotation.Keep;
 
+import com.google.zxing.BarcodeFormat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
 
 import cz.mamstylcendy.cards.util.AbstractListenerTarget;
 
+/**
+ * The personal cards of the user, in the order chosen by the user.
+ * <p>
+ * The cards are persisted in a {@link CardJournal}. They used to be stored as one JSON list in the shared preferences,
+ * which is migrated to the journal on first load.
+ * <p>
+ * Lookups by ID, by provider and of duplicates go through indexes that are updated with every change of the list.
+ * <p>
+ * The order of the cards is given by their order keys. The card list is kept sorted by the keys, and moving a card
+ * only assigns it a key between the keys of its new neighbours. Keys are spaced {@link #ORDER_KEY_GAP} apart
+ * when assigned anew, so a card can be moved between the same two neighbours many times before the space runs out;
+ * then all keys are reassigned and the journal is rewritten in the background.
+ * <p>
+ * Changes made within a transaction, such as merging an imported list, are not reported card by card; listeners get
+ * one {@link Listener#onCardsChanged(CardChanges)} event with the resulting list once the transaction ends.
+ */
 public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.Listener> {
 
+    private static final String LOG_TAG = PersonalCardStore.class.getSimpleName();
+
     public static final int CARD_ID_INVALID = -1;
     public static final int CARD_ID_TEMPORARY = -2;
 
-    private static final String PREF_KEY = "personal_cards";
+    private static final String JOURNAL_FILE_NAME = "personal_cards.journal";
+    private static final String LEGACY_PREF_KEY = "personal_cards";
     private static final String ID_AUTOINCREMENT_PREF_KEY = "personal_card_id_autoincrement";
 
+    private static final long ORDER_KEY_GAP = 1L << 20;
+
     private final SharedPreferences sharedPreferences;
+    private final CardJournal journal;
     private List<PersonalCard> personalCards;
+    private final Map<Integer, PersonalCard> cardsById = new HashMap<>();
+    private final Map<String, List<PersonalCard>> cardsByProvider = new HashMap<>();
+    private final Map<SameCardKey, List<PersonalCard>> cardsBySameCardKey = new HashMap<>();
+    private int nextCardId = CARD_ID_INVALID;
+    private boolean cardIdDirty = false;
     private int inTransaction = 0;
-    private boolean dirty = false;
     private Set<Listener> mutedListeners = new HashSet<>();
+    private final Set<PersonalCard> addedInTransaction = new LinkedHashSet<>();
+    private final Set<PersonalCard> removedInTransaction = new LinkedHashSet<>();
+    private final Set<PersonalCard> changedInTransaction = new LinkedHashSet<>();
+    private boolean movedInTransaction = false;
 
-    public PersonalCardStore(CardsPreferences preferences) {
+    public PersonalCardStore(Context context, CardsPreferences preferences) {
         sharedPreferences = preferences.getPrefs();
+        journal = new CardJournal(context.getDatabasePath(JOURNAL_FILE_NAME));
     }
 
     public synchronized int newCardId() {
-        int id = sharedPreferences.getInt(ID_AUTOINCREMENT_PREF_KEY, 1);
-        sharedPreferences.edit().putInt(ID_AUTOINCREMENT_PREF_KEY, id + 1).apply();
+        if (nextCardId == CARD_ID_INVALID) {
+            nextCardId = sharedPreferences.getInt(ID_AUTOINCREMENT_PREF_KEY, 1);
+        }
+        int id = nextCardId++;
+        //within a transaction, the counter is saved once at the end
+        cardIdDirty = true;
+        if (inTransaction == 0) {
+            saveNextCardId();
+        }
         return id;
     }
 
-    public PersonalCard getCardById(int id) {
-        return getPersonalCards().stream()
-                .filter(card -> card.id() == id)
-                .findFirst()
-                .orElse(null);
+    private void saveNextCardId() {
+        if (cardIdDirty) {
+            sharedPreferences.edit().putInt(ID_AUTOINCREMENT_PREF_KEY, nextCardId).apply();
+            cardIdDirty = false;
+        }
     }
 
-    public PersonalCard getCardForProvider(String providerId) {
-        return getPersonalCards().stream()
-                .filter(card -> card.provider().equals(providerId))
-                .findFirst()
-                .orElse(null);
+    public synchronized PersonalCard getCardById(int id) {
+        getPersonalCards();
+        return cardsById.get(id);
     }
 
+    public synchronized PersonalCard getCardForProvider(String providerId) {
+        getPersonalCards();
+        List<PersonalCard> cards = cardsByProvider.get(providerId);
+        //the cards of a provider are kept in list order
+        return cards != null ? cards.get(0) : null;
+    }
+
+    /**
+     * @return The cards, in the order chosen by the user
+     * @throws UncheckedIOException If the journal exists but could not be read. It is left as it is,
+     *                              and the next call tries again.
+     */
     public synchronized List<PersonalCard> getPersonalCards() {
         if (personalCards == null) {
-            personalCards = SharedPrefsHelper.loadObject(sharedPreferences, PREF_KEY, SettingValueType.class);
-        }
-        if (personalCards == null) {
-            personalCards = new SettingValueType();
+            personalCards = loadPersonalCards();
+            if (!hasValidOrderKeys()) {
+                //cards migrated from an older format have no keys yet
+                rebalanceOrderKeys();
+            }
+            //the provider index is ordered by the keys
+            for (PersonalCard card : personalCards) {
+                addToIndexes(card);
+            }
         }
         return personalCards;
     }
 
+    private boolean hasValidOrderKeys() {
+        for (int i = 1; i < personalCards.size(); i++) {
+            if (personalCards.get(i - 1).orderKey() >= personalCards.get(i).orderKey()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Assign evenly spaced order keys to all cards, keeping their order.
+     */
+    private void rebalanceOrderKeys() {
+        for (int i = 0; i < personalCards.size(); i++) {
+            personalCards.get(i).setOrderKey(i * ORDER_KEY_GAP);
+        }
+        journal.requestRewrite();
+        Log.d(LOG_TAG, "Reassigned order keys of " + personalCards.size() + " cards");
+    }
+
+    /**
+     * Get an order key for a card inserted at a position, reassigning all keys first if there is no room.
+     *
+     * @param index The position in the list without the card
+     * @return The order key
+     */
+    private long orderKeyForInsertion(int index) {
+        Long key = orderKeyBetween(index);
+        if (key == null) {
+            rebalanceOrderKeys();
+            key = orderKeyBetween(index);
+        }
+        return key;
+    }
+
+    private Long orderKeyBetween(int index) {
+        boolean hasPrev = index > 0;
+        boolean hasNext = index < personalCards.size();
+        long prev = hasPrev ? personalCards.get(index - 1).orderKey() : 0;
+        long next = hasNext ? personalCards.get(index).orderKey() : 0;
+        if (hasPrev && hasNext) {
+            long gap = next - prev;
+            if (gap > 0) {
+                return gap < 2 ? null : Long.valueOf(prev + gap / 2);
+            }
+            //the difference overflowed, the keys are at the opposite ends of the range
+            return prev / 2 + next / 2;
+        } else if (hasPrev) {
+            return prev <= Long.MAX_VALUE - ORDER_KEY_GAP ? Long.valueOf(prev + ORDER_KEY_GAP) : null;
+        } else if (hasNext) {
+            return next >= Long.MIN_VALUE + ORDER_KEY_GAP ? Long.valueOf(next - ORDER_KEY_GAP) : null;
+        } else {
+            return 0L;
+        }
+    }
+
+    /**
+     * Find the position at which a card with an order key belongs in a list sorted by order keys.
+     *
+     * @param cards    The sorted list
+     * @param orderKey The order key
+     * @return The position after all cards with a lower or equal key
+     */
+    static int findInsertionIndex(List<PersonalCard> cards, long orderKey) {
+        int low = 0;
+        int high = cards.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cards.get(mid).orderKey() <= orderKey) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void addToIndexes(PersonalCard card) {
+        cardsById.putIfAbsent(card.id(), card);
+        addToProviderIndex(card);
+        addToIndex(cardsBySameCardKey, SameCardKey.of(card), card);
+    }
+
+    /**
+     * Add a card to {@link #cardsByProvider}, where the cards of each provider are kept sorted by their order keys.
+     */
+    private void addToProviderIndex(PersonalCard card) {
+        List<PersonalCard> cards = cardsByProvider.computeIfAbsent(card.provider(), k -> new ArrayList<>(1));
+        cards.add(findInsertionIndex(cards, card.orderKey()), card);
+    }
+
+    private void removeFromIndexes(PersonalCard card) {
+        if (cardsById.remove(card.id(), card)) {
+            //IDs are unique unless the stored list was edited by hand, restore the index for a possible duplicate
+            for (PersonalCard other : personalCards) {
+                if (other.id() == card.id()) {
+                    cardsById.put(other.id(), other);
+                    break;
+                }
+            }
+        }
+        removeFromIndex(cardsByProvider, card.provider(), card);
+        removeFromIndex(cardsBySameCardKey, SameCardKey.of(card), card);
+    }
+
+    private static <K> void addToIndex(Map<K, List<PersonalCard>> index, K key, PersonalCard card) {
+        index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(card);
+    }
+
+    private static <K> void removeFromIndex(Map<K, List<PersonalCard>> index, K key, PersonalCard card) {
+        List<PersonalCard> cards = index.get(key);
+        if (cards != null && cards.remove(card) && cards.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Load the cards from the journal, or start a new journal if there is none. An existing journal is never
+     * overwritten here: one that does not hold a journal at all is moved aside first.
+     */
+    private List<PersonalCard> loadPersonalCards() {
+        if (journal.exists()) {
+            try {
+                List<PersonalCard> cards = journal.load();
+                if (cards != null) {
+                    return cards;
+                }
+                journal.moveAside();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load personal cards", e);
+            }
+        }
+        //also when the journal was unreadable, the old list may still be there if the migration failed
+        return migrateFromPreferences();
+    }
+
+    /**
+     * Write a new journal, with the cards from the old JSON list if it is still there.
+     * Only called when there is no journal.
+     */
+    private List<PersonalCard> migrateFromPreferences() {
+        List<PersonalCard> cards = new ArrayList<>();
+        boolean hasLegacyCards = sharedPreferences.contains(LEGACY_PREF_KEY);
+        if (hasLegacyCards) {
+            SettingValueType legacyCards = SharedPrefsHelper.loadObject(sharedPreferences, LEGACY_PREF_KEY, SettingValueType.class);
+            if (legacyCards != null) {
+                cards.addAll(legacyCards);
+            }
+        }
+        for (int i = 0; i < cards.size(); i++) {
+            cards.get(i).setOrderKey(i * ORDER_KEY_GAP);
+        }
+        try {
+            journal.writeSnapshot(cards);
+            if (hasLegacyCards) {
+                //only drop the old list once the journal is safely written
+                sharedPreferences.edit().remove(LEGACY_PREF_KEY).apply();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to migrate personal cards to the journal", e);
+            //nothing may be appended until the whole list has been written
+            journal.requestRewrite();
+        }
+        return cards;
+    }
+
     private synchronized void addCard(int index, PersonalCard card) {
         if (card.id() == CARD_ID_TEMPORARY) {
             card = new PersonalCard(newCardId(), card.name(), card.provider(), card.customProperties(), card.cardNumber());
         }
         final PersonalCard card_ = card;
+        card.setOrderKey(orderKeyForInsertion(index));
         getPersonalCards().add(index, card);
-        persistAndFinish();
-        invokeListeners(listener -> listener.onCardAdded(card_));
+        addToIndexes(card);
+        journal.appendAdd(index, card);
+        finishMutation();
+        notifyCardAdded(card_);
     }
 
-    private void persistAndFinish() {
-        persist();
+    private void finishMutation() {
+        compactIfNeeded();
         finishOperation();
     }
 
@@ -101,25 +330,17 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
         return findSameCard(card) != null;
     }
 
-    private PersonalCard findSameCard(PersonalCard card) {
-        for (PersonalCard other : getPersonalCards()) {
-            if (other.cardNumber().equals(card.cardNumber())) {
-                if (Objects.equals(other.provider(), card.provider())) {
-                    if (!other.isCustom()) {
-                        return other;
-                    } else {
-                        PersonalCard.CustomCardProperties srcCustomProps = card.customProperties();
-                        PersonalCard.CustomCardProperties dstCustomProps = other.customProperties();
-                        if (srcCustomProps != null && dstCustomProps != null) {
-                            if (srcCustomProps.providerName().equals(dstCustomProps.providerName()) && srcCustomProps.format() == dstCustomProps.format()) {
-                                return other;
-                            }
-                        }
-                    }
-                }
-            }
+    /**
+     * Find a card with the same number and provider. A non-custom card matches any card with the same number
+     * and provider, a custom card only matches custom cards with the same provider name and format.
+     */
+    private synchronized PersonalCard findSameCard(PersonalCard card) {
+        getPersonalCards();
+        List<PersonalCard> same = cardsBySameCardKey.get(new SameCardKey(card.provider(), card.cardNumber(), null, null));
+        if (same == null && card.isCustom()) {
+            same = cardsBySameCardKey.get(SameCardKey.of(card));
         }
-        return null;
+        return same != null ? same.get(0) : null;
     }
 
     public synchronized void merge(PersonalCard card) {
@@ -130,7 +351,7 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
             addCard(card);
         }
 
-        persistAndFinish();
+        finishOperation();
     }
 
     @Override
@@ -139,13 +360,72 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
     }
 
     public synchronized void removeCard(PersonalCard card) {
-        getPersonalCards().remove(card);
-        invokeListeners(listener -> listener.onCardRemoved(card));
-        persistAndFinish();
+        int index = getPersonalCards().indexOf(card);
+        if (index != -1) {
+            personalCards.remove(index);
+            removeFromIndexes(card);
+            journal.appendRemove(index);
+        }
+        notifyCardRemoved(card);
+        finishMutation();
+    }
+
+    private void notifyCardAdded(PersonalCard card) {
+        if (inTransaction > 0) {
+            addedInTransaction.add(card);
+        } else {
+            invokeListeners(listener -> listener.onCardAdded(card));
+        }
+    }
+
+    private void notifyCardRemoved(PersonalCard card) {
+        if (inTransaction > 0) {
+            //a card added and removed within the transaction never shows up in the change set
+            if (!addedInTransaction.remove(card)) {
+                removedInTransaction.add(card);
+            }
+            changedInTransaction.remove(card);
+        } else {
+            invokeListeners(listener -> listener.onCardRemoved(card));
+        }
     }
 
     private void invokeCardChanged(PersonalCard card) {
-        invokeListeners(listener -> listener.onCardChanged(card));
+        if (inTransaction > 0) {
+            if (!addedInTransaction.contains(card)) {
+                changedInTransaction.add(card);
+            }
+        } else {
+            invokeListeners(listener -> listener.onCardChanged(card));
+        }
+    }
+
+    private void notifyCardMoved(PersonalCard card, int fromOrdinal, int toOrdinal) {
+        if (inTransaction > 0) {
+            movedInTransaction = true;
+        } else {
+            invokeListeners(listener -> listener.onCardMoved(card, fromOrdinal, toOrdinal));
+        }
+    }
+
+    /**
+     * Pass the changes collected during a transaction to the listeners as one event.
+     */
+    private void dispatchTransactionChanges() {
+        if (addedInTransaction.isEmpty() && removedInTransaction.isEmpty() && changedInTransaction.isEmpty() && !movedInTransaction) {
+            return;
+        }
+        CardChanges changes = new CardChanges(
+                List.copyOf(personalCards),
+                Set.copyOf(addedInTransaction),
+                Set.copyOf(removedInTransaction),
+                Set.copyOf(changedInTransaction)
+        );
+        addedInTransaction.clear();
+        removedInTransaction.clear();
+        changedInTransaction.clear();
+        movedInTransaction = false;
+        invokeListeners(listener -> listener.onCardsChanged(changes));
     }
 
     public String getCardProviderName(PersonalCard card, ConfigManager config) {
@@ -186,7 +466,11 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
 
     public synchronized void renameCard(PersonalCard card, String newName) {
         card.rename(newName);
-        persistAndFinish();
+        int index = getPersonalCards().indexOf(card);
+        if (index != -1) {
+            journal.appendRename(index, newName);
+        }
+        finishMutation();
         invokeCardChanged(card);
     }
 
@@ -195,8 +479,17 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
     }
 
     /**
-     * Move a card after another card. The card will effectively be removed from its
-     * current position and reinserted after the specified card.
+     * Get a copy of the card list that is safe to read while the store is being changed.
+     *
+     * @return The cards, in order
+     */
+    public synchronized List<PersonalCard> copyPersonalCards() {
+        return List.copyOf(getPersonalCards());
+    }
+
+    /**
+     * Move a card after another card. The card gets an order key between the keys of its new neighbours,
+     * and listeners are notified with {@link Listener#onCardMoved(PersonalCard, int, int)}.
      *
      * @param card The card to move
      * @param after The card after which to move the specified card. If null or not found,
@@ -204,28 +497,58 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
      *              "card", then the card will be swapped with its successor.
      */
     public synchronized void reorderCardAfter(PersonalCard card, PersonalCard after) {
-        beginTransaction();
-        int insertIndex = getPersonalCards().indexOf(after);
-        removeCard(card);
+        int fromIndex = getPersonalCards().indexOf(card);
+        if (fromIndex == -1) {
+            return;
+        }
+        //the target position is counted in the list without the card
+        int insertIndex = personalCards.indexOf(after);
         if (insertIndex == -1) {
             insertIndex = 0;
         } else {
             insertIndex++;
         }
-        addCard(insertIndex, card);
-        endTransaction();
+        personalCards.remove(fromIndex);
+        removeFromIndex(cardsByProvider, card.provider(), card);
+        insertIndex = Math.min(insertIndex, personalCards.size());
+        long previousKey = card.orderKey();
+        long orderKey = orderKeyForInsertion(insertIndex);
+        card.setOrderKey(orderKey);
+        personalCards.add(insertIndex, card);
+        addToProviderIndex(card);
+        journal.appendReorder(fromIndex, insertIndex, previousKey, orderKey);
+        final int toIndex = insertIndex;
+        notifyCardMoved(card, fromIndex, toIndex);
+        finishMutation();
     }
 
-    public synchronized void persist() {
-        if (inTransaction > 0) {
-            dirty = true;
-            return; // Don't persist during a transaction
+    /**
+     * Write all changes to storage now. Changes are otherwise written shortly after they are made,
+     * this should be called when the app may be about to be stopped.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (personalCards == null) {
+                return;
+            }
+            compactIfNeeded();
         }
-        if (personalCards == null) {
-            //not loaded
-            return;
+        //not holding the lock, so that listeners on other threads are not blocked by the write
+        journal.flush();
+        Log.d(LOG_TAG, "Personal cards flushed, " + journal.getPersistenceStats());
+    }
+
+    public PersistenceStats getPersistenceStats() {
+        return journal.getPersistenceStats();
+    }
+
+    /**
+     * Start compacting the journal on a background thread if it has grown too large.
+     */
+    private void compactIfNeeded() {
+        if (personalCards != null && journal.needsCompaction(personalCards.size())) {
+            journal.compactInBackground(personalCards);
         }
-        SharedPrefsHelper.saveObject(sharedPreferences, PREF_KEY, personalCards, Looper.getMainLooper().isCurrentThread());
     }
 
     public void muteListenerForNextOperation(Listener listener) {
@@ -241,14 +564,55 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
             inTransaction--;
         }
         if (inTransaction == 0) {
-            if (dirty) {
-                persist();
-                dirty = false;
-            }
+            saveNextCardId();
+            compactIfNeeded();
+            //while the listeners muted for this operation are still muted
+            dispatchTransactionChanges();
         }
         finishOperation();
     }
 
+    /**
+     * Card persistence counters.
+     *
+     * @param records          Number of changes journalled
+     * @param coalescedRecords Number of changes merged with other records or superseded by a compaction
+     * @param writes           Number of writes of pending records to storage
+     * @param totalWriteNanos  Total time spent writing pending records
+     * @param maxWriteNanos    Longest single write
+     * @param compactions      Number of journal compactions
+     */
+    public static record PersistenceStats(long records, long coalescedRecords, long writes, long totalWriteNanos, long maxWriteNanos, long compactions) {
+
+    }
+
+    /**
+     * Changes made to the card list within one transaction.
+     *
+     * @param cards   The whole card list after the changes, in order
+     * @param added   Cards added to the list
+     * @param removed Cards removed from the list
+     * @param changed Cards that were in the list before and whose properties changed
+     */
+    public static record CardChanges(List<PersonalCard> cards, Set<PersonalCard> added, Set<PersonalCard> removed, Set<PersonalCard> changed) {
+
+    }
+
+    /**
+     * Key of the duplicate index. Custom cards are additionally keyed by their provider name and format,
+     * non-custom cards have these set to null.
+     */
+    private static record SameCardKey(String provider, String cardNumber, String customProviderName, BarcodeFormat customFormat) {
+
+        static SameCardKey of(PersonalCard card) {
+            PersonalCard.CustomCardProperties custom = card.customProperties();
+            if (custom == null) {
+                return new SameCardKey(card.provider(), card.cardNumber(), null, null);
+            }
+            return new SameCardKey(card.provider(), card.cardNumber(), custom.providerName(), custom.format());
+        }
+    }
+
     @Keep
     private static class SettingValueType extends ArrayList<PersonalCard> {
 
@@ -259,5 +623,7 @@ public class PersonalCardStore extends AbstractListenerTarget<PersonalCardStore.
         public void onCardAdded(PersonalCard card);
         public void onCardRemoved(PersonalCard card);
         public void onCardChanged(PersonalCard card);
+        public void onCardMoved(PersonalCard card, int fromOrdinal, int toOrdinal);
+        public void onCardsChanged(CardChanges changes);
     }
 }
@@ -1,48 +1,162 @@
 package cz.mamstylcendy.cards.data;
 
+import android.util.Log;
+
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 
-import org.jsoup.Connection;
-import org.jsoup.Jsoup;
-
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Objects;
+import java.util.zip.GZIPInputStream;
 
 import cz.mamstylcendy.cards.BuildConfig;
 
+/**
+ * Fetches the remote config.
+ * <p>
+ * The config is fetched with a single conditional GET. The local ETag and Last-Modified values are sent
+ * in {@code If-None-Match} and {@code If-Modified-Since}, so an unchanged config costs one round trip
+ * and a {@code 304 Not Modified}. Responses may be gzip-compressed and are streamed straight into the parser.
+ * <p>
+ * If a local config with a known ETag is present, the config is also requested with delta encoding
+ * (RFC 3229): the request carries {@code A-IM: karticky-config-patch}. A server that supports it answers
+ * with {@code 226 IM Used} and a {@link ConfigPatch} against the ETag in the {@code Delta-Base} header.
+ * Servers that do not support delta encoding simply return the full config. If the patch does not apply
+ * to the local config, the full config is downloaded instead.
+ */
 public class RemoteConfigFetcher {
 
+    private static final String LOG_TAG = RemoteConfigFetcher.class.getSimpleName();
+
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private static final String DELTA_INSTANCE_MANIPULATION = "karticky-config-patch";
+    private static final int HTTP_IM_USED = 226;
+
     private static final ObjectMapper SAFE_OBJECT_MAPPER = JsonMapper.builder()
             .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
             .build();
 
-    private static Connection.Response sendConfigRequest(Connection.Method method) throws IOException {
-        return Jsoup.connect(BuildConfig.REMOTE_CONFIG_LOCATION)
-                .method(method)
-                .ignoreContentType(true)
-                .timeout(10000)
-                .execute();
+    private static HttpURLConnection openConfigConnection(URL location, String ifNoneMatch, String ifModifiedSince, boolean acceptDelta) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) location.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        // setting this explicitly disables transparent decompression, so that the compressed size can be measured
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (ifNoneMatch != null) {
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        if (ifModifiedSince != null) {
+            connection.setRequestProperty("If-Modified-Since", ifModifiedSince);
+        }
+        if (acceptDelta) {
+            connection.setRequestProperty("A-IM", DELTA_INSTANCE_MANIPULATION);
+        }
+        return connection;
     }
 
-    public static Result fetchRemoteConfig(CardsConfig current, String currentETag) throws IOException {
-        Connection.Response response = sendConfigRequest(Connection.Method.HEAD);
+    /**
+     * Fetch the remote config if it has changed.
+     *
+     * @param current             The current local config, used as the base for patches
+     * @param currentETag         ETag of the current local config, or null
+     * @param currentLastModified Last-Modified value of the current local config, or null.
+     *                            Each validator that is present is sent on its own, pass null for both to force a download.
+     * @return The fetch result
+     * @throws IOException If the config could not be fetched
+     */
+    public static Result fetchRemoteConfig(CardsConfig current, String currentETag, String currentLastModified) throws IOException {
+        return fetchRemoteConfig(new URL(BuildConfig.REMOTE_CONFIG_LOCATION), current, currentETag, currentLastModified);
+    }
 
-        String etag = null;
+    static Result fetchRemoteConfig(URL location, CardsConfig current, String currentETag, String currentLastModified) throws IOException {
+        long startTime = System.nanoTime();
+        boolean acceptDelta = current != null && currentETag != null;
 
-        if (response.hasHeader("ETag")) {
-            etag = response.header("ETag");
-            if (currentETag != null && Objects.equals(etag, currentETag)) {
-                return new Result(Status.NO_CHANGE, current, etag);
+        HttpURLConnection connection = openConfigConnection(location, currentETag, currentLastModified, acceptDelta);
+        try {
+            int status = connection.getResponseCode();
+            String etag = connection.getHeaderField("ETag");
+
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED || (etag != null && Objects.equals(etag, currentETag))) {
+                Stats stats = new Stats(false, 0, 0, System.nanoTime() - startTime);
+                return new Result(Status.NO_CHANGE, current, currentETag, currentLastModified, stats);
             }
-        }
 
-        response = sendConfigRequest(Connection.Method.GET);
+            if (status == HTTP_IM_USED) {
+                Result patched = readPatchResponse(connection, current, currentETag, startTime);
+                if (patched != null) {
+                    return patched;
+                }
+                //patch chain is broken, fall back to the full config
+                connection.disconnect();
+                connection = openConfigConnection(location, null, null, false);
+                status = connection.getResponseCode();
+            }
+
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected HTTP status: " + status);
+            }
 
-        CardsConfig config = SAFE_OBJECT_MAPPER.readValue(response.body(), CardsConfig.class);
+            long processStart = System.nanoTime();
+            CountingInputStream counter = new CountingInputStream(connection.getInputStream());
+            CardsConfig config;
+            try (InputStream body = openBody(connection, counter)) {
+                config = SAFE_OBJECT_MAPPER.readValue(body, CardsConfig.class);
+            }
+            long endTime = System.nanoTime();
+            Stats stats = new Stats(false, counter.getCount(), endTime - processStart, endTime - startTime);
+            Log.d(LOG_TAG, "Downloaded full config: " + stats);
+
+            return new Result(Status.SUCCESS, config, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), stats);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static Result readPatchResponse(HttpURLConnection connection, CardsConfig current, String deltaBase, long startTime) throws IOException {
+        String im = connection.getHeaderField("IM");
+        if (im == null || !im.contains(DELTA_INSTANCE_MANIPULATION)) {
+            Log.w(LOG_TAG, "Unsupported instance manipulation: " + im);
+            return null;
+        }
+        String responseDeltaBase = connection.getHeaderField("Delta-Base");
+        if (!Objects.equals(responseDeltaBase, deltaBase)) {
+            Log.w(LOG_TAG, "Config patch has unexpected base " + responseDeltaBase + ", expected " + deltaBase);
+            return null;
+        }
+        try {
+            long processStart = System.nanoTime();
+            CountingInputStream counter = new CountingInputStream(connection.getInputStream());
+            ConfigPatch patch;
+            try (InputStream body = openBody(connection, counter)) {
+                patch = SAFE_OBJECT_MAPPER.readValue(body, ConfigPatch.class);
+            }
+            if (patch.baseETag() != null && !Objects.equals(patch.baseETag(), deltaBase)) {
+                throw new ConfigPatch.PatchConflictException("Patch base " + patch.baseETag() + " does not match " + deltaBase);
+            }
+            CardsConfig config = patch.applyTo(current);
+            long endTime = System.nanoTime();
+            Stats stats = new Stats(true, counter.getCount(), endTime - processStart, endTime - startTime);
+            Log.d(LOG_TAG, "Applied config patch: " + stats);
+            return new Result(Status.SUCCESS, config, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), stats);
+        } catch (IOException | RuntimeException e) {
+            //a malformed patch may also fail with an unchecked exception, the full config is still the way out
+            Log.w(LOG_TAG, "Failed to apply config patch", e);
+            return null;
+        }
+    }
 
-        return new Result(Status.SUCCESS, config, etag);
+    private static InputStream openBody(HttpURLConnection connection, InputStream raw) throws IOException {
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            return new GZIPInputStream(raw);
+        }
+        return raw;
     }
 
     public static enum Status {
@@ -51,7 +165,57 @@ public class RemoteConfigFetcher {
         INCOMPATIBLE
     }
 
-    public static record Result(Status status, CardsConfig config, String eTag) {
+    /**
+     * Transfer statistics of a config fetch.
+     *
+     * @param delta             Whether the config was obtained by applying a patch
+     * @param bytesReceived     Size of the response body as transferred, that is, before decompression
+     * @param processNanos      Time spent reading, parsing and, for patches, applying the response body
+     * @param timeToResultNanos Time from opening the connection to having the result
+     */
+    public static record Stats(boolean delta, long bytesReceived, long processNanos, long timeToResultNanos) {
+
+    }
+
+    public static record Result(Status status, CardsConfig config, String eTag, String lastModified, Stats stats) {
+
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
 
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
     }
 }
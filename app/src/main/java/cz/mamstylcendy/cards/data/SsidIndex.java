@@ -0,0 +1,225 @@
+package cz.mamstylcendy.cards.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Immutable hash index from SSIDs to provider IDs, built once per config.
+ * <p>
+ * Keys are stored as UTF-8 bytes. Lookups by string are hashed and compared by encoding the string
+ * on the fly, so they do not allocate, and the quotes Android puts around textual SSIDs are skipped
+ * without creating a substring. SSIDs without an exact mapping are matched against the
+ * {@link CardsConfig#wlanPatterns() patterns} of the config.
+ */
+public class SsidIndex {
+
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private static final int NO_ENTRY = -1;
+
+    private final CardsConfig source;
+
+    private final int[] slots;
+    private final int mask;
+    private final int[] hashes;
+    private final byte[][] keys;
+    private final String[] providers;
+
+    private final SsidPatternMatcher patterns;
+
+    private SsidIndex(CardsConfig source) {
+        this.source = source;
+
+        Map<String, String> mappings = source.wlanMappings();
+        int capacity = Integer.highestOneBit(Math.max(mappings.size(), 1) * 4 - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(slots, NO_ENTRY);
+
+        hashes = new int[mappings.size()];
+        keys = new byte[mappings.size()][];
+        providers = new String[mappings.size()];
+
+        int entry = 0;
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            byte[] key = mapping.getKey().getBytes(StandardCharsets.UTF_8);
+            int hash = hash(key, 0, key.length);
+            keys[entry] = key;
+            hashes[entry] = hash;
+            providers[entry] = mapping.getValue();
+
+            int slot = hash & mask;
+            while (slots[slot] != NO_ENTRY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry;
+            entry++;
+        }
+
+        patterns = SsidPatternMatcher.compile(source.wlanPatterns());
+    }
+
+    /**
+     * Build an index of the WLAN mappings of a config.
+     *
+     * @param config The config
+     * @return The index
+     */
+    public static SsidIndex build(CardsConfig config) {
+        return new SsidIndex(config);
+    }
+
+    /**
+     * Check whether this index was built from a config.
+     *
+     * @param config The config
+     * @return True if this index reflects the given config
+     */
+    public boolean isFor(CardsConfig config) {
+        return source == config;
+    }
+
+    /**
+     * Find the provider mapped to an SSID as returned by Android, that is, either in quotes
+     * for textual SSIDs or unquoted.
+     *
+     * @param ssid The SSID
+     * @return The provider ID, or null if the SSID is not known
+     */
+    public String findProvider(String ssid) {
+        if (ssid == null) {
+            return null;
+        }
+        int start = 0;
+        int end = ssid.length();
+        // textova SSID maji v androidu na zacatku a konci uvozovky
+        if (end >= 2 && ssid.charAt(0) == '"' && ssid.charAt(end - 1) == '"') {
+            start++;
+            end--;
+        }
+        int hash = hash(ssid, start, end);
+        for (int slot = hash & mask; slots[slot] != NO_ENTRY; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (hashes[entry] == hash && utf8Equals(ssid, start, end, keys[entry])) {
+                return providers[entry];
+            }
+        }
+        return patterns.findProvider(ssid, start, end);
+    }
+
+    /**
+     * Find the provider mapped to a raw SSID, such as the result of {@code WifiSsid.getBytes()}.
+     *
+     * @param ssid The SSID bytes
+     * @return The provider ID, or null if the SSID is not known
+     */
+    public String findProvider(byte[] ssid) {
+        int hash = hash(ssid, 0, ssid.length);
+        for (int slot = hash & mask; slots[slot] != NO_ENTRY; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (hashes[entry] == hash && Arrays.equals(ssid, keys[entry])) {
+                return providers[entry];
+            }
+        }
+        return patterns.findProvider(ssid, 0, ssid.length);
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * FNV-1a hash of the UTF-8 encoding of a string range, computed without encoding the string.
+     * Unpaired surrogates are encoded as '?', same as {@link String#getBytes(java.nio.charset.Charset)}.
+     */
+    private static int hash(String s, int start, int end) {
+        int hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                hash = (hash ^ c) * FNV_PRIME;
+            } else if (c < 0x800) {
+                hash = (hash ^ (0xC0 | (c >> 6))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+            } else if (Character.isSurrogate(c)) {
+                int cp = codePointAt(s, i, end);
+                if (cp < 0) {
+                    hash = (hash ^ '?') * FNV_PRIME;
+                } else {
+                    hash = (hash ^ (0xF0 | (cp >> 18))) * FNV_PRIME;
+                    hash = (hash ^ (0x80 | ((cp >> 12) & 0x3F))) * FNV_PRIME;
+                    hash = (hash ^ (0x80 | ((cp >> 6) & 0x3F))) * FNV_PRIME;
+                    hash = (hash ^ (0x80 | (cp & 0x3F))) * FNV_PRIME;
+                    i++;
+                }
+            } else {
+                hash = (hash ^ (0xE0 | (c >> 12))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | ((c >> 6) & 0x3F))) * FNV_PRIME;
+                hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private static boolean utf8Equals(String s, int start, int end, byte[] key) {
+        int pos = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (pos + 1 > key.length || key[pos++] != (byte) c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (pos + 2 > key.length
+                        || key[pos++] != (byte) (0xC0 | (c >> 6))
+                        || key[pos++] != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            } else if (Character.isSurrogate(c)) {
+                int cp = codePointAt(s, i, end);
+                if (cp < 0) {
+                    if (pos + 1 > key.length || key[pos++] != '?') {
+                        return false;
+                    }
+                } else {
+                    if (pos + 4 > key.length
+                            || key[pos++] != (byte) (0xF0 | (cp >> 18))
+                            || key[pos++] != (byte) (0x80 | ((cp >> 12) & 0x3F))
+                            || key[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3F))
+                            || key[pos++] != (byte) (0x80 | (cp & 0x3F))) {
+                        return false;
+                    }
+                    i++;
+                }
+            } else {
+                if (pos + 3 > key.length
+                        || key[pos++] != (byte) (0xE0 | (c >> 12))
+                        || key[pos++] != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || key[pos++] != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return pos == key.length;
+    }
+
+    /**
+     * @return The supplementary code point starting at index i, or -1 if the surrogate at i is unpaired
+     */
+    private static int codePointAt(String s, int i, int end) {
+        char c = s.charAt(i);
+        if (Character.isHighSurrogate(c) && i + 1 < end) {
+            char low = s.charAt(i + 1);
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(c, low);
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,373 @@
+package cz.mamstylcendy.cards.data;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches SSIDs against a set of glob patterns at once.
+ * <p>
+ * In a pattern, {@code *} stands for any sequence of characters, {@code ?} for a single character and
+ * {@code \} escapes the following character, so {@code LIDL-Free-WiFi-*} is a prefix pattern and
+ * {@code *-BILLA} a suffix pattern. Patterns are matched against the whole SSID, case-sensitively.
+ * <p>
+ * All patterns are compiled into a single NFA, which is turned into a DFA lazily, one state at a time,
+ * as SSIDs are matched. Once the states visited by typical SSIDs are built, matching costs one table
+ * lookup per character regardless of the number of patterns. If an SSID matches several patterns,
+ * the one declared first wins. The number of cached DFA states is bounded; when the bound is reached,
+ * the cache is discarded and rebuilt from scratch.
+ */
+public class SsidPatternMatcher {
+
+    private static final String LOG_TAG = SsidPatternMatcher.class.getSimpleName();
+
+    private static final int MAX_DFA_STATES = 2048;
+    private static final int ASCII_LIMIT = 128;
+
+    private static final int REPLACEMENT_CHARACTER = 0xFFFD;
+
+    private static final int TOKEN_ANY_SEQUENCE = -1;
+    private static final int TOKEN_ANY_CHAR = -2;
+
+    private static final SsidPatternMatcher EMPTY = new SsidPatternMatcher(Map.of());
+
+    /**
+     * Pattern tokens, that is, code points or one of the TOKEN_ constants, of all patterns concatenated.
+     * NFA state n is the position before tokens[n]. The state after the last token of a pattern is its accepting state.
+     */
+    private final int[] tokens;
+    /**
+     * For each NFA state, the index of the pattern it belongs to.
+     */
+    private final int[] statePattern;
+    /**
+     * For each pattern, the index of its accepting NFA state.
+     */
+    private final int[] acceptStates;
+    private final String[] providers;
+
+    private final Map<StateSet, DfaState> dfaStates = new HashMap<>();
+    private volatile DfaState startState;
+
+    private SsidPatternMatcher(Map<String, String> patterns) {
+        List<int[]> compiled = new ArrayList<>(patterns.size());
+        int stateCount = 0;
+        for (String pattern : patterns.keySet()) {
+            int[] patternTokens = tokenize(pattern);
+            compiled.add(patternTokens);
+            stateCount += patternTokens.length + 1;
+        }
+
+        tokens = new int[stateCount];
+        statePattern = new int[stateCount];
+        acceptStates = new int[compiled.size()];
+        providers = patterns.values().toArray(new String[0]);
+
+        int state = 0;
+        for (int i = 0; i < compiled.size(); i++) {
+            int[] patternTokens = compiled.get(i);
+            System.arraycopy(patternTokens, 0, tokens, state, patternTokens.length);
+            Arrays.fill(statePattern, state, state + patternTokens.length + 1, i);
+            state += patternTokens.length;
+            acceptStates[i] = state;
+            tokens[state] = 0;
+            state++;
+        }
+    }
+
+    /**
+     * Compile a set of patterns.
+     *
+     * @param patterns Map of patterns to provider IDs, in order of priority
+     * @return The matcher
+     */
+    public static SsidPatternMatcher compile(Map<String, String> patterns) {
+        if (patterns == null || patterns.isEmpty()) {
+            return EMPTY;
+        }
+        return new SsidPatternMatcher(patterns);
+    }
+
+    public boolean isEmpty() {
+        return providers.length == 0;
+    }
+
+    /**
+     * Find the provider of the first pattern matching an SSID.
+     *
+     * @param ssid  The SSID
+     * @param start Start of the SSID in the string, inclusive
+     * @param end   End of the SSID in the string, exclusive
+     * @return The provider ID, or null if no pattern matches
+     */
+    public String findProvider(String ssid, int start, int end) {
+        if (isEmpty()) {
+            return null;
+        }
+        DfaState state = getStartState();
+        for (int i = start; i < end && !state.dead; ) {
+            int c = ssid.codePointAt(i);
+            i += Character.charCount(c);
+            state = next(state, c);
+        }
+        return state.provider;
+    }
+
+    public String findProvider(String ssid) {
+        return findProvider(ssid, 0, ssid.length());
+    }
+
+    /**
+     * Find the provider of the first pattern matching a raw SSID. The bytes are decoded as UTF-8 while they are
+     * matched, without building a string. Malformed sequences match as U+FFFD, replaced the same way
+     * as in a string decoded by {@link String#String(byte[], java.nio.charset.Charset)}.
+     *
+     * @param ssid  The SSID bytes
+     * @param start Start of the SSID in the array, inclusive
+     * @param end   End of the SSID in the array, exclusive
+     * @return The provider ID, or null if no pattern matches
+     */
+    public String findProvider(byte[] ssid, int start, int end) {
+        if (isEmpty()) {
+            return null;
+        }
+        DfaState state = getStartState();
+        for (int i = start; i < end && !state.dead; ) {
+            int lead = ssid[i++] & 0xFF;
+            if (lead < 0x80) {
+                state = next(state, lead);
+                continue;
+            }
+            int c;
+            int continuations;
+            //the range of the first continuation byte excludes overlong forms and code points above U+10FFFF
+            int min = 0x80;
+            int max = 0xBF;
+            if (lead >= 0xC2 && lead <= 0xDF) {
+                c = lead & 0x1F;
+                continuations = 1;
+            } else if (lead >= 0xE0 && lead <= 0xEF) {
+                c = lead & 0x0F;
+                continuations = 2;
+                if (lead == 0xE0) {
+                    min = 0xA0;
+                }
+            } else if (lead >= 0xF0 && lead <= 0xF4) {
+                c = lead & 0x07;
+                continuations = 3;
+                if (lead == 0xF0) {
+                    min = 0x90;
+                } else if (lead == 0xF4) {
+                    max = 0x8F;
+                }
+            } else {
+                c = REPLACEMENT_CHARACTER;
+                continuations = 0;
+            }
+            for (; continuations > 0; continuations--) {
+                int b = i < end ? ssid[i] & 0xFF : -1;
+                if (b < min || b > max) {
+                    //the bytes consumed so far are replaced, the current one starts the next character
+                    c = REPLACEMENT_CHARACTER;
+                    break;
+                }
+                c = (c << 6) | (b & 0x3F);
+                i++;
+                min = 0x80;
+                max = 0xBF;
+            }
+            if (Character.isSurrogate((char) c) && c <= Character.MAX_VALUE) {
+                //an encoded surrogate is replaced as a whole
+                c = REPLACEMENT_CHARACTER;
+            }
+            state = next(state, c);
+        }
+        return state.provider;
+    }
+
+    private DfaState getStartState() {
+        DfaState state = startState;
+        if (state == null) {
+            synchronized (this) {
+                state = startState;
+                if (state == null) {
+                    int[] initial = new int[acceptStates.length];
+                    int previousAccept = -1;
+                    for (int i = 0; i < acceptStates.length; i++) {
+                        initial[i] = previousAccept + 1;
+                        previousAccept = acceptStates[i];
+                    }
+                    state = intern(closure(initial, initial.length));
+                    startState = state;
+                }
+            }
+        }
+        return state;
+    }
+
+    private DfaState next(DfaState state, int c) {
+        if (c < ASCII_LIMIT) {
+            DfaState next = state.asciiTransitions[c];
+            if (next == null) {
+                synchronized (this) {
+                    next = state.asciiTransitions[c];
+                    if (next == null) {
+                        next = computeTransition(state, c);
+                        state.asciiTransitions[c] = next;
+                    }
+                }
+            }
+            return next;
+        }
+        synchronized (this) {
+            DfaState next = state.otherTransitions.get(c);
+            if (next == null) {
+                next = computeTransition(state, c);
+                state.otherTransitions.put(c, next);
+            }
+            return next;
+        }
+    }
+
+    private DfaState computeTransition(DfaState state, int c) {
+        int[] nfaStates = state.nfaStates;
+        int[] targets = new int[nfaStates.length];
+        int count = 0;
+        for (int nfaState : nfaStates) {
+            if (isAccept(nfaState)) {
+                continue;
+            }
+            int token = tokens[nfaState];
+            if (token == TOKEN_ANY_SEQUENCE) {
+                targets[count++] = nfaState;
+            } else if (token == TOKEN_ANY_CHAR || token == c) {
+                targets[count++] = nfaState + 1;
+            }
+        }
+        if (dfaStates.size() >= MAX_DFA_STATES) {
+            // states that are still referenced keep working, they just stop being shared
+            Log.d(LOG_TAG, "DFA state cache full, resetting");
+            dfaStates.clear();
+            startState = null;
+        }
+        return intern(closure(targets, count));
+    }
+
+    /**
+     * Extend a set of NFA states with the states reachable by letting a {@code *} match an empty sequence.
+     *
+     * @return The sorted, deduplicated state set
+     */
+    private int[] closure(int[] states, int count) {
+        int[] result = new int[count * 2];
+        int resultCount = 0;
+        for (int i = 0; i < count; i++) {
+            int state = states[i];
+            while (true) {
+                if (resultCount == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2 + 1);
+                }
+                result[resultCount++] = state;
+                if (isAccept(state) || tokens[state] != TOKEN_ANY_SEQUENCE) {
+                    break;
+                }
+                state++;
+            }
+        }
+        Arrays.sort(result, 0, resultCount);
+        int unique = 0;
+        for (int i = 0; i < resultCount; i++) {
+            if (unique == 0 || result[unique - 1] != result[i]) {
+                result[unique++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, unique);
+    }
+
+    private DfaState intern(int[] nfaStates) {
+        StateSet key = new StateSet(nfaStates);
+        DfaState state = dfaStates.get(key);
+        if (state == null) {
+            String provider = null;
+            int bestPattern = Integer.MAX_VALUE;
+            for (int nfaState : nfaStates) {
+                int pattern = statePattern[nfaState];
+                if (isAccept(nfaState) && pattern < bestPattern) {
+                    bestPattern = pattern;
+                    provider = providers[pattern];
+                }
+            }
+            state = new DfaState(nfaStates, provider);
+            dfaStates.put(key, state);
+        }
+        return state;
+    }
+
+    private boolean isAccept(int nfaState) {
+        return acceptStates[statePattern[nfaState]] == nfaState;
+    }
+
+    private static int[] tokenize(String pattern) {
+        int[] result = new int[pattern.length()];
+        int count = 0;
+        for (int i = 0; i < pattern.length(); ) {
+            int c = pattern.codePointAt(i);
+            i += Character.charCount(c);
+            if (c == '\\' && i < pattern.length()) {
+                c = pattern.codePointAt(i);
+                i += Character.charCount(c);
+                result[count++] = c;
+            } else if (c == '*') {
+                // ** je totez co *
+                if (count == 0 || result[count - 1] != TOKEN_ANY_SEQUENCE) {
+                    result[count++] = TOKEN_ANY_SEQUENCE;
+                }
+            } else if (c == '?') {
+                result[count++] = TOKEN_ANY_CHAR;
+            } else {
+                result[count++] = c;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static class DfaState {
+
+        final int[] nfaStates;
+        final String provider;
+        final boolean dead;
+        final DfaState[] asciiTransitions = new DfaState[ASCII_LIMIT];
+        final Map<Integer, DfaState> otherTransitions = new HashMap<>();
+
+        DfaState(int[] nfaStates, String provider) {
+            this.nfaStates = nfaStates;
+            this.provider = provider;
+            this.dead = nfaStates.length == 0;
+        }
+    }
+
+    private static class StateSet {
+
+        private final int[] states;
+        private final int hash;
+
+        StateSet(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateSet && Arrays.equals(states, ((StateSet) o).states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
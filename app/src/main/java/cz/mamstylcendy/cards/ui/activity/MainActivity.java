@@ -49,6 +49,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Predicate;
 
 import javax.inject.Inject;
@@ -56,6 +57,7 @@ import javax.inject.Inject;
 import cz.mamstylcendy.cards.AppUpdateChecker;
 import cz.mamstylcendy.cards.CardsApplication;
 import cz.mamstylcendy.cards.beacon.BackgroundWlanCheckWorker;
+import cz.mamstylcendy.cards.beacon.BeaconStats;
 import cz.mamstylcendy.cards.BuildConfig;
 import cz.mamstylcendy.cards.beacon.CardNotificationManager;
 import cz.mamstylcendy.cards.ui.dialogs.CommonDialogs;
@@ -116,6 +118,8 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
     WlanFencingManager wlanFencingManager;
     @Inject
     CardNotificationManager cardNotificationManager;
+    @Inject
+    BeaconStats beaconStats;
 
     private ActivityMainBinding ui;
     private ProviderCardView autoDetectCard;
@@ -369,6 +373,18 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
 
         personalCardAdapter.addAll(personalCardStore.getPersonalCards());
         personalCardStore.addListener(personalCardAdapter, AsyncUtils.getLifecycleExecutor(this));
+        personalCardAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            //batched changes reach the adapter only after they are diffed, switch the placeholder once they do
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateSelectedCardList();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateSelectedCardList();
+            }
+        });
 
         listEmptyPlaceholderAdapter = new SingleViewAdapter(() -> {
             TextView tv = new TextView(this);
@@ -597,7 +613,7 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
             locationPermissionRequester.request(grantedMask -> {
                 if ((grantedMask & PermissionRequestHelper.FINE_LOCATION) != 0) {
                     showAutoProviderIfExists();
-                    wlanFencingManager.update();
+                    wlanFencingManager.requestUpdate();
                 } else {
                     persistAutoDetectSetting(false);
                     showLocationRationale();
@@ -634,7 +650,7 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
     protected void onResume() {
         super.onResume();
         if (canUseAutoDetect() && !wlanFencingManager.isExplicitScanNeeded()) {
-            wlanFencingManager.update();
+            wlanFencingManager.requestUpdate();
         }
         tryScheduleWorker();
         showNotificationPermissionPromptIfNeeded();
@@ -683,6 +699,9 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
         if (!animateCardsOnNextStart) {
             ui.rvCards.setItemAnimator(null);
         }
+        personalCardStore.flush();
+        //the process may be killed while in the background, before the hour of the counts is over
+        beaconStats.flush();
     }
 
     private void showNotificationPermissionPromptIfNeeded() {
@@ -1087,29 +1106,37 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
     private void updateRemoteConfig() {
         tvRemoteConfigState.setText(R.string.remote_config_updating);
         String etag = prefs.getLastRemoteEtag();
+        String lastModified = prefs.getLastRemoteLastModified();
         if (prefs.getLastRemoteUpdate() == null || BuildConfig.BUILD_TIME.isAfter(prefs.getLastRemoteUpdate())) {
             etag = null; //force update
+            lastModified = null;
         }
         final String _etag = etag;
+        final String _lastModified = lastModified;
         AsyncUtils.supplyAsync(
-                () -> RemoteConfigFetcher.fetchRemoteConfig(configManager.getCurrentConfig(), _etag)
+                () -> RemoteConfigFetcher.fetchRemoteConfig(configManager.getCurrentConfig(), _etag, _lastModified)
         ).handleAsync((result, throwable) -> {
             if (throwable != null) {
                 displayRemoteConfigError(throwable);
             } else {
                 if (result.status() == RemoteConfigFetcher.Status.SUCCESS) {
-                    try {
-                        configManager.updateConfig(result.config());
+                    configManager.updateConfig(result.config()).thenRun(() -> {
+                        //only remember the new version once it is safely persisted
                         prefs.putLastRemoteUpdate(Instant.now());
                         prefs.putLastRemoteEtag(result.eTag());
-                        displayDefaultRemoteConfigState();
-                        if (showingProvider != null && configManager.getProviderInfo(showingProvider) != null) {
-                            //show new card to make sure invalid ones are discarded
-                            refreshCurrentUniversalCard();
+                        prefs.putLastRemoteLastModified(result.lastModified());
+                    }).handleAsync((unused, persistError) -> {
+                        if (persistError != null) {
+                            Log.e(LOG_TAG, "Failed to update remote config", persistError);
+                            displayRemoteConfigError(persistError instanceof CompletionException ? persistError.getCause() : persistError);
+                        } else {
+                            displayDefaultRemoteConfigState();
                         }
-                    } catch (IOException e) {
-                        Log.e(LOG_TAG, "Failed to update remote config", e);
-                        displayRemoteConfigError(e);
+                        return null;
+                    }, AsyncUtils.getLifecycleExecutor(this));
+                    if (showingProvider != null && configManager.getProviderInfo(showingProvider) != null) {
+                        //show new card to make sure invalid ones are discarded
+                        refreshCurrentUniversalCard();
                     }
                 } else if (result.status() == RemoteConfigFetcher.Status.NO_CHANGE) {
                     displayDefaultRemoteConfigState();
@@ -1219,14 +1246,15 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
 
     @Override
     public void onCardRemoved(PersonalCard card) {
-        //assumption: drag and drop will never ever move a row if there is only one row.
-        //otherwise, as reordering first removes the card and then re-adds it, it could
-        //appear that the adapter is empty and the activity would show the empty placeholder,
-        //which would cause crashes
         updateSelectedCardList();
         onCardChanged(card);
     }
 
+    @Override
+    public void onCardMoved(PersonalCard card, int fromOrdinal, int toOrdinal) {
+        //the card list adapter follows the move on its own
+    }
+
     @Override
     public void onCardChanged(PersonalCard card) {
         if (showingPersonalCardId != null && card.id() == showingPersonalCardId) {
@@ -1234,6 +1262,26 @@ public class MainActivity extends AppCompatActivity implements WlanFencingManage
         }
     }
 
+    @Override
+    public void onCardsChanged(PersonalCardStore.CardChanges changes) {
+        boolean refresh = false;
+        if (showingPersonalCardId != null) {
+            for (PersonalCard card : changes.removed()) {
+                refresh |= card.id() == showingPersonalCardId;
+            }
+            for (PersonalCard card : changes.changed()) {
+                refresh |= card.id() == showingPersonalCardId;
+            }
+        } else if (showingProvider != null) {
+            for (PersonalCard card : changes.added()) {
+                refresh |= Objects.equals(showingProvider, card.provider());
+            }
+        }
+        if (refresh) {
+            refreshCurrentUniversalCard();
+        }
+    }
+
     private static record CardLoadingResult(String code, PersonalCard personalCard,
                                             ZxingCodeDrawable codeDrawable) {
 
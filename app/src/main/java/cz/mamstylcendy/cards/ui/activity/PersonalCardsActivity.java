@@ -225,6 +225,12 @@ public class PersonalCardsActivity extends CardListBaseActivity {
         startActivity(ExportMethodJunctionActivity.newIntent(this, cardIDs));
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        personalCardStore.flush();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
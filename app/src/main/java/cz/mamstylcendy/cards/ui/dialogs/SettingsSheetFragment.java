@@ -18,12 +18,15 @@ import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import com.google.android.material.bottomsheet.BottomSheetDialogFragment;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import javax.inject.Inject;
 
 import cz.mamstylcendy.cards.CardsApplication;
 import cz.mamstylcendy.cards.beacon.BackgroundWlanCheckWorker;
+import cz.mamstylcendy.cards.beacon.BeaconStats;
 import cz.mamstylcendy.cards.BuildConfig;
 import cz.mamstylcendy.cards.R;
 import cz.mamstylcendy.cards.beacon.WlanFencingManager;
@@ -40,6 +43,8 @@ public class SettingsSheetFragment extends BottomSheetDialogFragment implements
     CardsPreferences prefs;
     @Inject
     WlanFencingManager wlanFencingManager;
+    @Inject
+    BeaconStats beaconStats;
 
     private SettingsSheetBinding binding;
     private boolean freezeChanges = false;
@@ -121,6 +126,11 @@ public class SettingsSheetFragment extends BottomSheetDialogFragment implements
 
         binding.btnBlacklistManagement.setOnClickListener(v -> startActivity(new Intent(requireContext(), ManageBlacklistActivity.class)));
         binding.btnPersonalCards.setOnClickListener(v -> startActivity(new Intent(requireContext(), PersonalCardsActivity.class)));
+        binding.btnBeaconStats.setOnClickListener(v -> showBeaconStatsDialog());
+
+        //scan traces are only needed to replay detection problems in JVM tests
+        binding.swRecordScanTrace.setVisibility(BuildConfig.DEBUG ? View.VISIBLE : View.GONE);
+        binding.swRecordScanTrace.setOnClickListener(v -> performChange(() -> prefs.putWlanTraceRecordingEnabled(binding.swRecordScanTrace.isChecked())));
 
         binding.tvGdprLink.setOnClickListener(v -> showGdprDialog());
         binding.tvAppVersion.setText(getString(R.string.app_version_format, BuildConfig.VERSION_NAME, BuildConfig.BUILD_TYPE));
@@ -133,6 +143,66 @@ public class SettingsSheetFragment extends BottomSheetDialogFragment implements
                 .show();
     }
 
+    private void showBeaconStatsDialog() {
+        List<BeaconStats.Bucket> buckets = beaconStats.getBuckets();
+        String message;
+        if (buckets.isEmpty()) {
+            message = getString(R.string.beacon_stats_empty);
+        } else {
+            long now = System.currentTimeMillis();
+            message = formatBeaconStats(R.string.beacon_stats_last_day, BeaconStats.sum(buckets, now - TimeUnit.DAYS.toMillis(1)))
+                    + "\n\n"
+                    + formatBeaconStats(R.string.beacon_stats_last_week, BeaconStats.sum(buckets, now - TimeUnit.DAYS.toMillis(7)));
+        }
+        MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(requireContext())
+                .setTitle(R.string.beacon_stats_title)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null);
+        if (!buckets.isEmpty()) {
+            builder.setNeutralButton(R.string.btn_export, (dialog, which) -> {
+                Intent send = new Intent(Intent.ACTION_SEND)
+                        .setType("text/csv")
+                        .putExtra(Intent.EXTRA_SUBJECT, getString(R.string.beacon_stats_title))
+                        .putExtra(Intent.EXTRA_TEXT, BeaconStats.toCsv(buckets));
+                startActivity(Intent.createChooser(send, getString(R.string.btn_export)));
+            });
+        }
+        builder.show();
+    }
+
+    private String formatBeaconStats(int periodRes, BeaconStats.Bucket stats) {
+        int updates = stats.getTimedCount(BeaconStats.Timer.UPDATE);
+        int workerRuns = stats.getTimedCount(BeaconStats.Timer.WORKER_RUN);
+        return getString(R.string.beacon_stats_period_format,
+                getString(periodRes),
+                stats.getCount(BeaconStats.Counter.WORKER_RUNS),
+                formatMeanDuration(stats.getTotalMicros(BeaconStats.Timer.WORKER_RUN), workerRuns),
+                stats.getCount(BeaconStats.Counter.UPDATES),
+                formatMeanDuration(stats.getTotalMicros(BeaconStats.Timer.UPDATE), updates),
+                formatPercentileDuration(stats, BeaconStats.Timer.UPDATE, 0.95),
+                stats.getCount(BeaconStats.Counter.SCAN_RESULTS),
+                stats.getCount(BeaconStats.Counter.LISTENER_DISPATCHES),
+                stats.getCount(BeaconStats.Counter.NOTIFICATIONS_POSTED),
+                stats.getCount(BeaconStats.Counter.NOTIFICATIONS_SUPPRESSED),
+                stats.getCount(BeaconStats.Counter.NOTIFICATION_STATE_WRITES),
+                stats.getCount(BeaconStats.Counter.SCANS_REQUESTED),
+                stats.getCount(BeaconStats.Counter.SCANS_GRANTED),
+                stats.getCount(BeaconStats.Counter.SCANS_SKIPPED)
+        );
+    }
+
+    private String formatMeanDuration(long totalMicros, int count) {
+        return getString(R.string.duration_ms_format, count == 0 ? 0f : totalMicros / 1000f / count);
+    }
+
+    private String formatPercentileDuration(BeaconStats.Bucket stats, BeaconStats.Timer timer, double fraction) {
+        long micros = stats.getPercentileMicros(timer, fraction);
+        if (micros == Long.MAX_VALUE) {
+            return getString(R.string.duration_over_ms_format, BeaconStats.LARGEST_HISTOGRAM_BOUND_MICROS / 1000f);
+        }
+        return getString(R.string.duration_ms_format, micros / 1000f);
+    }
+
     private void showBackgroundScanUnsupportedError() {
         new MaterialAlertDialogBuilder(requireContext())
                 .setTitle(R.string.background_scan_unsupported_title)
@@ -159,6 +229,7 @@ public class SettingsSheetFragment extends BottomSheetDialogFragment implements
         binding.swUseNotifications.setChecked(prefs.isBGNotificationEnabled());
         binding.etWlanCheckInterval.setText(String.valueOf(prefs.getBackgroundCheckInterval()));
         binding.etMinWifiSignal.setText(String.valueOf(prefs.getMinWlanDbm()));
+        binding.swRecordScanTrace.setChecked(prefs.isWlanTraceRecordingEnabled());
     }
 
     @Override
@@ -1,9 +1,17 @@
 package cz.mamstylcendy.cards.ui.view;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import cz.mamstylcendy.cards.data.PersonalCard;
 import cz.mamstylcendy.cards.data.PersonalCardStore;
 import cz.spojenka.android.ui.helpers.ArrayListAdapter;
@@ -13,6 +21,7 @@ public abstract class PersonalCardListAdapterBase<E, PCV extends ProviderCardVie
 
     private final PersonalCardStore personalCardStore;
     private ItemTouchHelper itemTouchHelper;
+    private final Set<PersonalCard> changedCards = new HashSet<>();
 
     public PersonalCardListAdapterBase(PersonalCardStore personalCardStore) {
         this.personalCardStore = personalCardStore;
@@ -27,6 +36,10 @@ public abstract class PersonalCardListAdapterBase<E, PCV extends ProviderCardVie
                 personalCardStore.muteListenerForNextOperation(this);
                 personalCardStore.reorderCardAfter(elementToPersonalCard(get(fromPosition)), before != null ? elementToPersonalCard(before) : null);
                 onRowMoved(fromPosition, toPosition);
+                if (isSubmitPending()) {
+                    //the pending list does not have the move yet, it would be undone once applied
+                    submitCards(personalCardStore.copyPersonalCards());
+                }
             }
         });
 
@@ -57,18 +70,84 @@ public abstract class PersonalCardListAdapterBase<E, PCV extends ProviderCardVie
         return null;
     }
 
+    /**
+     * Submit a new card list to be diffed against the shown one. Elements of cards that are already shown are kept.
+     *
+     * @param cards The cards, in order
+     */
+    private void submitCards(List<PersonalCard> cards) {
+        Map<PersonalCard, E> elements = new HashMap<>();
+        for (E element : items) {
+            elements.put(elementToPersonalCard(element), element);
+        }
+        List<E> newElements = new ArrayList<>(cards.size());
+        for (PersonalCard card : cards) {
+            E element = elements.get(card);
+            newElements.add(element != null ? element : personalCardToElement(card));
+        }
+        Set<PersonalCard> changed = new HashSet<>(changedCards);
+        submitItems(newElements, new DiffUtil.ItemCallback<>() {
+            @Override
+            public boolean areItemsTheSame(@NonNull E oldItem, @NonNull E newItem) {
+                return elementToPersonalCard(oldItem).equals(elementToPersonalCard(newItem));
+            }
+
+            @Override
+            public boolean areContentsTheSame(@NonNull E oldItem, @NonNull E newItem) {
+                return oldItem == newItem && !changed.contains(elementToPersonalCard(newItem));
+            }
+        }, () -> changedCards.removeAll(changed));
+    }
+
+    @Override
+    public void onCardsChanged(PersonalCardStore.CardChanges changes) {
+        changedCards.addAll(changes.changed());
+        submitCards(changes.cards());
+    }
+
     @Override
     public void onCardAdded(PersonalCard card) {
+        if (isSubmitPending()) {
+            //positions in the store do not match the shown list until the pending list is applied
+            submitCards(personalCardStore.copyPersonalCards());
+            return;
+        }
         add(personalCardStore.getCardOrdinal(card), personalCardToElement(card));
     }
 
     @Override
     public void onCardRemoved(PersonalCard card) {
+        if (isSubmitPending()) {
+            submitCards(personalCardStore.copyPersonalCards());
+            return;
+        }
         remove(findElementByCard(card));
     }
 
+    @Override
+    public void onCardMoved(PersonalCard card, int fromOrdinal, int toOrdinal) {
+        if (isSubmitPending()) {
+            submitCards(personalCardStore.copyPersonalCards());
+            return;
+        }
+        E element = findElementByCard(card);
+        if (element == null) {
+            return;
+        }
+        int from = indexOf(element);
+        int to = Math.min(personalCardStore.getCardOrdinal(card), size() - 1);
+        if (to != -1 && from != to) {
+            onRowMoved(from, to);
+        }
+    }
+
     @Override
     public void onCardChanged(PersonalCard card) {
+        if (isSubmitPending()) {
+            changedCards.add(card);
+            submitCards(personalCardStore.copyPersonalCards());
+            return;
+        }
         int index = personalCardStore.getCardOrdinal(card);
         if (index != -1) {
             notifyItemChanged(index);
@@ -1,89 +1,188 @@
 package cz.mamstylcendy.cards.util;
 
-import java.util.ArrayList;
-import java.util.List;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 
+/**
+ * Base class for objects that dispatch events to registered listeners.
+ * <p>
+ * The listeners are kept in a copy-on-write array, so dispatching reads it without taking a lock
+ * and a listener may add or remove listeners from within a callback. Listeners registered with an executor
+ * receive their events in dispatch order, even if the executor runs tasks concurrently. An exception thrown
+ * by a listener is logged and does not prevent the other listeners from being called. If the executor rejects
+ * an event, for example because it has been shut down, the events queued for the listener are dropped.
+ */
 public class AbstractListenerTarget<L> {
 
-    private final List<ListenerInfo> listeners = new ArrayList<>();
+    private static final String LOG_TAG = AbstractListenerTarget.class.getSimpleName();
+
+    private final Object writeLock = new Object();
+    private volatile ListenerInfo<?>[] listeners = new ListenerInfo<?>[0];
 
     public boolean addListener(L listener, Executor executor) {
-        synchronized (listeners) {
-            Objects.requireNonNull(listener);
-            ListenerInfo info = new ListenerInfo(listener, executor);
-            if (!listeners.contains(info)) {
-                listeners.add(info);
-                return true;
+        Objects.requireNonNull(listener);
+        synchronized (writeLock) {
+            ListenerInfo<?>[] current = listeners;
+            if (indexOf(current, listener) != -1) {
+                return false;
             }
-            return false;
+            ListenerInfo<?>[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = new ListenerInfo<>(listener, executor);
+            listeners = updated;
+            return true;
         }
     }
 
     public void removeListener(L listener) {
-        synchronized (listeners) {
-            Objects.requireNonNull(listener);
-            ListenerInfo info = new ListenerInfo(listener, null);
-            listeners.remove(info);
+        Objects.requireNonNull(listener);
+        synchronized (writeLock) {
+            ListenerInfo<?>[] current = listeners;
+            int index = indexOf(current, listener);
+            if (index == -1) {
+                return;
+            }
+            current[index].remove();
+            ListenerInfo<?>[] updated = new ListenerInfo<?>[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            listeners = updated;
         }
     }
 
-    protected int getListenerCount() {
-        synchronized (listeners) {
-            return listeners.size();
+    private static int indexOf(ListenerInfo<?>[] infos, Object listener) {
+        for (int i = 0; i < infos.length; i++) {
+            if (infos[i].listener.equals(listener)) {
+                return i;
+            }
         }
+        return -1;
+    }
+
+    protected int getListenerCount() {
+        return listeners.length;
     }
 
     protected boolean hasAnyListener() {
-        synchronized (listeners) {
-            return !listeners.isEmpty();
-        }
+        return listeners.length != 0;
     }
 
     protected boolean canInvokeListener(L listener) {
         return true;
     }
 
+    @SuppressWarnings("unchecked")
     protected void invokeListeners(Consumer<L> action) {
-        synchronized (listeners) {
-            for (ListenerInfo info : listeners) {
-                if (!canInvokeListener(info.listener)) {
-                    continue;
-                }
-                if (info.executor != null) {
-                    info.executor.execute(() -> action.accept(info.listener));
-                } else {
-                    action.accept(info.listener);
-                }
+        for (ListenerInfo<?> info_ : listeners) {
+            ListenerInfo<L> info = (ListenerInfo<L>) info_;
+            if (!canInvokeListener(info.listener)) {
+                continue;
+            }
+            if (info.executor != null) {
+                info.enqueue(action);
+            } else {
+                info.invoke(action);
             }
         }
     }
 
-    private class ListenerInfo {
+    private static class ListenerInfo<L> {
 
         final L listener;
         final Executor executor;
+        volatile boolean removed = false;
+
+        /**
+         * Events waiting to be passed to the listener on its executor. At most one drain task is scheduled
+         * on the executor at a time, which keeps the events in order.
+         */
+        private final Queue<Consumer<L>> pending = new ArrayDeque<>();
+        private boolean draining = false;
 
         ListenerInfo(L listener, Executor executor) {
             this.listener = listener;
             this.executor = executor;
         }
 
-        @Override
-        @SuppressWarnings("rawtypes")
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o instanceof AbstractListenerTarget.ListenerInfo that) {
-                return Objects.equals(listener, that.listener);
+        /**
+         * Mark the listener as removed. Events queued for its executor are dropped.
+         */
+        void remove() {
+            removed = true;
+            synchronized (pending) {
+                pending.clear();
             }
-            return false;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hashCode(listener);
+        void enqueue(Consumer<L> action) {
+            synchronized (pending) {
+                if (removed) {
+                    return;
+                }
+                pending.add(action);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException ex) {
+                Log.d(LOG_TAG, "Listener executor is shut down, dropping events of " + listener);
+                dropPending();
+            } catch (RuntimeException ex) {
+                Log.e(LOG_TAG, "Listener executor rejected event", ex);
+                dropPending();
+            }
+        }
+
+        private void dropPending() {
+            synchronized (pending) {
+                pending.clear();
+                draining = false;
+            }
+        }
+
+        private void drain() {
+            boolean drained = false;
+            try {
+                while (true) {
+                    Consumer<L> action;
+                    synchronized (pending) {
+                        action = pending.poll();
+                        if (action == null) {
+                            draining = false;
+                            drained = true;
+                            return;
+                        }
+                    }
+                    invoke(action);
+                }
+            } finally {
+                if (!drained) {
+                    //an Error escaped from a listener, the next event schedules a new drain
+                    synchronized (pending) {
+                        draining = false;
+                    }
+                }
+            }
+        }
+
+        void invoke(Consumer<L> action) {
+            if (removed) {
+                return;
+            }
+            try {
+                action.accept(listener);
+            } catch (RuntimeException ex) {
+                Log.e(LOG_TAG, "Listener " + listener + " failed", ex);
+            }
         }
     }
 }
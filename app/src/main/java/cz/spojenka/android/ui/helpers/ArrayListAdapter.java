@@ -2,6 +2,7 @@ package cz.spojenka.android.ui.helpers;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
@@ -11,6 +12,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import cz.spojenka.android.util.AsyncUtils;
 
 /**
  * Adapter for RecyclerView that uses ArrayList as data container.
@@ -24,7 +29,11 @@ import java.util.ListIterator;
  */
 public abstract class ArrayListAdapter<T, V extends RecyclerView.ViewHolder> extends RecyclerView.Adapter<V> implements List<T>, ListReorderHelper.RowReorderListener {
 
+    private static final Executor diffExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "ListAdapterDiff"));
+
     protected final List<T> items;
+    private int submitGeneration = 0;
+    private int appliedGeneration = 0;
 
     /**
      * Create the adapter with the given list of items.
@@ -165,6 +174,74 @@ public abstract class ArrayListAdapter<T, V extends RecyclerView.ViewHolder> ext
         notifyDataSetChanged();
     }
 
+    /**
+     * Replace all items in the adapter with the given list, notifying the RecyclerView only about the items
+     * that were actually inserted, removed, moved or changed.
+     * <p>
+     * The difference is computed on a background thread and applied on the main thread, from which this
+     * must be called. If another list is submitted before that, only the newer list is applied. If the items
+     * are modified in the meantime, the difference is computed again against the modified items.
+     *
+     * @param newItems     The new items. The list is copied.
+     * @param itemCallback Decides which items are the same and whether their contents changed
+     * @param onApplied    Called on the main thread once the new items are in the adapter, may be null.
+     *                     Not called if a newer list is submitted first.
+     */
+    public void submitItems(List<T> newItems, DiffUtil.ItemCallback<T> itemCallback, @Nullable Runnable onApplied) {
+        int generation = ++submitGeneration;
+        List<T> oldSnapshot = new ArrayList<>(items);
+        List<T> newSnapshot = new ArrayList<>(newItems);
+        diffExecutor.execute(() -> {
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldSnapshot.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return newSnapshot.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                    return itemCallback.areItemsTheSame(oldSnapshot.get(oldItemPosition), newSnapshot.get(newItemPosition));
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                    return itemCallback.areContentsTheSame(oldSnapshot.get(oldItemPosition), newSnapshot.get(newItemPosition));
+                }
+            });
+            AsyncUtils.runOnMainThread(() -> {
+                if (generation != submitGeneration) {
+                    return;
+                }
+                if (!items.equals(oldSnapshot)) {
+                    submitItems(newSnapshot, itemCallback, onApplied);
+                    return;
+                }
+                items.clear();
+                items.addAll(newSnapshot);
+                appliedGeneration = generation;
+                diff.dispatchUpdatesTo(this);
+                if (onApplied != null) {
+                    onApplied.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Check whether a list passed to {@link #submitItems(List, DiffUtil.ItemCallback, Runnable)} is yet to be applied.
+     * Until then, positions in the adapter do not reflect the submitted list.
+     *
+     * @return True if a submitted list is pending
+     */
+    public boolean isSubmitPending() {
+        return appliedGeneration != submitGeneration;
+    }
+
     @Override
     public T get(int index) {
         return items.get(index);
@@ -0,0 +1,45 @@
+package cz.spojenka.android.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class FileUtils {
+
+    /**
+     * Replace the contents of a file atomically. The data is written to a temporary file in the same
+     * directory, synced to storage and then renamed over the destination, so that readers never observe
+     * a partially written file, even if the process crashes mid-write.
+     *
+     * @param dest   The destination file
+     * @param writer Callback that writes the new contents. The stream must not be closed by the callback.
+     * @throws IOException If the file could not be written or moved into place
+     */
+    public static void writeAtomically(File dest, StreamWriter writer) throws IOException {
+        File tempFile = new File(dest.getPath() + ".tmp");
+        boolean success = false;
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                BufferedOutputStream out = new BufferedOutputStream(fos);
+                writer.write(out);
+                out.flush();
+                fos.getFD().sync();
+            }
+            if (!tempFile.renameTo(dest)) {
+                throw new IOException("Could not move " + tempFile + " into place");
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    public static interface StreamWriter {
+
+        void write(OutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,43 @@
+package cz.mamstylcendy.cards;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Context for JVM tests. Databases and files are kept in a directory, shared preferences in memory.
+ */
+public class TestContext extends ContextWrapper {
+
+    private final File dir;
+    private final Map<String, InMemorySharedPreferences> sharedPreferences = new HashMap<>();
+
+    public TestContext(File dir) {
+        super(null);
+        this.dir = dir;
+    }
+
+    @Override
+    public File getDatabasePath(String name) {
+        return new File(dir, name);
+    }
+
+    @Override
+    public File getFilesDir() {
+        return dir;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return sharedPreferences.computeIfAbsent(name, key -> new InMemorySharedPreferences());
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+}
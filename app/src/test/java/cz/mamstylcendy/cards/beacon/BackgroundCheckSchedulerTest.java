@@ -0,0 +1,132 @@
+package cz.mamstylcendy.cards.beacon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import cz.mamstylcendy.cards.TestContext;
+import cz.mamstylcendy.cards.data.CardsPreferences;
+
+public class BackgroundCheckSchedulerTest {
+
+    private static final ZoneId ZONE = ZoneId.of("Europe/Prague");
+    private static final ZonedDateTime MORNING = ZonedDateTime.of(2025, 3, 14, 8, 0, 0, 0, ZONE);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CardsPreferences prefs;
+    private BackgroundCheckScheduler scheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        prefs = new CardsPreferences(new TestContext(folder.getRoot()));
+        prefs.putBackgroundCheckInterval(5);
+        scheduler = new BackgroundCheckScheduler(prefs);
+    }
+
+    @Test
+    public void onlyKnownAPsBelowMinimumAreNearMisses() {
+        int minDbm = prefs.getMinWlanDbm();
+        assertEquals(BackgroundCheckScheduler.Outcome.DETECTED, BackgroundCheckScheduler.classify(true, minDbm + 20, minDbm));
+        assertEquals(BackgroundCheckScheduler.Outcome.NEAR_MISS, BackgroundCheckScheduler.classify(false, minDbm - 1, minDbm));
+        assertEquals(BackgroundCheckScheduler.Outcome.QUIET,
+                BackgroundCheckScheduler.classify(false, WlanFencingManager.SIGNAL_OUT_OF_RANGE, minDbm));
+    }
+
+    @Test
+    public void quietChecksBackOffUpToTheCap() {
+        long[] expected = {10, 20, 40, 80, 120, 120, 120};
+        for (long delay : expected) {
+            assertEquals(delay, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING));
+        }
+    }
+
+    @Test
+    public void baseIntervalAboveTheCapIsKept() {
+        prefs.putBackgroundCheckInterval(180);
+        assertEquals(180, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING));
+        assertEquals(180, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING));
+    }
+
+    @Test
+    public void nearMissResetsBackoffAndHalvesInterval() {
+        scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING);
+        scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING);
+        assertEquals(2, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.NEAR_MISS, MORNING));
+        assertEquals(0, prefs.getBackgroundQuietChecks());
+        assertEquals(10, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING));
+
+        prefs.putBackgroundCheckInterval(1);
+        assertEquals(1, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.NEAR_MISS, MORNING));
+    }
+
+    @Test
+    public void detectionResetsBackoffToBaseInterval() {
+        scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING);
+        assertEquals(5, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.DETECTED, MORNING));
+        assertEquals(10, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.QUIET, MORNING));
+    }
+
+    @Test
+    public void wakeupsAreCountedPerDay() {
+        LocalDate today = MORNING.toLocalDate();
+        scheduler.recordWakeup(today);
+        scheduler.recordWakeup(today);
+        assertEquals(2, prefs.getBackgroundWakeupCount());
+        scheduler.recordWakeup(today.plusDays(1));
+        assertEquals(1, prefs.getBackgroundWakeupCount());
+        assertEquals(today.plusDays(1).toEpochDay(), prefs.getBackgroundWakeupDay());
+    }
+
+    @Test
+    public void exhaustedBudgetPostponesToNextDay() {
+        prefs.putBackgroundDailyWakeupBudget(3);
+        ZonedDateTime evening = MORNING.withHour(22).withMinute(30);
+        for (int i = 0; i < 3; i++) {
+            scheduler.recordWakeup(evening.toLocalDate());
+        }
+        //90 minutes to midnight, plus one so that the check lands on the next day
+        assertEquals(91, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.DETECTED, evening));
+
+        //budget left over from a previous day does not count
+        assertEquals(5, scheduler.nextDelayMinutes(BackgroundCheckScheduler.Outcome.DETECTED, evening.plusDays(1)));
+    }
+
+    @Test
+    public void simulatedWeekStaysWithinBudget() {
+        int budget = 12;
+        prefs.putBackgroundDailyWakeupBudget(budget);
+        Map<LocalDate, Integer> wakeupsPerDay = new HashMap<>();
+        ZonedDateTime now = MORNING;
+        ZonedDateTime end = MORNING.plusDays(7);
+        int check = 0;
+        while (now.isBefore(end)) {
+            scheduler.recordWakeup(now.toLocalDate());
+            wakeupsPerDay.merge(now.toLocalDate(), 1, Integer::sum);
+            //mostly quiet, with a store nearby every now and then
+            BackgroundCheckScheduler.Outcome outcome = check % 17 == 0
+                    ? BackgroundCheckScheduler.Outcome.NEAR_MISS
+                    : check % 29 == 0 ? BackgroundCheckScheduler.Outcome.DETECTED : BackgroundCheckScheduler.Outcome.QUIET;
+            long delay = scheduler.nextDelayMinutes(outcome, now);
+            assertTrue(delay >= 1);
+            now = now.plusMinutes(delay);
+            check++;
+        }
+        for (Map.Entry<LocalDate, Integer> day : wakeupsPerDay.entrySet()) {
+            assertTrue(day.getKey() + ": " + day.getValue(), day.getValue() <= budget);
+        }
+        assertTrue(wakeupsPerDay.containsValue(budget));
+    }
+}
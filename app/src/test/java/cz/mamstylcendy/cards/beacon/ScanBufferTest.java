@@ -0,0 +1,43 @@
+package cz.mamstylcendy.cards.beacon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class ScanBufferTest {
+
+    @Test
+    public void formatsRawSsidLikeWifiSsid() {
+        assertEquals("\"Shop WiFi\"", ScanBuffer.formatSsid("Shop WiFi".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("\"Kavárna\"", ScanBuffer.formatSsid("Kavárna".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("c328", ScanBuffer.formatSsid(new byte[]{(byte) 0xC3, (byte) 0x28}));
+    }
+
+    @Test
+    public void keepsRawAndStringSsids() {
+        ScanBuffer scan = new ScanBuffer();
+        scan.add("00:11:22:33:44:55", "Shop WiFi".getBytes(StandardCharsets.UTF_8), -50);
+        scan.add("00:11:22:33:44:66", "\"Other\"", -60);
+
+        assertEquals("\"Shop WiFi\"", scan.ssid(0));
+        assertEquals("\"Other\"", scan.ssid(1));
+        assertNull(scan.rawSsid(1));
+
+        scan.clear();
+        scan.add("00:11:22:33:44:77", "\"Third\"", -70);
+        assertNull(scan.rawSsid(0));
+        assertEquals("\"Third\"", scan.ssid(0));
+    }
+
+    @Test
+    public void packsAndFormatsBssids() {
+        long packed = ScanBuffer.packBssid("a0:b1:c2:d3:e4:f5");
+        assertEquals(0xA0B1C2D3E4F5L, packed);
+        assertEquals("a0:b1:c2:d3:e4:f5", ScanBuffer.formatBssid(packed));
+        assertEquals(ScanBuffer.NO_BSSID, ScanBuffer.packBssid("not a bssid"));
+        assertEquals(0xA0B1C2D3E4L, ScanBuffer.physicalApKey(packed));
+    }
+}
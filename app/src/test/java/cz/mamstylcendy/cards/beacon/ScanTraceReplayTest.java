@@ -0,0 +1,179 @@
+package cz.mamstylcendy.cards.beacon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.zxing.BarcodeFormat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import cz.mamstylcendy.cards.TestContext;
+import cz.mamstylcendy.cards.data.CardsConfig;
+import cz.mamstylcendy.cards.data.CardsPreferences;
+import cz.mamstylcendy.cards.data.ConfigManager;
+import cz.mamstylcendy.cards.data.PersonalCardStore;
+
+/**
+ * Replays scan traces through {@link WlanFencingManager#evaluateScan(ScanBuffer, long, long)}, using the frame
+ * timestamps as the clock, and checks the decisions taken.
+ * <p>
+ * A synthetic trace is always replayed. Traces recorded on a device, see {@link CardsPreferences#isWlanTraceRecordingEnabled()},
+ * are replayed as well if the {@code SCAN_TRACE_DIR} environment variable points to a directory containing them.
+ */
+public class ScanTraceReplayTest {
+
+    private static final long FRAME_INTERVAL_MILLIS = 10 * 1000;
+    private static final int FRAMES_PER_VISIT = 120;
+    private static final int VISITS = 50;
+    private static final int FOREIGN_APS = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestContext context;
+
+    @Before
+    public void setUp() throws IOException {
+        context = new TestContext(folder.newFolder("data"));
+
+        LinkedHashMap<String, CardsConfig.ProviderInfo> cardData = new LinkedHashMap<>();
+        cardData.put("shop_a", new CardsConfig.ProviderInfo("Shop A", "Shop A Club", null, null, BarcodeFormat.EAN_13, List.of("1234567890128")));
+        cardData.put("shop_b", new CardsConfig.ProviderInfo("Shop B", "Shop B Club", null, null, BarcodeFormat.EAN_13, List.of("4006381333931")));
+        Map<String, String> wlanMappings = new HashMap<>();
+        wlanMappings.put("Shop A Free", "shop_a");
+        wlanMappings.put("Shop B Guest", "shop_b");
+        File configFile = context.getDatabasePath("config.json");
+        new ObjectMapper().writeValue(configFile, new CardsConfig(wlanMappings, new LinkedHashMap<>(), cardData));
+        //newer than the build, so that the config is not replaced by the bundled one
+        configFile.setLastModified(System.currentTimeMillis() + 24 * 60 * 60 * 1000L);
+    }
+
+    private WlanFencingManager createManager() {
+        CardsPreferences prefs = new CardsPreferences(context);
+        prefs.putWlanEnterDwellSeconds(20);
+        prefs.putWlanExitDwellSeconds(60);
+        return new WlanFencingManager(context, new ConfigManager(context), prefs, new PersonalCardStore(context, prefs), new BeaconStats(context));
+    }
+
+    /**
+     * Write a trace of repeated visits to shop A, each followed by walking past shop B for a moment,
+     * among foreign APs with noisy signal levels.
+     */
+    private File writeSyntheticTrace() throws IOException {
+        File file = folder.newFile("synthetic.bin");
+        file.delete();
+        Random random = new Random(42);
+        ScanBuffer scan = new ScanBuffer();
+        long time = 0;
+        try (ScanTrace.Writer writer = new ScanTrace.Writer(file)) {
+            for (int visit = 0; visit < VISITS; visit++) {
+                for (int frame = 0; frame < FRAMES_PER_VISIT; frame++) {
+                    scan.clear();
+                    for (int i = 0; i < FOREIGN_APS; i++) {
+                        scan.add(String.format(Locale.ROOT, "02:00:00:00:%02x:%02x", visit % 4, i), "\"Home " + (i % 13) + "\"", -70 - random.nextInt(25));
+                    }
+                    if (frame >= 30 && frame < 70) {
+                        //dual-band AP and a second AP in the back of the store
+                        int signal = -62 - random.nextInt(12);
+                        scan.add("a4:00:00:00:00:10", "\"Shop A Free\"", signal);
+                        scan.add("a4:00:00:00:00:11", "\"Shop A Free\"", signal - 6);
+                        scan.add("a4:00:00:00:01:10", "\"Shop A Free\"", -80 - random.nextInt(8));
+                    }
+                    if (frame == 90 || frame == 91) {
+                        scan.add("b8:00:00:00:00:10", "\"Shop B Guest\"", -84 - random.nextInt(3));
+                    }
+                    writer.writeFrame(time, 1_700_000_000_000L + time, scan, null, null, 0);
+                    time += FRAME_INTERVAL_MILLIS;
+                }
+            }
+        }
+        return file;
+    }
+
+    private ReplayResult replay(File trace) throws IOException {
+        WlanFencingManager manager = createManager();
+        ReplayResult result = new ReplayResult();
+        ScanBuffer scan = new ScanBuffer();
+        try (ScanTrace.Reader reader = new ScanTrace.Reader(trace)) {
+            while (reader.readFrame(scan)) {
+                result.frames++;
+                WlanFencingManager.ProviderTransition transition = manager.evaluateScan(scan, reader.getElapsedRealtimeMillis(), reader.getWallTimeMillis());
+                if (transition.lost() != null) {
+                    result.decisions.add(reader.getElapsedRealtimeMillis() / 1000 + "s lost " + transition.lost().provider());
+                }
+                if (transition.nearby() != null) {
+                    result.decisions.add(reader.getElapsedRealtimeMillis() / 1000 + "s nearby " + transition.nearby().provider());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that a provider is only reported lost while it is the current one, and that another provider
+     * is only reported nearby after the current one was lost. The current provider is reported again when its APs change.
+     */
+    private static void assertDecisionsAlternate(String name, ReplayResult result) {
+        String current = null;
+        for (String decision : result.decisions) {
+            String provider = decision.substring(decision.lastIndexOf(' ') + 1);
+            if (decision.contains(" nearby ")) {
+                assertTrue(name + ": " + decision, current == null || current.equals(provider));
+                current = provider;
+            } else {
+                assertEquals(name + ": " + decision, current, provider);
+                current = null;
+            }
+        }
+    }
+
+    @Test
+    public void replaysSyntheticTrace() throws IOException {
+        ReplayResult result = replay(writeSyntheticTrace());
+        assertDecisionsAlternate("synthetic", result);
+
+        assertEquals(VISITS * FRAMES_PER_VISIT, result.frames);
+        long nearbyA = result.decisions.stream().filter(d -> d.endsWith("nearby shop_a")).count();
+        long lostA = result.decisions.stream().filter(d -> d.endsWith("lost shop_a")).count();
+        long nearbyB = result.decisions.stream().filter(d -> d.endsWith("nearby shop_b")).count();
+        assertEquals(VISITS, nearbyA);
+        assertEquals(VISITS, lostA);
+        //shop B is only passed by, for less than the enter dwell time
+        assertEquals(0, nearbyB);
+    }
+
+    @Test
+    public void replaysRecordedTraces() throws IOException {
+        String dir = System.getenv("SCAN_TRACE_DIR");
+        if (dir == null) {
+            return;
+        }
+        File[] traces = new File(dir).listFiles((d, name) -> name.startsWith("scan_trace"));
+        assertTrue("No traces in " + dir, traces != null && traces.length > 0);
+        for (File trace : traces) {
+            ReplayResult result = replay(trace);
+            assertTrue(trace.getName() + " has no frames", result.frames > 0);
+            assertDecisionsAlternate(trace.getName(), result);
+        }
+    }
+
+    private static class ReplayResult {
+
+        int frames;
+        final List<String> decisions = new ArrayList<>();
+    }
+}
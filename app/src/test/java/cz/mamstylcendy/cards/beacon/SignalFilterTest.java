@@ -0,0 +1,39 @@
+package cz.mamstylcendy.cards.beacon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SignalFilterTest {
+
+    private static final long BSSID = ScanBuffer.packBssid("00:11:22:33:44:55");
+
+    @Test
+    public void sameSampleIsNotFedTwice() {
+        for (SignalFilter.Type type : SignalFilter.Type.values()) {
+            SignalFilter filter = SignalFilter.create(type);
+            filter.filter(BSSID, -60, 1000);
+            double value = filter.filter(BSSID, -90, 2000);
+            assertEquals(type.name(), value, filter.filter(BSSID, -90, 2000), 0);
+            assertEquals(type.name(), value, filter.filter(BSSID, -90, 1500), 0);
+        }
+    }
+
+    @Test
+    public void newerSampleIsFed() {
+        SignalFilter filter = SignalFilter.create(SignalFilter.Type.EWMA);
+        filter.filter(BSSID, -60, 1000);
+        double first = filter.filter(BSSID, -90, 2000);
+        double second = filter.filter(BSSID, -90, 3000);
+        assertTrue(second < first);
+    }
+
+    @Test
+    public void forgetDropsStaleStates() {
+        SignalFilter filter = SignalFilter.create(SignalFilter.Type.EWMA);
+        filter.filter(BSSID, -60, 1000);
+        filter.forget(2000);
+        assertEquals(-90, filter.filter(BSSID, -90, 3000), 0);
+    }
+}
@@ -0,0 +1,282 @@
+package cz.mamstylcendy.cards.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CardJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "cards.journal");
+    }
+
+    private static PersonalCard card(int id) {
+        PersonalCard card = new PersonalCard(id, "Card " + id, "shop" + id % 3, "100" + id);
+        card.setOrderKey(id * 1000L);
+        return card;
+    }
+
+    private static List<String> cardNumbers(List<PersonalCard> cards) {
+        List<String> numbers = new ArrayList<>();
+        for (PersonalCard card : cards) {
+            numbers.add(card.cardNumber());
+        }
+        return numbers;
+    }
+
+    @Test
+    public void doesNotAppendToMissingJournal() {
+        CardJournal journal = new CardJournal(file);
+        journal.appendAdd(0, card(1));
+        journal.flush();
+
+        assertFalse(file.exists());
+        //the list has to be written as a whole instead
+        assertTrue(journal.needsCompaction(1));
+    }
+
+    @Test
+    public void unreadableJournalLoadsAsNull() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(List.of(card(1)));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //damaged magic
+            raf.writeInt(0);
+        }
+
+        assertNull(new CardJournal(file).load());
+    }
+
+    @Test
+    public void unopenableJournalIsLeftAlone() throws IOException {
+        assertTrue(file.mkdir());
+
+        try {
+            new CardJournal(file).load();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(file.isDirectory());
+    }
+
+    @Test
+    public void movesUnreadableJournalAside() throws IOException {
+        byte[] content = {0, 0, 0, 20, 1, 0, 0, 0};
+        Files.write(file.toPath(), content);
+
+        CardJournal journal = new CardJournal(file);
+        assertNull(journal.load());
+        journal.moveAside();
+
+        assertFalse(file.exists());
+        assertArrayEquals(content, Files.readAllBytes(new File(file.getPath() + ".corrupt").toPath()));
+    }
+
+    @Test
+    public void keepsRecordsAfterInapplicableRecord() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(cards(2));
+        //intact, but refers to a card that does not exist
+        journal.appendRemove(5);
+        journal.appendAdd(2, card(3));
+        journal.flush();
+        long length = file.length();
+
+        CardJournal reopened = new CardJournal(file);
+        List<PersonalCard> loaded = reopened.load();
+        assertEquals(List.of("1001", "1002"), cardNumbers(loaded));
+        assertEquals(length, file.length());
+        //the loaded list replaces the whole journal before anything is appended
+        assertTrue(reopened.needsCompaction(loaded.size()));
+    }
+
+    @Test
+    public void appendsAfterSnapshot() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(List.of(card(1), card(2)));
+        journal.appendAdd(2, card(3));
+        journal.appendRemove(0);
+        journal.flush();
+
+        assertEquals(List.of("1002", "1003"), cardNumbers(new CardJournal(file).load()));
+    }
+
+    @Test
+    public void dropsReorderDraggedBackToStart() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(cards(3));
+        long length = file.length();
+        //card 1 dragged down by two positions and back up
+        journal.appendReorder(0, 1, 1000, 2500);
+        journal.appendReorder(1, 2, 2500, 3500);
+        journal.appendReorder(2, 1, 3500, 2500);
+        journal.appendReorder(1, 0, 2500, 1000);
+        journal.flush();
+
+        assertEquals(length, file.length());
+        PersonalCardStore.PersistenceStats stats = journal.getPersistenceStats();
+        assertEquals(4, stats.records());
+        assertEquals(4, stats.coalescedRecords());
+        assertEquals(List.of("1001", "1002", "1003"), cardNumbers(new CardJournal(file).load()));
+    }
+
+    @Test
+    public void keepsReorderToNewKeyAtSamePosition() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(cards(3));
+        journal.appendReorder(0, 1, 1000, 2500);
+        journal.appendReorder(1, 0, 2500, 500);
+        journal.flush();
+
+        List<PersonalCard> loaded = new CardJournal(file).load();
+        assertEquals(List.of("1001", "1002", "1003"), cardNumbers(loaded));
+        assertEquals(500, loaded.get(0).orderKey());
+    }
+
+    @Test
+    public void compactionWritesCardsAsTheyWereWhenStarted() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(List.of());
+        List<PersonalCard> cards = cards(1000);
+        journal.compactInBackground(cards);
+        //changed while the writer thread may be serialising the list, and journalled after the compaction
+        for (PersonalCard card : cards) {
+            card.rename("Renamed");
+        }
+        journal.flush();
+
+        for (PersonalCard card : new CardJournal(file).load()) {
+            assertEquals("Card " + card.id(), card.name());
+        }
+    }
+
+    @Test
+    public void keepsOnlyLastPendingRename() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(cards(2));
+        for (int i = 0; i < 10; i++) {
+            journal.appendRename(1, "Name " + i);
+        }
+        journal.appendRename(0, null);
+        journal.flush();
+        //no longer pending, so not merged
+        journal.appendRename(0, "Written separately");
+        journal.flush();
+
+        PersonalCardStore.PersistenceStats stats = journal.getPersistenceStats();
+        assertEquals(12, stats.records());
+        assertEquals(9, stats.coalescedRecords());
+        assertEquals(2, stats.writes());
+        List<PersonalCard> loaded = new CardJournal(file).load();
+        assertEquals("Written separately", loaded.get(0).name());
+        assertEquals("Name 9", loaded.get(1).name());
+    }
+
+    @Test
+    public void replaysUpToTornRecord() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(cards(2));
+        journal.appendAdd(2, card(3));
+        journal.flush();
+        long intactLength = file.length();
+        journal.appendAdd(3, card(4));
+        journal.flush();
+        //a crash in the middle of the last append
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+
+        CardJournal reopened = new CardJournal(file);
+        assertEquals(List.of("1001", "1002", "1003"), cardNumbers(reopened.load()));
+        assertEquals(intactLength, file.length());
+        //new records follow the last intact one
+        reopened.appendRemove(0);
+        reopened.flush();
+        assertEquals(List.of("1002", "1003"), cardNumbers(new CardJournal(file).load()));
+    }
+
+    @Test
+    public void replaysUpToDamagedRecord() throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(cards(3));
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //flip a bit of the order key of the last record
+            raf.seek(length - 6);
+            raf.write(raf.read() ^ 1);
+        }
+
+        assertEquals(List.of("1001", "1002"), cardNumbers(new CardJournal(file).load()));
+    }
+
+    private static List<PersonalCard> cards(int count) {
+        List<PersonalCard> cards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            cards.add(card(i + 1));
+        }
+        return cards;
+    }
+
+    /**
+     * Append renames to a journal of the given number of cards.
+     *
+     * @return Nanoseconds per rename, including writing it
+     */
+    private long renameNanos(File file, int cardCount, int renames) throws IOException {
+        CardJournal journal = new CardJournal(file);
+        journal.writeSnapshot(cards(cardCount));
+        long start = System.nanoTime();
+        for (int i = 0; i < renames; i++) {
+            journal.appendRename(i % cardCount, "Renamed " + i);
+            if (i % 100 == 99) {
+                journal.flush();
+            }
+        }
+        journal.flush();
+        return (System.nanoTime() - start) / renames;
+    }
+
+    @Test
+    public void tenThousandCardsBenchmark() throws IOException {
+        int cardCount = 10_000;
+        int renames = 10_000;
+        File smallFile = new File(folder.getRoot(), "small.journal");
+        //warm up
+        renameNanos(smallFile, 100, renames);
+        long smallNanos = renameNanos(smallFile, 100, renames);
+        long largeNanos = renameNanos(file, cardCount, renames);
+
+        CardJournal journal = new CardJournal(file);
+        List<PersonalCard> loaded = journal.load();
+        assertEquals(cardCount, loaded.size());
+        assertEquals("Renamed " + (renames - 1), loaded.get((renames - 1) % cardCount).name());
+
+        journal.compactInBackground(loaded);
+        journal.flush();
+        assertEquals(cardCount, new CardJournal(file).load().size());
+
+        //the cost of a change must not depend on the number of cards
+        assertTrue(largeNanos < smallNanos * 10);
+    }
+}
@@ -0,0 +1,117 @@
+package cz.mamstylcendy.cards.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.zxing.BarcodeFormat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ConfigSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File jsonSource;
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws IOException {
+        jsonSource = folder.newFile("config.json");
+        Files.write(jsonSource.toPath(), "{}".getBytes());
+        snapshotFile = new File(folder.getRoot(), "config.bin");
+    }
+
+    private static CardsConfig config(String codePrefix, int codeCount) {
+        List<String> codes = new ArrayList<>();
+        for (int i = 0; i < codeCount; i++) {
+            codes.add(codePrefix + i);
+        }
+        LinkedHashMap<String, CardsConfig.ProviderInfo> cardData = new LinkedHashMap<>();
+        cardData.put("shop", new CardsConfig.ProviderInfo("Shop", "Shop Club", 0xFF0000, null, BarcodeFormat.EAN_13, codes));
+        Map<String, String> wlanMappings = new HashMap<>();
+        wlanMappings.put("Shop WiFi", "shop");
+        return new CardsConfig(wlanMappings, new LinkedHashMap<>(), cardData);
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        ConfigSnapshot.write(config("a", 100), jsonSource, snapshotFile);
+
+        CardsConfig read = ConfigSnapshot.read(snapshotFile, jsonSource);
+
+        assertNotNull(read);
+        CardsConfig.ProviderInfo pi = read.cardData().get("shop");
+        assertEquals("Shop", pi.providerName());
+        assertEquals(BarcodeFormat.EAN_13, pi.format());
+        assertEquals(Integer.valueOf(0xFF0000), pi.brandColor());
+        assertNull(pi.brandColorContrast());
+        assertEquals(config("a", 100).cardData().get("shop").codes(), pi.codes());
+        assertEquals("shop", read.wlanMappings().get("Shop WiFi"));
+    }
+
+    @Test
+    public void codesOfReplacedSnapshotStayReadable() throws IOException {
+        ConfigSnapshot.write(config("a", 100), jsonSource, snapshotFile);
+        CardsConfig old = ConfigSnapshot.read(snapshotFile, jsonSource);
+        assertNotNull(old);
+
+        //the codes are not touched before the snapshot is replaced, as with a config held by the UI
+        ConfigSnapshot.write(config("b", 50), jsonSource, snapshotFile);
+        CardsConfig current = ConfigSnapshot.read(snapshotFile, jsonSource);
+        assertNotNull(current);
+
+        List<String> oldCodes = old.cardData().get("shop").codes();
+        assertEquals(100, oldCodes.size());
+        for (int i = 0; i < oldCodes.size(); i++) {
+            assertEquals("a" + i, oldCodes.get(i));
+        }
+        assertEquals(config("b", 50).cardData().get("shop").codes(), current.cardData().get("shop").codes());
+    }
+
+    @Test
+    public void closedSnapshotKeepsOnlyCachedCodes() throws IOException {
+        ConfigSnapshot.write(config("a", 100), jsonSource, snapshotFile);
+        CardsConfig config = ConfigSnapshot.read(snapshotFile, jsonSource);
+        assertNotNull(config);
+        List<String> codes = config.cardData().get("shop").codes();
+        assertEquals("a0", codes.get(0));
+
+        ConfigSnapshot.close(config);
+        ConfigSnapshot.close(config);
+
+        assertEquals("a99", codes.get(99));
+        ConfigSnapshot.write(config("b", 10), jsonSource, snapshotFile);
+        CardsConfig other = ConfigSnapshot.read(snapshotFile, jsonSource);
+        assertNotNull(other);
+        ConfigSnapshot.close(other);
+        try {
+            other.cardData().get("shop").codes().get(0);
+            fail("Codes of a closed snapshot were read");
+        } catch (UncheckedIOException expected) {
+        }
+    }
+
+    @Test
+    public void snapshotOfOtherSourceIsIgnored() throws IOException {
+        ConfigSnapshot.write(config("a", 10), jsonSource, snapshotFile);
+        Files.write(jsonSource.toPath(), "{\"changed\": true}".getBytes());
+
+        assertNull(ConfigSnapshot.read(snapshotFile, jsonSource));
+    }
+}
@@ -0,0 +1,483 @@
+package cz.mamstylcendy.cards.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.zxing.BarcodeFormat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+import cz.mamstylcendy.cards.TestContext;
+
+public class PersonalCardStoreTest {
+
+    private static final String JOURNAL_FILE_NAME = "personal_cards.journal";
+    private static final String LEGACY_PREF_KEY = "personal_cards";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestContext context;
+    private CardsPreferences prefs;
+
+    @Before
+    public void setUp() {
+        File dir = new File(folder.getRoot(), "databases");
+        assertTrue(dir.mkdir());
+        context = new TestContext(dir);
+        prefs = new CardsPreferences(context);
+    }
+
+    private PersonalCardStore newStore() {
+        return new PersonalCardStore(context, prefs);
+    }
+
+    private File journalFile() {
+        return context.getDatabasePath(JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Make writing the whole journal fail, by putting a directory where its temporary file goes.
+     * The directory is not empty, so that the cleanup of the temporary file does not remove it.
+     *
+     * @return The file to delete to unblock the rewrite
+     */
+    private File blockJournalRewrite() throws IOException {
+        File tempFile = new File(journalFile().getPath() + ".tmp");
+        assertTrue(tempFile.mkdir());
+        File content = new File(tempFile, "blocker");
+        assertTrue(content.createNewFile());
+        return content;
+    }
+
+    private static void unblock(File blocker) {
+        assertTrue(blocker.delete());
+        assertTrue(blocker.getParentFile().delete());
+    }
+
+    private static List<PersonalCard> legacyCards(int count) {
+        List<PersonalCard> cards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            cards.add(new PersonalCard(i + 1, "Card " + i, "shop" + i % 3, "100" + i));
+        }
+        return cards;
+    }
+
+    private static List<String> cardNumbers(List<PersonalCard> cards) {
+        List<String> numbers = new ArrayList<>();
+        for (PersonalCard card : cards) {
+            numbers.add(card.cardNumber());
+        }
+        return numbers;
+    }
+
+    @Test
+    public void migratesLegacyCards() {
+        List<PersonalCard> legacy = legacyCards(5);
+        SharedPrefsHelper.saveObject(prefs.getPrefs(), LEGACY_PREF_KEY, legacy);
+
+        PersonalCardStore store = newStore();
+        assertEquals(cardNumbers(legacy), cardNumbers(store.getPersonalCards()));
+        store.flush();
+
+        assertFalse(prefs.getPrefs().contains(LEGACY_PREF_KEY));
+        assertEquals(cardNumbers(legacy), cardNumbers(newStore().getPersonalCards()));
+    }
+
+    @Test
+    public void failedMigrationKeepsLegacyCards() throws IOException {
+        List<PersonalCard> legacy = legacyCards(5);
+        SharedPrefsHelper.saveObject(prefs.getPrefs(), LEGACY_PREF_KEY, legacy);
+        File blocker = blockJournalRewrite();
+
+        PersonalCardStore store = newStore();
+        assertEquals(cardNumbers(legacy), cardNumbers(store.getPersonalCards()));
+        store.addCard(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop9", "2000"));
+        store.flush();
+        assertTrue(prefs.getPrefs().contains(LEGACY_PREF_KEY));
+        //the added card must not have been appended to a journal without a header
+        assertFalse(journalFile().exists());
+
+        unblock(blocker);
+        assertEquals(cardNumbers(legacy), cardNumbers(newStore().getPersonalCards()));
+    }
+
+    @Test
+    public void appendsAfterFailedMigrationWaitForRewrite() throws IOException {
+        List<PersonalCard> legacy = legacyCards(5);
+        SharedPrefsHelper.saveObject(prefs.getPrefs(), LEGACY_PREF_KEY, legacy);
+        File blocker = blockJournalRewrite();
+
+        PersonalCardStore store = newStore();
+        store.getPersonalCards();
+        unblock(blocker);
+        //the rewrite requested by the failed migration now writes the whole list
+        store.addCard(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop9", "2000"));
+        store.flush();
+
+        List<String> expected = cardNumbers(legacy);
+        expected.add("2000");
+        assertEquals(expected, cardNumbers(newStore().getPersonalCards()));
+    }
+
+    @Test
+    public void unreadableJournalFallsBackToLegacyCards() throws IOException {
+        List<PersonalCard> legacy = legacyCards(5);
+        SharedPrefsHelper.saveObject(prefs.getPrefs(), LEGACY_PREF_KEY, legacy);
+        //what appending without a header used to leave behind
+        Files.write(journalFile().toPath(), new byte[]{0, 0, 0, 20, 1, 0, 0, 0});
+
+        PersonalCardStore store = newStore();
+        assertEquals(cardNumbers(legacy), cardNumbers(store.getPersonalCards()));
+        store.flush();
+
+        assertFalse(prefs.getPrefs().contains(LEGACY_PREF_KEY));
+        assertEquals(cardNumbers(legacy), cardNumbers(newStore().getPersonalCards()));
+    }
+
+    @Test
+    public void unreadableJournalIsMovedAside() throws IOException {
+        byte[] content = {0, 0, 0, 20, 1, 0, 0, 0};
+        Files.write(journalFile().toPath(), content);
+
+        PersonalCardStore store = newStore();
+        assertTrue(store.getPersonalCards().isEmpty());
+        store.addCard(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop9", "2000"));
+        store.flush();
+
+        assertArrayEquals(content, Files.readAllBytes(new File(journalFile().getPath() + ".corrupt").toPath()));
+        assertEquals(List.of("2000"), cardNumbers(newStore().getPersonalCards()));
+    }
+
+    @Test
+    public void journalReadErrorKeepsJournal() throws IOException {
+        //a journal that exists but cannot be opened
+        assertTrue(journalFile().mkdir());
+        File content = new File(journalFile(), "content");
+        assertTrue(content.createNewFile());
+
+        PersonalCardStore store = newStore();
+        try {
+            store.getPersonalCards();
+            fail();
+        } catch (UncheckedIOException expected) {
+        }
+        assertTrue(content.exists());
+
+        //the next call tries again
+        assertTrue(content.delete());
+        assertTrue(journalFile().delete());
+        assertTrue(store.getPersonalCards().isEmpty());
+    }
+
+    /**
+     * The duplicate check as it was before the store had indexes, scanning the whole list.
+     */
+    private static PersonalCard linearFindSameCard(List<PersonalCard> cards, PersonalCard card) {
+        for (PersonalCard other : cards) {
+            if (other.cardNumber().equals(card.cardNumber()) && Objects.equals(other.provider(), card.provider())) {
+                if (!other.isCustom()) {
+                    return other;
+                }
+                PersonalCard.CustomCardProperties srcCustomProps = card.customProperties();
+                PersonalCard.CustomCardProperties dstCustomProps = other.customProperties();
+                if (srcCustomProps != null
+                        && srcCustomProps.providerName().equals(dstCustomProps.providerName())
+                        && srcCustomProps.format() == dstCustomProps.format()) {
+                    return other;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static PersonalCard linearFindById(List<PersonalCard> cards, int id) {
+        for (PersonalCard card : cards) {
+            if (card.id() == id) {
+                return card;
+            }
+        }
+        return null;
+    }
+
+    private static PersonalCard linearFindByProvider(List<PersonalCard> cards, String provider) {
+        for (PersonalCard card : cards) {
+            if (card.provider().equals(provider)) {
+                return card;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Random card from a small space of values, so that duplicates are frequent.
+     */
+    private static PersonalCard randomCard(Random random) {
+        String number = "N" + random.nextInt(20);
+        if (random.nextInt(3) == 0) {
+            PersonalCard.CustomCardProperties custom = new PersonalCard.CustomCardProperties(
+                    "Custom " + random.nextInt(3),
+                    random.nextBoolean() ? BarcodeFormat.EAN_13 : BarcodeFormat.QR_CODE,
+                    0
+            );
+            return new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, custom, number);
+        }
+        return new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop" + random.nextInt(4), number);
+    }
+
+    private static void assertIndexesMatchLinearSearch(PersonalCardStore store, Random random) {
+        List<PersonalCard> cards = store.getPersonalCards();
+        for (int i = 0; i < 20; i++) {
+            PersonalCard probe = randomCard(random);
+            assertEquals(linearFindSameCard(cards, probe) != null, store.cardAlreadyExists(probe));
+        }
+        for (PersonalCard card : cards) {
+            assertSame(linearFindById(cards, card.id()), store.getCardById(card.id()));
+            assertSame(linearFindByProvider(cards, card.provider()), store.getCardForProvider(card.provider()));
+            assertTrue(store.cardAlreadyExists(card));
+        }
+        assertSame(null, store.getCardById(PersonalCardStore.CARD_ID_INVALID));
+        assertSame(null, store.getCardForProvider("unknown"));
+    }
+
+    @Test
+    public void indexesMatchLinearSearch() {
+        Random random = new Random(7);
+        PersonalCardStore store = newStore();
+        for (int step = 0; step < 400; step++) {
+            List<PersonalCard> cards = store.copyPersonalCards();
+            int op = random.nextInt(10);
+            if (op < 4 || cards.isEmpty()) {
+                PersonalCard card = randomCard(random);
+                boolean duplicate = linearFindSameCard(cards, card) != null;
+                store.merge(card);
+                assertEquals(duplicate ? cards.size() : cards.size() + 1, store.getPersonalCards().size());
+            } else if (op < 5) {
+                //duplicates are only rejected by merge
+                store.addCard(randomCard(random));
+            } else if (op < 7) {
+                store.removeCard(cards.get(random.nextInt(cards.size())));
+            } else if (op < 9) {
+                store.reorderCardAfter(cards.get(random.nextInt(cards.size())), cards.get(random.nextInt(cards.size())));
+            } else {
+                List<PersonalCard> batch = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    batch.add(randomCard(random));
+                }
+                store.merge(batch);
+            }
+            assertIndexesMatchLinearSearch(store, random);
+        }
+        store.flush();
+
+        //the indexes built on load agree as well
+        PersonalCardStore reloaded = newStore();
+        assertEquals(cardNumbers(store.getPersonalCards()), cardNumbers(reloaded.getPersonalCards()));
+        assertIndexesMatchLinearSearch(reloaded, random);
+    }
+
+    @Test
+    public void duplicateCheckBenchmark() {
+        int cardCount = 10_000;
+        PersonalCardStore store = newStore();
+        List<PersonalCard> batch = new ArrayList<>();
+        for (int i = 0; i < cardCount; i++) {
+            batch.add(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop" + i % 50, "N" + i));
+        }
+        store.merge(batch);
+        List<PersonalCard> cards = store.getPersonalCards();
+        List<PersonalCard> probes = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 2_000; i++) {
+            probes.add(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop" + random.nextInt(50), "N" + random.nextInt(cardCount * 2)));
+        }
+
+        int found = 0;
+        long start = System.nanoTime();
+        for (PersonalCard probe : probes) {
+            if (linearFindSameCard(cards, probe) != null) {
+                found++;
+            }
+        }
+        long linearNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (PersonalCard probe : probes) {
+            if (store.cardAlreadyExists(probe)) {
+                found--;
+            }
+        }
+        long indexNanos = System.nanoTime() - start;
+        store.flush();
+
+        assertEquals(0, found);
+        assertTrue(indexNanos < linearNanos);
+    }
+
+    private static class RecordingListener implements PersonalCardStore.Listener {
+
+        final List<String> events = new ArrayList<>();
+        final List<PersonalCardStore.CardChanges> changes = new ArrayList<>();
+
+        @Override
+        public void onCardAdded(PersonalCard card) {
+            events.add("added " + card.cardNumber());
+        }
+
+        @Override
+        public void onCardRemoved(PersonalCard card) {
+            events.add("removed " + card.cardNumber());
+        }
+
+        @Override
+        public void onCardChanged(PersonalCard card) {
+            events.add("changed " + card.cardNumber());
+        }
+
+        @Override
+        public void onCardMoved(PersonalCard card, int fromOrdinal, int toOrdinal) {
+            events.add("moved " + card.cardNumber());
+        }
+
+        @Override
+        public void onCardsChanged(PersonalCardStore.CardChanges changes) {
+            events.add("batch");
+            this.changes.add(changes);
+        }
+    }
+
+    @Test
+    public void mergedListIsReportedAsOneBatch() {
+        PersonalCardStore store = newStore();
+        store.addCard(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "1"));
+        RecordingListener listener = new RecordingListener();
+        store.addListener(listener, null);
+
+        List<PersonalCard> imported = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            //every other card is already in the list, or earlier in the imported list
+            imported.add(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", String.valueOf(i / 2 + 1)));
+        }
+        store.merge(imported);
+
+        assertEquals(List.of("batch"), listener.events);
+        PersonalCardStore.CardChanges changes = listener.changes.get(0);
+        assertEquals(cardNumbers(store.getPersonalCards()), cardNumbers(changes.cards()));
+        assertEquals(250, store.getPersonalCards().size());
+        assertEquals(249, changes.added().size());
+        assertTrue(changes.removed().isEmpty());
+        assertTrue(changes.changed().isEmpty());
+        for (PersonalCard card : changes.added()) {
+            assertTrue(card.id() > 0);
+            assertSame(card, store.getCardById(card.id()));
+        }
+    }
+
+    @Test
+    public void mergeWithoutChangesIsNotReported() {
+        PersonalCardStore store = newStore();
+        store.addCard(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "1"));
+        RecordingListener listener = new RecordingListener();
+        store.addListener(listener, null);
+
+        store.merge(List.of(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "1")));
+        store.merge(List.of());
+
+        assertTrue(listener.events.isEmpty());
+    }
+
+    @Test
+    public void changesOutsideTransactionsAreReportedPerCard() {
+        PersonalCardStore store = newStore();
+        RecordingListener listener = new RecordingListener();
+        store.addListener(listener, null);
+
+        store.addCard(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "1"));
+        store.merge(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "2"));
+        PersonalCard first = store.getPersonalCards().get(0);
+        store.renameCard(first, "First");
+        store.reorderCardAfter(first, store.getPersonalCards().get(1));
+        store.removeCard(first);
+
+        assertEquals(List.of("added 1", "added 2", "changed 1", "moved 1", "removed 1"), listener.events);
+    }
+
+    @Test
+    public void mutedListenerMissesBatch() {
+        PersonalCardStore store = newStore();
+        RecordingListener muted = new RecordingListener();
+        RecordingListener other = new RecordingListener();
+        store.addListener(muted, null);
+        store.addListener(other, null);
+
+        store.muteListenerForNextOperation(muted);
+        store.merge(List.of(
+                new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "1"),
+                new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "2")
+        ));
+        assertTrue(muted.events.isEmpty());
+        assertEquals(List.of("batch"), other.events);
+        assertEquals(Set.of("1", "2"), Set.copyOf(cardNumbers(List.copyOf(other.changes.get(0).added()))));
+
+        //only muted for one operation
+        store.addCard(new PersonalCard(PersonalCardStore.CARD_ID_TEMPORARY, null, "shop0", "3"));
+        assertEquals(List.of("added 3"), muted.events);
+    }
+
+    @Test
+    public void journalReplaysRandomChanges() {
+        Random random = new Random(11);
+        PersonalCardStore store = newStore();
+        for (int step = 0; step < 2_000; step++) {
+            List<PersonalCard> cards = store.copyPersonalCards();
+            int op = random.nextInt(10);
+            if (op < 3 || cards.size() < 2) {
+                store.addCard(randomCard(random));
+            } else if (op < 5) {
+                store.removeCard(cards.get(random.nextInt(cards.size())));
+            } else if (op < 7) {
+                store.renameCard(cards.get(random.nextInt(cards.size())), random.nextBoolean() ? null : "Name " + step);
+            } else {
+                //drags, which are coalesced while pending
+                PersonalCard card = cards.get(random.nextInt(cards.size()));
+                for (int i = 0; i < 3; i++) {
+                    List<PersonalCard> current = store.getPersonalCards();
+                    store.reorderCardAfter(card, current.get(random.nextInt(current.size())));
+                }
+            }
+            if (step % 500 == 499) {
+                store.flush();
+            }
+        }
+        store.flush();
+        PersonalCardStore.PersistenceStats stats = store.getPersistenceStats();
+        assertTrue(stats.coalescedRecords() > 0);
+        assertTrue(stats.compactions() > 0);
+
+        List<PersonalCard> expected = store.getPersonalCards();
+        List<PersonalCard> replayed = newStore().getPersonalCards();
+        assertEquals(expected.size(), replayed.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).id(), replayed.get(i).id());
+            assertEquals(expected.get(i).name(), replayed.get(i).name());
+            assertEquals(expected.get(i).cardNumber(), replayed.get(i).cardNumber());
+            assertEquals(expected.get(i).orderKey(), replayed.get(i).orderKey());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package cz.mamstylcendy.cards.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.zxing.BarcodeFormat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs the fetcher against a local stand-in for the config server.
+ */
+public class RemoteConfigFetcherTest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final String BASE_ETAG = "\"v1\"";
+    private static final String ETAG = "\"v2\"";
+    private static final String LAST_MODIFIED = "Sat, 17 Oct 2026 10:00:00 GMT";
+
+    private HttpServer server;
+    private URL location;
+
+    private byte[] fullBody;
+    private byte[] patchBody;
+    private String patchBase = BASE_ETAG;
+    private boolean serveGzip = false;
+    private boolean serveETag = true;
+    private final List<String> requests = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/config.json", this::handle);
+        server.start();
+        location = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/config.json");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        String aIm = exchange.getRequestHeaders().getFirst("A-IM");
+        synchronized (requests) {
+            requests.add(aIm != null ? "delta" : "full");
+        }
+        if (serveETag) {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+        }
+        exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+        //If-Modified-Since is only evaluated without If-None-Match
+        if (ifNoneMatch != null ? serveETag && ETAG.equals(ifNoneMatch) : LAST_MODIFIED.equals(ifModifiedSince)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body;
+        int status;
+        if (aIm != null && aIm.contains("karticky-config-patch") && patchBody != null && patchBase.equals(ifNoneMatch)) {
+            exchange.getResponseHeaders().set("IM", "karticky-config-patch");
+            exchange.getResponseHeaders().set("Delta-Base", patchBase);
+            body = patchBody;
+            status = 226;
+        } else {
+            body = fullBody;
+            status = 200;
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (serveGzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            body = gzip(body);
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static CardsConfig config(int providers, int codesPerProvider, int extraCodes) {
+        LinkedHashMap<String, CardsConfig.ProviderInfo> cardData = new LinkedHashMap<>();
+        Map<String, String> wlanMappings = new HashMap<>();
+        for (int p = 0; p < providers; p++) {
+            List<String> codes = new ArrayList<>();
+            int count = codesPerProvider + (p == 0 ? extraCodes : 0);
+            for (int c = 0; c < count; c++) {
+                codes.add(String.format("%013d", p * 1_000_000L + c));
+            }
+            cardData.put("provider" + p, new CardsConfig.ProviderInfo("Provider " + p, null, 0xFF000000 | p, null, BarcodeFormat.EAN_13, codes));
+            wlanMappings.put("WiFi " + p, "provider" + p);
+        }
+        return new CardsConfig(wlanMappings, new LinkedHashMap<>(), cardData);
+    }
+
+    /**
+     * Patch from {@code config(providers, codes, 0)} to {@code config(providers, codes, added)}.
+     */
+    private static ConfigPatch addCodesPatch(int codesPerProvider, int added) {
+        List<String> codes = new ArrayList<>();
+        for (int c = codesPerProvider; c < codesPerProvider + added; c++) {
+            codes.add(String.format("%013d", (long) c));
+        }
+        return new ConfigPatch(BASE_ETAG, null, null, Map.of("provider0", codes), null, null, null, null, null);
+    }
+
+    private static void assertSameConfig(CardsConfig expected, CardsConfig actual) {
+        assertEquals(expected.cardData().keySet(), actual.cardData().keySet());
+        for (String provider : expected.cardData().keySet()) {
+            assertEquals(expected.cardData().get(provider).codes(), actual.cardData().get(provider).codes());
+            assertEquals(expected.cardData().get(provider).providerName(), actual.cardData().get(provider).providerName());
+        }
+        assertEquals(expected.wlanMappings(), actual.wlanMappings());
+    }
+
+    @Test
+    public void appliesPatchAgainstLocalConfig() throws IOException {
+        CardsConfig base = config(5, 100, 0);
+        CardsConfig target = config(5, 100, 3);
+        fullBody = OBJECT_MAPPER.writeValueAsBytes(target);
+        patchBody = OBJECT_MAPPER.writeValueAsBytes(addCodesPatch(100, 3));
+
+        RemoteConfigFetcher.Result result = RemoteConfigFetcher.fetchRemoteConfig(location, base, BASE_ETAG, null);
+
+        assertEquals(RemoteConfigFetcher.Status.SUCCESS, result.status());
+        assertTrue(result.stats().delta());
+        assertEquals(patchBody.length, result.stats().bytesReceived());
+        assertEquals(ETAG, result.eTag());
+        assertEquals(LAST_MODIFIED, result.lastModified());
+        assertSameConfig(target, result.config());
+        assertEquals(List.of("delta"), requests);
+    }
+
+    @Test
+    public void brokenPatchChainFallsBackToFullGet() throws IOException {
+        CardsConfig base = config(5, 100, 0);
+        CardsConfig target = config(5, 100, 3);
+        fullBody = OBJECT_MAPPER.writeValueAsBytes(target);
+        //the local config already has these codes, so the patch does not apply
+        patchBody = OBJECT_MAPPER.writeValueAsBytes(addCodesPatch(97, 3));
+
+        RemoteConfigFetcher.Result result = RemoteConfigFetcher.fetchRemoteConfig(location, base, BASE_ETAG, null);
+
+        assertEquals(RemoteConfigFetcher.Status.SUCCESS, result.status());
+        assertFalse(result.stats().delta());
+        assertEquals(fullBody.length, result.stats().bytesReceived());
+        assertSameConfig(target, result.config());
+        assertEquals(List.of("delta", "full"), requests);
+    }
+
+    @Test
+    public void patchFailingUncheckedFallsBackToFullGet() throws IOException {
+        //a local config without card data makes applying the patch fail with an unchecked exception
+        CardsConfig broken = new CardsConfig(new HashMap<>(), new LinkedHashMap<>(), null);
+        CardsConfig target = config(2, 10, 0);
+        fullBody = OBJECT_MAPPER.writeValueAsBytes(target);
+        patchBody = OBJECT_MAPPER.writeValueAsBytes(addCodesPatch(10, 1));
+
+        RemoteConfigFetcher.Result result = RemoteConfigFetcher.fetchRemoteConfig(location, broken, BASE_ETAG, null);
+
+        assertEquals(RemoteConfigFetcher.Status.SUCCESS, result.status());
+        assertFalse(result.stats().delta());
+        assertSameConfig(target, result.config());
+        assertEquals(List.of("delta", "full"), requests);
+    }
+
+    @Test
+    public void unchangedConfigIsNotDownloaded() throws IOException {
+        CardsConfig current = config(2, 10, 0);
+        fullBody = OBJECT_MAPPER.writeValueAsBytes(current);
+
+        RemoteConfigFetcher.Result result = RemoteConfigFetcher.fetchRemoteConfig(location, current, ETAG, LAST_MODIFIED);
+
+        assertEquals(RemoteConfigFetcher.Status.NO_CHANGE, result.status());
+        assertSame(current, result.config());
+        assertEquals(0, result.stats().bytesReceived());
+    }
+
+    @Test
+    public void lastModifiedAloneMakesConditionalRequest() throws IOException {
+        CardsConfig current = config(2, 10, 0);
+        fullBody = OBJECT_MAPPER.writeValueAsBytes(config(2, 10, 5));
+        serveETag = false;
+
+        RemoteConfigFetcher.Result first = RemoteConfigFetcher.fetchRemoteConfig(location, null, null, null);
+        assertEquals(RemoteConfigFetcher.Status.SUCCESS, first.status());
+        assertNull(first.eTag());
+        assertEquals(LAST_MODIFIED, first.lastModified());
+
+        RemoteConfigFetcher.Result second = RemoteConfigFetcher.fetchRemoteConfig(location, current, null, first.lastModified());
+
+        assertEquals(RemoteConfigFetcher.Status.NO_CHANGE, second.status());
+        assertSame(current, second.config());
+        assertEquals(0, second.stats().bytesReceived());
+    }
+
+    @Test
+    public void readsGzipCompressedConfig() throws IOException {
+        CardsConfig target = config(5, 200, 0);
+        fullBody = OBJECT_MAPPER.writeValueAsBytes(target);
+        serveGzip = true;
+
+        RemoteConfigFetcher.Result result = RemoteConfigFetcher.fetchRemoteConfig(location, null, null, null);
+
+        assertEquals(RemoteConfigFetcher.Status.SUCCESS, result.status());
+        assertEquals(gzip(fullBody).length, result.stats().bytesReceived());
+        assertTrue(result.stats().bytesReceived() < fullBody.length);
+        assertSameConfig(target, result.config());
+    }
+
+    @Test
+    public void deltaIsCheaperThanFullReload() throws IOException {
+        int providers = 20;
+        int codes = 2000;
+        CardsConfig base = config(providers, codes, 0);
+        CardsConfig target = config(providers, codes, 20);
+        fullBody = OBJECT_MAPPER.writeValueAsBytes(target);
+        patchBody = OBJECT_MAPPER.writeValueAsBytes(addCodesPatch(codes, 20));
+        serveGzip = true;
+
+        RemoteConfigFetcher.Result full = RemoteConfigFetcher.fetchRemoteConfig(location, null, null, null);
+        RemoteConfigFetcher.Result delta = RemoteConfigFetcher.fetchRemoteConfig(location, base, BASE_ETAG, null);
+
+        assertFalse(full.stats().delta());
+        assertTrue(delta.stats().delta());
+        assertSameConfig(full.config(), delta.config());
+        assertTrue(delta.stats().bytesReceived() * 10 < full.stats().bytesReceived());
+    }
+}
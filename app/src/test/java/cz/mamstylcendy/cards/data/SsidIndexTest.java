@@ -0,0 +1,51 @@
+package cz.mamstylcendy.cards.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SsidIndexTest {
+
+    private static SsidIndex index() {
+        Map<String, String> mappings = new HashMap<>();
+        mappings.put("Shop WiFi", "shop");
+        mappings.put("Kavárna 😀", "cafe");
+        LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("Market-*", "market");
+        return SsidIndex.build(new CardsConfig(mappings, patterns, new LinkedHashMap<>()));
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void findsQuotedAndUnquotedStrings() {
+        SsidIndex index = index();
+        assertEquals("shop", index.findProvider("\"Shop WiFi\""));
+        assertEquals("shop", index.findProvider("Shop WiFi"));
+        assertEquals("cafe", index.findProvider("\"Kavárna 😀\""));
+        assertNull(index.findProvider("\"Shop WiFi 2\""));
+        assertNull(index.findProvider((String) null));
+    }
+
+    @Test
+    public void rawLookupMatchesStringLookup() {
+        SsidIndex index = index();
+        for (String ssid : new String[]{"Shop WiFi", "Kavárna 😀", "Market-12", "Market", "Other", ""}) {
+            assertEquals(ssid, index.findProvider("\"" + ssid + "\""), index.findProvider(utf8(ssid)));
+        }
+        assertEquals("market", index.findProvider(utf8("Market-12")));
+    }
+
+    @Test
+    public void rawLookupOfInvalidUtf8DoesNotMatch() {
+        assertNull(index().findProvider(new byte[]{(byte) 0xC3, (byte) 0x28}));
+    }
+}
@@ -0,0 +1,225 @@
+package cz.mamstylcendy.cards.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class SsidPatternMatcherTest {
+
+    private static final String[] ALPHABET = {"a", "b", "-", "ě", "😀"};
+
+    /**
+     * Reference implementation: backtracking glob match of one pattern.
+     */
+    private static boolean naiveMatches(String pattern, int p, String ssid, int s) {
+        while (p < pattern.length()) {
+            int token = pattern.codePointAt(p);
+            if (token == '*') {
+                for (int i = s; ; i += Character.charCount(ssid.codePointAt(i))) {
+                    if (naiveMatches(pattern, p + 1, ssid, i)) {
+                        return true;
+                    }
+                    if (i >= ssid.length()) {
+                        return false;
+                    }
+                }
+            }
+            if (s >= ssid.length()) {
+                return false;
+            }
+            int c = ssid.codePointAt(s);
+            if (token == '\\' && p + 1 < pattern.length()) {
+                p++;
+                token = pattern.codePointAt(p);
+            } else if (token == '?') {
+                p++;
+                s += Character.charCount(c);
+                continue;
+            }
+            if (token != c) {
+                return false;
+            }
+            p += Character.charCount(token);
+            s += Character.charCount(c);
+        }
+        return s == ssid.length();
+    }
+
+    private static String naiveFindProvider(Map<String, String> patterns, String ssid) {
+        for (Map.Entry<String, String> entry : patterns.entrySet()) {
+            if (naiveMatches(entry.getKey(), 0, ssid, 0)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String randomString(Random random, int maxLength, boolean pattern) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            int kind = pattern ? random.nextInt(10) : 9;
+            if (kind == 0) {
+                sb.append('*');
+            } else if (kind == 1) {
+                sb.append('?');
+            } else if (kind == 2) {
+                sb.append('\\').append(random.nextBoolean() ? "*" : "?");
+            } else {
+                sb.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void matchesPrefixSuffixAndEscapes() {
+        LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("LIDL-Free-WiFi-*", "lidl");
+        patterns.put("*-BILLA", "billa");
+        patterns.put("Shop\\*?", "shop");
+        patterns.put("*", "fallback");
+        SsidPatternMatcher matcher = SsidPatternMatcher.compile(patterns);
+
+        assertEquals("lidl", matcher.findProvider("LIDL-Free-WiFi-1234"));
+        assertEquals("billa", matcher.findProvider("Praha-BILLA"));
+        assertEquals("shop", matcher.findProvider("Shop*1"));
+        assertEquals("fallback", matcher.findProvider("Shop12"));
+        assertEquals("lidl", matcher.findProvider("\"LIDL-Free-WiFi-\"", 1, 16));
+    }
+
+    @Test
+    public void declarationOrderWins() {
+        LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("a*", "first");
+        patterns.put("*b", "second");
+        SsidPatternMatcher matcher = SsidPatternMatcher.compile(patterns);
+
+        assertEquals("first", matcher.findProvider("ab"));
+        assertEquals("second", matcher.findProvider("bb"));
+        assertNull(matcher.findProvider("ba"));
+    }
+
+    @Test
+    public void emptyMatcherMatchesNothing() {
+        SsidPatternMatcher matcher = SsidPatternMatcher.compile(null);
+        assertTrue(matcher.isEmpty());
+        assertNull(matcher.findProvider("anything"));
+    }
+
+    @Test
+    public void agreesWithNaiveGlob() {
+        Random random = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+            int patternCount = 1 + random.nextInt(20);
+            for (int i = 0; i < patternCount; i++) {
+                patterns.put(randomString(random, 6, true), "p" + i);
+            }
+            SsidPatternMatcher matcher = SsidPatternMatcher.compile(patterns);
+            for (int i = 0; i < 500; i++) {
+                String ssid = randomString(random, 8, false);
+                assertEquals(patterns + " / " + ssid, naiveFindProvider(patterns, ssid), matcher.findProvider(ssid));
+            }
+        }
+    }
+
+    @Test
+    public void agreesWithNaiveGlobAfterStateCacheReset() {
+        //"a" followed by 12 arbitrary characters needs a DFA state for each combination of the last 12 characters
+        LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("*a????????????", "a");
+        patterns.put("*b???", "b");
+        SsidPatternMatcher matcher = SsidPatternMatcher.compile(patterns);
+        Random random = new Random(3);
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder ssid = new StringBuilder();
+            for (int j = 0; j < 24; j++) {
+                ssid.append(random.nextBoolean() ? 'a' : 'b');
+            }
+            String s = ssid.toString();
+            assertEquals(s, naiveFindProvider(patterns, s), matcher.findProvider(s));
+        }
+    }
+
+    @Test
+    public void rawBytesMatchLikeDecodedString() {
+        //valid sequences, truncated and overlong sequences, encoded surrogates, stray continuation bytes
+        byte[][] pieces = {
+                {'a'}, {'?'}, {(byte) 0xC4, (byte) 0x9B}, {(byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80},
+                {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD}, {(byte) 0xC4}, {(byte) 0xF0, (byte) 0x9F}, {(byte) 0xE0, (byte) 0x80},
+                {(byte) 0xC0, (byte) 0xAF}, {(byte) 0xED, (byte) 0xA0, (byte) 0x80}, {(byte) 0xF4, (byte) 0x90}, {(byte) 0x80},
+                {(byte) 0xFF}, {(byte) 0xF5}
+        };
+        LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("a\\?*", "escaped");
+        patterns.put("\uFFFD\uFFFD*", "two replacements");
+        patterns.put("?ě", "one then e");
+        patterns.put("*\uD83D\uDE00", "emoji");
+        patterns.put("???", "three");
+        patterns.put("*a?", "a then any");
+        SsidPatternMatcher matcher = SsidPatternMatcher.compile(patterns);
+        Random random = new Random(5);
+        for (int i = 0; i < 20000; i++) {
+            ByteArrayOutputStream ssid = new ByteArrayOutputStream();
+            int length = random.nextInt(5);
+            for (int j = 0; j < length; j++) {
+                byte[] piece = pieces[random.nextInt(pieces.length)];
+                ssid.write(piece, 0, piece.length);
+            }
+            byte[] bytes = ssid.toByteArray();
+            String decoded = new String(bytes, StandardCharsets.UTF_8);
+            assertEquals(decoded, matcher.findProvider(decoded), matcher.findProvider(bytes, 0, bytes.length));
+        }
+    }
+
+    @Test
+    public void dfaIsFasterThanNaiveGlobOnManyPatterns() {
+        Random random = new Random(11);
+        LinkedHashMap<String, String> patterns = new LinkedHashMap<>();
+        for (int i = 0; i < 200; i++) {
+            patterns.put("Store" + i + "-*", "prefix" + i);
+            patterns.put("*-Shop" + i, "suffix" + i);
+        }
+        List<String> ssids = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            int n = random.nextInt(400);
+            ssids.add(random.nextBoolean() ? "Store" + n + "-" + i : "Guest-" + i + "-Shop" + n);
+        }
+        SsidPatternMatcher matcher = SsidPatternMatcher.compile(patterns);
+
+        //warm up the lazily built DFA states and the JIT
+        int checksum = 0;
+        for (int round = 0; round < 3; round++) {
+            for (String ssid : ssids) {
+                checksum += String.valueOf(matcher.findProvider(ssid)).length();
+                checksum += String.valueOf(naiveFindProvider(patterns, ssid)).length();
+            }
+        }
+
+        long start = System.nanoTime();
+        for (String ssid : ssids) {
+            checksum += String.valueOf(matcher.findProvider(ssid)).length();
+        }
+        long dfaNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (String ssid : ssids) {
+            checksum += String.valueOf(naiveFindProvider(patterns, ssid)).length();
+        }
+        long naiveNanos = System.nanoTime() - start;
+
+        //keeps the matching from being optimised away
+        assertTrue(checksum > 0);
+        assertTrue(dfaNanos < naiveNanos);
+    }
+}
@@ -0,0 +1,147 @@
+package cz.mamstylcendy.cards.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+public class AbstractListenerTargetTest {
+
+    private static class Target extends AbstractListenerTarget<IntConsumer> {
+
+        void dispatch(int value) {
+            invokeListeners(listener -> listener.accept(value));
+        }
+    }
+
+    @Test
+    public void keepsOrderOnConcurrentExecutor() throws InterruptedException {
+        Target target = new Target();
+        List<Integer> received = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        target.addListener(value -> {
+            synchronized (received) {
+                received.add(value);
+            }
+        }, pool);
+        for (int i = 0; i < 10000; i++) {
+            target.dispatch(i);
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(10000, received.size());
+        for (int i = 0; i < received.size(); i++) {
+            assertEquals(i, (int) received.get(i));
+        }
+    }
+
+    @Test
+    public void errorInListenerDoesNotStopLaterEvents() {
+        Target target = new Target();
+        List<Integer> received = new ArrayList<>();
+        target.addListener(value -> {
+            if (value == 1) {
+                throw new AssertionError("listener failure");
+            }
+            received.add(value);
+        }, command -> {
+            try {
+                command.run();
+            } catch (AssertionError ignored) {
+                //the executor thread survives, as a looper would not
+            }
+        });
+
+        target.dispatch(1);
+        target.dispatch(2);
+
+        assertEquals(List.of(2), received);
+    }
+
+    @Test
+    public void rejectedDrainDoesNotBlockLaterEvents() {
+        Target target = new Target();
+        List<Integer> received = new ArrayList<>();
+        boolean[] shutDown = {true};
+        target.addListener(received::add, command -> {
+            if (shutDown[0]) {
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        });
+
+        target.dispatch(1);
+        shutDown[0] = false;
+        target.dispatch(2);
+
+        //the rejected event is dropped, the next one gets its own drain
+        assertEquals(List.of(2), received);
+    }
+
+    @Test
+    public void removedListenerGetsNoQueuedEvents() {
+        Target target = new Target();
+        List<Runnable> queued = new ArrayList<>();
+        List<Integer> received = new ArrayList<>();
+        IntConsumer listener = received::add;
+        target.addListener(listener, queued::add);
+
+        target.dispatch(1);
+        target.removeListener(listener);
+        queued.forEach(Runnable::run);
+
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void concurrentAddRemoveDoesNotDisturbOtherListeners() throws InterruptedException {
+        int events = 20_000;
+        int listenerCount = 64;
+        Target target = new Target();
+        List<List<Integer>> received = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < listenerCount; i++) {
+            List<Integer> values = new ArrayList<>();
+            received.add(values);
+            //every other listener is called through the pool
+            target.addListener(values::add, i % 2 == 0 ? null : pool);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger churned = new AtomicInteger();
+        Thread churn = new Thread(() -> {
+            while (!done.get()) {
+                IntConsumer listener = value -> churned.incrementAndGet();
+                target.addListener(listener, (churned.get() & 1) == 0 ? null : pool);
+                target.removeListener(listener);
+            }
+        });
+        churn.start();
+        for (int i = 0; i < events; i++) {
+            target.dispatch(i);
+        }
+        done.set(true);
+        churn.join();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(listenerCount, target.getListenerCount());
+        for (List<Integer> values : received) {
+            assertEquals(events, values.size());
+            for (int i = 0; i < events; i++) {
+                assertEquals(i, (int) values.get(i));
+            }
+        }
+    }
+}